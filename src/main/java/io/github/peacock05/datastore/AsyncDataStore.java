@@ -0,0 +1,243 @@
+package io.github.peacock05.datastore;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * AsyncDataStore executes the operations of a {@link DataStore} on a dedicated I/O thread and returns
+ * {@link CompletableFuture}s, so the callers never block on the lock of the data store or on the disk.
+ * <p>
+ * The I/O thread executes the queued operations in batches in the order they were submitted. All the
+ * {@link #syncAsync()} requests of a batch are served by a single {@link DataStore#sync()} at the end
+ * of the batch. The futures are completed on the I/O thread, so the dependent actions should not block.
+ */
+public class AsyncDataStore implements AutoCloseable {
+
+    private final static int ERROR_CODE_OK = 0;
+    private final static int OP_WRITE = 0;
+    private final static int OP_READ = 1;
+    private final static int OP_POLL = 2;
+    private final static int OP_SYNC = 3;
+    private final static int OP_CLOSE = 4;
+    private final static AtomicInteger THREAD_COUNT = new AtomicInteger();
+    private final DataStore store;
+    private final BlockingQueue<Operation<?>> operations;
+    private final Thread thread;
+    private volatile boolean isClosed;
+
+    /**
+     * Create the asynchronous facade and start its I/O thread.
+     *
+     * @param store the data store the operations are executed on
+     */
+    public AsyncDataStore(DataStore store) {
+        this.store = store;
+        operations = new LinkedBlockingQueue<>();
+        thread = new Thread(this::run, "datastore-io-" + THREAD_COUNT.incrementAndGet());
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+    /**
+     * Writes {@code len} bytes from the specified byte array starting at offset {@code off} to the data store.
+     * The array must not be modified until the future completes.
+     *
+     * @param b   the data.
+     * @param off the start offset in the data.
+     * @param len the number of bytes to write.
+     * @return a future completed with {@code false}  if an I/O error occurs.
+     */
+    public CompletableFuture<Boolean> writeAsync(byte[] b, int off, int len) {
+        return submit(new Operation<>(OP_WRITE, b, off, len));
+    }
+
+    /**
+     * Writes {@code b.length} bytes from the specified byte array to the data store.
+     * The array must not be modified until the future completes.
+     *
+     * @param b the data.
+     * @return a future completed with {@code false}  if an I/O error occurs.
+     */
+    public CompletableFuture<Boolean> writeAsync(byte[] b) {
+        return writeAsync(b, 0, b.length);
+    }
+
+    /**
+     * Reads the record at the head of the data store without removing it.
+     *
+     * @return a future completed with the record, or {@code null} if the data store is empty. The future
+     * completes exceptionally with an {@link IOException} if the record cannot be read.
+     */
+    public CompletableFuture<byte[]> readAsync() {
+        return submit(new Operation<>(OP_READ, null, 0, 0));
+    }
+
+    /**
+     * Reads and removes the record at the head of the data store.
+     *
+     * @return a future completed with the record, or {@code null} if the data store is empty. The future
+     * completes exceptionally with an {@link IOException} if the record cannot be read, the record is not removed.
+     */
+    public CompletableFuture<byte[]> pollAsync() {
+        return submit(new Operation<>(OP_POLL, null, 0, 0));
+    }
+
+    /**
+     * Store pointers and data to the disk, after all the operations submitted before.
+     *
+     * @return a future completed with {@code true} if the sync is successful
+     */
+    public CompletableFuture<Boolean> syncAsync() {
+        return submit(new Operation<>(OP_SYNC, null, 0, 0));
+    }
+
+    /**
+     * Get the data store the operations are executed on.
+     * @return the underlying data store
+     */
+    public DataStore getDataStore() {
+        return store;
+    }
+
+    /**
+     * Executes the pending operations, stops the I/O thread and closes the data store.
+     *
+     * @throws Exception Upon error in closing the data store.
+     */
+    @Override
+    public void close() throws Exception {
+        synchronized (operations) {
+            if (isClosed) {
+                return;
+            }
+            isClosed = true;
+            operations.add(new Operation<>(OP_CLOSE, null, 0, 0));
+        }
+        boolean isInterrupted = false;
+        while (thread.isAlive()) {
+            try {
+                thread.join();
+            } catch (InterruptedException e) {
+                isInterrupted = true;
+            }
+        }
+        if (isInterrupted) {
+            Thread.currentThread().interrupt();
+        }
+        store.close();
+    }
+
+    private <T> CompletableFuture<T> submit(Operation<T> operation) {
+        synchronized (operations) {
+            if (isClosed) {
+                operation.future.completeExceptionally(new RejectedExecutionException("Data store is closed"));
+            } else {
+                operations.add(operation);
+            }
+        }
+        return operation.future;
+    }
+
+    private void run() {
+        List<Operation<?>> batch = new ArrayList<>();
+        List<Operation<?>> syncs = new ArrayList<>();
+        boolean isRunning = true;
+        while (isRunning) {
+            try {
+                batch.add(operations.take());
+            } catch (InterruptedException e) {
+                continue;
+            }
+            operations.drainTo(batch);
+
+            for (Operation<?> operation : batch) {
+                try {
+                    switch (operation.type) {
+                        case OP_WRITE:
+                            operation.complete(store.write(operation.b, operation.off, operation.len));
+                            break;
+                        case OP_READ:
+                        case OP_POLL:
+                            operation.complete(read(operation.type == OP_POLL));
+                            break;
+                        case OP_SYNC:
+                            syncs.add(operation);
+                            break;
+                        default:
+                            isRunning = false;
+                            break;
+                    }
+                } catch (Exception e) {
+                    operation.future.completeExceptionally(e);
+                }
+            }
+
+            if (!syncs.isEmpty()) {
+                try {
+                    boolean status = store.sync();
+                    for (Operation<?> operation : syncs) {
+                        operation.complete(status);
+                    }
+                } catch (RuntimeException e) {
+                    for (Operation<?> operation : syncs) {
+                        operation.future.completeExceptionally(e);
+                    }
+                }
+            }
+            batch.clear();
+            syncs.clear();
+        }
+    }
+
+    private byte[] read(boolean remove) throws IOException {
+        byte[] b = null;
+        int size, read = 0;
+        synchronized (store) {
+            size = store.readLength();
+            if (size >= 0) {
+                b = new byte[size];
+                read = size > 0 ? store.read(b, 0, size) : 0;
+                if (read != size || store.getErrorCode() != ERROR_CODE_OK) {
+                    // The record is kept, so it can be read again
+                    Exception e = store.getException();
+                    throw e instanceof IOException ? (IOException) e
+                            : new IOException("Unable to read the record", e);
+                }
+                if (remove) {
+                    store.remove();
+                }
+            }
+        }
+        return b;
+    }
+
+    private static class Operation<T> {
+        final int type;
+        final byte[] b;
+        final int off;
+        final int len;
+        final CompletableFuture<T> future;
+
+        Operation(int type, byte[] b, int off, int len) {
+            this.type = type;
+            this.b = b;
+            this.off = off;
+            this.len = len;
+            this.future = new CompletableFuture<>();
+        }
+
+        /**
+         * Complete the future with the result of the operation, whose type matches the type of the operation.
+         */
+        @SuppressWarnings("unchecked")
+        void complete(Object result) {
+            future.complete((T) result);
+        }
+    }
+}
@@ -0,0 +1,99 @@
+package io.github.peacock05.datastore;
+
+import java.io.IOException;
+import java.io.InputStream;
+
+/**
+ * ChunkInputStream reads the record at the front of a {@link FileDataStoreQueue} chunk by chunk, in the transaction
+ * started by {@link FileDataStoreQueue#openReadStream()}. The stream must be used and closed by the thread which
+ * opened it.
+ */
+class ChunkInputStream extends InputStream {
+
+    private final FileDataStoreQueue queue;
+    private final FrameBuffer buffer;
+    private int position;
+    private int length;
+    private boolean isLast;
+    private boolean isClosed;
+
+    ChunkInputStream(FileDataStoreQueue queue) {
+        this.queue = queue;
+        buffer = new FrameBuffer();
+    }
+
+    /**
+     * Read the next chunk once the current chunk is consumed.
+     *
+     * @return {@code false} at the end of the record.
+     */
+    private boolean fill() throws IOException {
+        if (isClosed) {
+            throw new IOException("Stream closed");
+        }
+        while (position == length) {
+            if (isLast) {
+                return false;
+            }
+            int size = queue.readChunk(buffer);
+            if (size == -1) {
+                isLast = true;
+                return false;
+            }
+            if (size < -1) {
+                size = -2 - size;
+                isLast = true;
+            }
+            position = 0;
+            length = size;
+        }
+        return true;
+    }
+
+    @Override
+    public int read() throws IOException {
+        if (!fill()) {
+            return -1;
+        }
+        return buffer.ensure(length)[position++] & 0xFF;
+    }
+
+    @Override
+    public int read(byte[] b, int off, int len) throws IOException {
+        if (off < 0 || len < 0 || len > b.length - off) {
+            throw new IndexOutOfBoundsException();
+        }
+        if (len == 0) {
+            return 0;
+        }
+        if (!fill()) {
+            return -1;
+        }
+        int n = Math.min(len, length - position);
+        System.arraycopy(buffer.ensure(length), position, b, off, n);
+        position += n;
+        return n;
+    }
+
+    @Override
+    public int available() {
+        return length - position;
+    }
+
+    /**
+     * Commit the removal of the record if it was read to the end, otherwise restore it.
+     *
+     * @throws IOException if the removal cannot be committed.
+     */
+    @Override
+    public void close() throws IOException {
+        if (!isClosed) {
+            isClosed = true;
+            if (!isLast || position < length) {
+                queue.rollback();
+            } else if (!queue.commit()) {
+                throw new IOException("Unable to commit the removal of the record", queue.getException());
+            }
+        }
+    }
+}
@@ -0,0 +1,93 @@
+package io.github.peacock05.datastore;
+
+import java.io.IOException;
+import java.io.OutputStream;
+
+/**
+ * ChunkOutputStream writes a record to a {@link FileDataStoreQueue} as a run of chunks, in the transaction started by
+ * {@link FileDataStoreQueue#openWriteStream(int)}, started when the first chunk is full. A chunk is written once it is
+ * full and more data follows, so the last chunk is known when the stream is closed. The stream must be used and closed
+ * by the thread which opened it.
+ */
+class ChunkOutputStream extends OutputStream {
+
+    private final FileDataStoreQueue queue;
+    private final byte[] frame;
+    private int position;
+    private boolean isStarted;
+    private boolean isClosed;
+
+    ChunkOutputStream(FileDataStoreQueue queue, int chunkSize) {
+        this.queue = queue;
+        frame = new byte[FrameStore.HEADER_LENGTH + chunkSize];
+        position = FrameStore.HEADER_LENGTH;
+    }
+
+    @Override
+    public void write(int b) throws IOException {
+        ensureOpen();
+        if (position == frame.length) {
+            writeChunk(true);
+        }
+        frame[position++] = (byte) b;
+    }
+
+    @Override
+    public void write(byte[] b, int off, int len) throws IOException {
+        ensureOpen();
+        if (off < 0 || len < 0 || len > b.length - off) {
+            throw new IndexOutOfBoundsException();
+        }
+        while (len > 0) {
+            if (position == frame.length) {
+                writeChunk(true);
+            }
+            int n = Math.min(len, frame.length - position);
+            System.arraycopy(b, off, frame, position, n);
+            position += n;
+            off += n;
+            len -= n;
+        }
+    }
+
+    private void ensureOpen() throws IOException {
+        if (isClosed) {
+            throw new IOException("Stream closed");
+        }
+    }
+
+    private void writeChunk(boolean isContinued) throws IOException {
+        if (isContinued && !isStarted) {
+            if (!queue.beginTransaction()) {
+                isClosed = true;
+                throw new IOException("Unable to start the transaction of the stream", queue.getException());
+            }
+            isStarted = true;
+        }
+        if (!queue.writeChunk(frame, position - FrameStore.HEADER_LENGTH, isContinued)) {
+            Exception e = queue.getException();
+            isClosed = true;
+            if (isStarted) {
+                queue.rollback();
+            }
+            throw new IOException("Unable to write the chunk", e);
+        }
+        position = FrameStore.HEADER_LENGTH;
+    }
+
+    /**
+     * Write the last chunk and commit the record.
+     *
+     * @throws IOException if the chunk cannot be written or the record cannot be committed.
+     */
+    @Override
+    public void close() throws IOException {
+        if (!isClosed) {
+            writeChunk(false);
+            isClosed = true;
+            if (isStarted && !queue.commit()) {
+                throw new IOException("Unable to commit the record", queue.getException());
+            }
+        }
+    }
+}
@@ -0,0 +1,28 @@
+package io.github.peacock05.datastore;
+
+import java.nio.ByteBuffer;
+
+/**
+ * Codec converts the values of a {@link TypedDataStore} to records and back.
+ *
+ * @param <T> the type of the values
+ */
+public interface Codec<T> {
+
+    /**
+     * Appends the fields of the value to the record writer. The record is committed by the caller.
+     *
+     * @param value  the value to encode.
+     * @param writer the writer of the record.
+     */
+    void encode(T value, RecordWriter writer);
+
+    /**
+     * Creates the value from the record. The buffer is reused after this method returns, so it must not be
+     * retained by the value.
+     *
+     * @param buffer the record, from its position to its limit.
+     * @return the decoded value.
+     */
+    T decode(ByteBuffer buffer);
+}
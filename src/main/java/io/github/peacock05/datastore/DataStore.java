@@ -1,5 +1,8 @@
 package io.github.peacock05.datastore;
 
+import java.nio.channels.ReadableByteChannel;
+import java.nio.channels.WritableByteChannel;
+
 /**
  * DataStore interface provides access to read, write, remove byte[] data from
  * persistent queue
@@ -26,6 +29,16 @@ public interface DataStore extends AutoCloseable{
      */
     boolean write(byte[] b);
 
+    /**
+     * Create a writer that appends the fields of a record into a reusable buffer and writes
+     * the record to this data store on {@link RecordWriter#commit()}.
+     *
+     * @return     a new record writer for this data store.
+     */
+    default RecordWriter newRecordWriter() {
+        return new RecordWriter(this);
+    }
+
     /**
      * Reads up to {@code len} bytes of data from this data store into an
      * array of bytes. This method blocks until all bytes are read
@@ -63,6 +76,50 @@ public interface DataStore extends AutoCloseable{
      */
     boolean sync();
 
+    /**
+     * Start a transaction for the current thread. The elements written and removed by the current thread
+     * become visible and durable together on {@link #commit()}.
+     * @return {@code false} if the data store does not support transactions or a transaction is already open.
+     */
+    default boolean beginTransaction() {
+        return false;
+    }
+
+    /**
+     * Publish and store to the disk the elements written and removed since {@link #beginTransaction()}.
+     * @return {@code false} if the current thread has no transaction or the commit failed.
+     */
+    default boolean commit() {
+        return false;
+    }
+
+    /**
+     * Discard the elements written and restore the elements removed since {@link #beginTransaction()}.
+     * @return {@code false} if the current thread has no transaction.
+     */
+    default boolean rollback() {
+        return false;
+    }
+
+    /**
+     * Write all the elements of this data store to the channel as a stream of frames, oldest first. The elements
+     * stay in this data store.
+     * @param channel the blocking channel receiving the frames
+     * @return {@code false} if the data store does not support the export or an I/O error occurs.
+     */
+    default boolean exportTo(WritableByteChannel channel) {
+        return false;
+    }
+
+    /**
+     * Write the frames read from the channel until the end of the stream to this data store.
+     * @param channel the blocking channel providing the frames written by {@link #exportTo(WritableByteChannel)}
+     * @return {@code false} if the data store does not support the import, is full or an I/O error occurs.
+     */
+    default boolean importFrom(ReadableByteChannel channel) {
+        return false;
+    }
+
     /**
      * Remove the element from the data store.
      */
@@ -0,0 +1,497 @@
+package io.github.peacock05.datastore;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * DataStoreManager owns the named data stores of a directory and keeps at most a given number of them open.
+ * <p>
+ * {@link #get(String)} returns a handle which opens its data store on the first operation. When more data stores
+ * are open than allowed, the least recently used data stores without an operation in progress are stored to the
+ * disk and closed, and opened again on their next operation. The handles keep the statistics of their data store,
+ * so {@link DataStore#count()} and the other statistics of a closed data store do not open it again.
+ * <p>
+ * The manager lock only guards the bookkeeping of the open data stores. A data store is opened and closed under the
+ * lock of its handle, so opening or closing one data store does not delay the operations on the others.
+ */
+public class DataStoreManager implements AutoCloseable {
+
+    private final static int ERROR_CODE_IO_ERROR = 1;
+    private final static AtomicInteger SYNC_THREAD_COUNT = new AtomicInteger();
+    private final String directory;
+    private final int maxOpenStores;
+    private final Factory factory;
+    private final ConcurrentHashMap<String, Handle> handles;
+    private final LinkedHashMap<String, Handle> openHandles;
+    private Thread syncTask;
+    private boolean isClosed;
+
+    /**
+     * Opens the data store of the given name in the directory.
+     */
+    public interface Factory {
+        /**
+         * Open the data store.
+         *
+         * @param name      Name of the data store
+         * @param directory Directory of the data store
+         * @return the data store
+         * @throws IOException Upon error in opening the data store.
+         */
+        DataStore open(String name, String directory) throws IOException;
+    }
+
+    /**
+     * Create the manager of the {@link FileDataStoreQueue} data stores of the directory.
+     *
+     * @param directory     Directory to store the files
+     * @param limit         Maximum amount of space of each data store.
+     * @param maxOpenStores Maximum number of data stores kept open.
+     */
+    public DataStoreManager(String directory, long limit, int maxOpenStores) {
+        this(directory, maxOpenStores, (name, dir) -> new FileDataStoreQueue(name, dir, limit));
+    }
+
+    /**
+     * Create the manager of the data stores of the directory opened by the factory.
+     *
+     * @param directory     Directory to store the files
+     * @param maxOpenStores Maximum number of data stores kept open.
+     * @param factory       Factory opening the data stores.
+     */
+    public DataStoreManager(String directory, int maxOpenStores, Factory factory) {
+        if (maxOpenStores <= 0) {
+            throw new IllegalArgumentException("Maximum number of open data stores must be positive");
+        }
+        this.directory = directory;
+        this.maxOpenStores = maxOpenStores;
+        this.factory = factory;
+        handles = new ConcurrentHashMap<>();
+        openHandles = new LinkedHashMap<>(16, 0.75f, true);
+    }
+
+    /**
+     * Get the handle of the data store of the given name. The data store is opened on the first operation of the
+     * handle. Closing the handle closes the data store until the next operation.
+     *
+     * @param name Name of the data store
+     * @return the handle, the same for every call with the same name.
+     */
+    public DataStore get(String name) {
+        return handles.computeIfAbsent(name, Handle::new);
+    }
+
+    /**
+     * Get the number of data stores currently open.
+     *
+     * @return Number of open data stores.
+     */
+    public synchronized int openStores() {
+        return openHandles.size();
+    }
+
+    private DataStore acquire(Handle handle, boolean isOpening) throws IOException {
+        List<Handle> victims = null;
+        DataStore store;
+        synchronized (handle) {
+            DataStore closing;
+            synchronized (this) {
+                if (isClosed) {
+                    throw new IOException("Data store manager is closed");
+                }
+                // The data store and the instance detached by an eviction are read together, and the user is counted
+                // with the same lock, so the data store cannot be evicted before it is used
+                closing = handle.closing;
+                handle.closing = null;
+                store = handle.store;
+                if (store != null) {
+                    openHandles.put(handle.name, handle);
+                    handle.users++;
+                    victims = evict();
+                }
+            }
+            if (closing != null) {
+                // The previous instance of the data store is closed before a new one opens the same files
+                handle.closeStore(closing);
+            }
+            if (store == null) {
+                if (!isOpening) {
+                    return null;
+                }
+                DataStore opened = factory.open(handle.name, directory);
+                synchronized (this) {
+                    if (isClosed) {
+                        handle.closing = opened;
+                    } else {
+                        store = opened;
+                        handle.store = store;
+                        openHandles.put(handle.name, handle);
+                        handle.users++;
+                        victims = evict();
+                    }
+                }
+                if (store == null) {
+                    handle.finishClose();
+                    throw new IOException("Data store manager is closed");
+                }
+            }
+        }
+        closeAll(victims);
+        return store;
+    }
+
+    private void release(Handle handle) {
+        List<Handle> victims;
+        synchronized (this) {
+            handle.users--;
+            victims = evict();
+        }
+        closeAll(victims);
+    }
+
+    /**
+     * Select the least recently used data stores without an operation in progress until at most
+     * {@code maxOpenStores} data stores are open. The selected data stores are closed by
+     * {@link #closeAll(List)} without the manager lock.
+     */
+    private List<Handle> evict() {
+        List<Handle> victims = null;
+        Iterator<Handle> iterator = openHandles.values().iterator();
+        while (openHandles.size() > maxOpenStores && iterator.hasNext()) {
+            Handle handle = iterator.next();
+            if (handle.users == 0) {
+                iterator.remove();
+                handle.detach();
+                if (victims == null) {
+                    victims = new ArrayList<>();
+                }
+                victims.add(handle);
+            }
+        }
+        return victims;
+    }
+
+    private void closeAll(List<Handle> victims) {
+        if (victims != null) {
+            for (Handle handle : victims) {
+                synchronized (handle) {
+                    handle.finishClose();
+                }
+            }
+        }
+    }
+
+    private void close(Handle handle) {
+        synchronized (handle) {
+            synchronized (this) {
+                if (handle.store != null && handle.users == 0) {
+                    openHandles.remove(handle.name);
+                    handle.detach();
+                }
+            }
+            handle.finishClose();
+        }
+    }
+
+    /**
+     * Start a background thread storing the open data stores to the disk every {@code period} milliseconds, shared
+     * by all the data stores of this manager.
+     *
+     * @param period the period in milliseconds
+     */
+    public synchronized void startSyncTask(long period) {
+        if (syncTask != null || isClosed) {
+            return;
+        }
+        Thread task = new Thread(() -> {
+            for (; ; ) {
+                try {
+                    Thread.sleep(period);
+                } catch (InterruptedException e) {
+                    return;
+                }
+                List<Handle> open;
+                synchronized (this) {
+                    if (syncTask != Thread.currentThread()) {
+                        return;
+                    }
+                    open = new ArrayList<>(openHandles.values());
+                }
+                for (Handle handle : open) {
+                    handle.syncIfOpen();
+                }
+            }
+        }, "datastore-sync-" + SYNC_THREAD_COUNT.incrementAndGet());
+        task.setDaemon(true);
+        task.setPriority(Thread.MIN_PRIORITY);
+        syncTask = task;
+        task.start();
+    }
+
+    /**
+     * Stop the background thread, then store to the disk and close all the data stores.
+     */
+    @Override
+    public void close() {
+        List<Handle> victims;
+        synchronized (this) {
+            if (syncTask != null) {
+                syncTask.interrupt();
+                syncTask = null;
+            }
+            victims = new ArrayList<>(openHandles.values());
+            for (Handle handle : victims) {
+                handle.detach();
+            }
+            openHandles.clear();
+            isClosed = true;
+        }
+        // The data stores with an operation in progress are closed after the operation
+        closeAll(victims);
+    }
+
+    /**
+     * Handle of a managed data store, opening the data store on demand.
+     */
+    private final class Handle implements DataStore {
+
+        private final String name;
+        private final ErrorState error;
+        // Guarded by the manager
+        private DataStore store;
+        private DataStore closing;
+        private int users;
+        private final Object statisticsLock;
+        // Statistics of the last operation, null until the data store is opened
+        private volatile Statistics statistics;
+
+        private Handle(String name) {
+            this.name = name;
+            error = new ErrorState();
+            statisticsLock = new Object();
+        }
+
+        private DataStore acquire() {
+            error.clear();
+            try {
+                return DataStoreManager.this.acquire(this, true);
+            } catch (IOException e) {
+                error.set(ERROR_CODE_IO_ERROR, e);
+                return null;
+            }
+        }
+
+        private void release(DataStore store) {
+            if (store != null) {
+                error.set(store.getErrorCode(), store.getException());
+                // The statistics are read and published with one lock, so older statistics never replace newer ones
+                synchronized (statisticsLock) {
+                    statistics = new Statistics(store);
+                }
+                DataStoreManager.this.release(this);
+            }
+        }
+
+        private void syncIfOpen() {
+            DataStore store;
+            try {
+                store = DataStoreManager.this.acquire(this, false);
+            } catch (IOException e) {
+                return;
+            }
+            if (store != null) {
+                try {
+                    store.sync();
+                } finally {
+                    DataStoreManager.this.release(this);
+                }
+            }
+        }
+
+        /**
+         * Hand the data store over to {@link #finishClose()}, called with the manager lock.
+         */
+        private void detach() {
+            closing = store;
+            store = null;
+        }
+
+        /**
+         * Close the data store detached from this handle, called with the lock of this handle only.
+         */
+        private void finishClose() {
+            DataStore store;
+            synchronized (DataStoreManager.this) {
+                store = closing;
+                closing = null;
+            }
+            if (store != null) {
+                closeStore(store);
+            }
+        }
+
+        /**
+         * Store the data store to the disk and close it.
+         */
+        private void closeStore(DataStore store) {
+            try {
+                // The removed records of a checkpoint-light queue are stored by a checkpoint only
+                if (store instanceof FileDataStoreQueue) {
+                    ((FileDataStoreQueue) store).checkpoint();
+                } else {
+                    store.sync();
+                }
+                store.close();
+            } catch (Exception ignored) {
+
+            }
+        }
+
+        /**
+         * Open the data store once to load the statistics.
+         */
+        private Statistics load() {
+            Statistics statistics = this.statistics;
+            if (statistics == null) {
+                DataStore store = acquire();
+                release(store);
+                statistics = this.statistics;
+            }
+            return statistics != null ? statistics : Statistics.EMPTY;
+        }
+
+        @Override
+        public boolean write(byte[] b, int off, int len) {
+            DataStore store = acquire();
+            try {
+                return store != null && store.write(b, off, len);
+            } finally {
+                release(store);
+            }
+        }
+
+        @Override
+        public boolean write(byte[] b) {
+            return write(b, 0, b.length);
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len) {
+            DataStore store = acquire();
+            try {
+                return store != null ? store.read(b, off, len) : -1;
+            } finally {
+                release(store);
+            }
+        }
+
+        @Override
+        public int read(byte[] b) {
+            return read(b, 0, b.length);
+        }
+
+        @Override
+        public int readLength() {
+            DataStore store = acquire();
+            try {
+                return store != null ? store.readLength() : -1;
+            } finally {
+                release(store);
+            }
+        }
+
+        @Override
+        public boolean sync() {
+            DataStore store = acquire();
+            try {
+                return store != null && store.sync();
+            } finally {
+                release(store);
+            }
+        }
+
+        @Override
+        public void remove() {
+            DataStore store = acquire();
+            try {
+                if (store != null) {
+                    store.remove();
+                }
+            } finally {
+                release(store);
+            }
+        }
+
+        @Override
+        public boolean isEmpty() {
+            return load().isEmpty;
+        }
+
+        @Override
+        public long count() {
+            return load().count;
+        }
+
+        @Override
+        public long capacity() {
+            return load().capacity;
+        }
+
+        @Override
+        public long usage() {
+            return load().usage;
+        }
+
+        @Override
+        public long free() {
+            return load().free;
+        }
+
+        @Override
+        public int getErrorCode() {
+            return error.getCode();
+        }
+
+        @Override
+        public Exception getException() {
+            return error.getException();
+        }
+
+        /**
+         * Store the data store to the disk and close it until the next operation.
+         */
+        @Override
+        public void close() {
+            DataStoreManager.this.close(this);
+        }
+    }
+
+    /**
+     * Statistics of a data store read together after an operation.
+     */
+    private static final class Statistics {
+        private final static Statistics EMPTY = new Statistics(0, 0, 0, 0, true);
+        private final long count;
+        private final long capacity;
+        private final long usage;
+        private final long free;
+        private final boolean isEmpty;
+
+        private Statistics(DataStore store) {
+            this(store.count(), store.capacity(), store.usage(), store.free(), store.isEmpty());
+        }
+
+        private Statistics(long count, long capacity, long usage, long free, boolean isEmpty) {
+            this.count = count;
+            this.capacity = capacity;
+            this.usage = usage;
+            this.free = free;
+            this.isEmpty = isEmpty;
+        }
+    }
+}
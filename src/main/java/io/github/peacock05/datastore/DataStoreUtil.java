@@ -1,5 +1,12 @@
 package io.github.peacock05.datastore;
 
+import java.io.EOFException;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.channels.WritableByteChannel;
+
 /**
  * Common utility functions used by {@link FileDataStoreQueue} and {@link FileDataStoreStack}
  */
@@ -81,4 +88,44 @@ class DataStoreUtil {
 
         return result;
     }
+
+    /**
+     * Reads the remaining bytes of the buffer from the channel
+     * @param channel the blocking channel
+     * @param buffer the buffer
+     * @return {@code false} if the channel is at the end of the stream before the first byte
+     * @throws IOException Upon error in reading or if the stream ends before the buffer is full.
+     */
+    public static boolean readFully(ReadableByteChannel channel, ByteBuffer buffer) throws IOException {
+        boolean isFirst = true;
+        while (buffer.hasRemaining()) {
+            if (channel.read(buffer) < 0) {
+                if (isFirst) {
+                    return false;
+                }
+                throw new EOFException("Incomplete record in the channel");
+            }
+            isFirst = false;
+        }
+        return true;
+    }
+
+    /**
+     * Transfers a region of the file to the channel without copying it into the heap
+     * @param file the file channel
+     * @param position the start position in the file
+     * @param len the number of bytes to transfer
+     * @param target the blocking channel
+     * @throws IOException Upon error in transferring or if the channel does not accept the bytes.
+     */
+    public static void transferTo(FileChannel file, long position, long len, WritableByteChannel target)
+            throws IOException {
+        for (long done = 0; done < len; ) {
+            long n = file.transferTo(position + done, len - done, target);
+            if (n <= 0) {
+                throw new IOException("Channel does not accept the data");
+            }
+            done += n;
+        }
+    }
 }
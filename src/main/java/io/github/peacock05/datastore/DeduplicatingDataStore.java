@@ -0,0 +1,242 @@
+package io.github.peacock05.datastore;
+
+import java.util.Arrays;
+
+/**
+ * DeduplicatingDataStore rejects the data written again within a window of the last written data, before any
+ * access to the underlying {@link DataStore}.
+ * <p>
+ * The data is identified by a key supplied by the caller with {@link #write(long, byte[], int, int)}, or by the
+ * hash and the length of the data with {@link #write(byte[], int, int)}, in which case a copy of the data is kept
+ * for a full comparison. The two kinds of keys are indexed by separate primitive hash tables, so a key supplied by
+ * the caller never matches the hash of a data. The window is kept in memory only, so duplicates written across a
+ * restart are not detected.
+ */
+public class DeduplicatingDataStore implements DataStore {
+
+    private final static int ERROR_CODE_OK = 0;
+    private final DataStore store;
+    private final LongHashTable keyIndex;
+    private final LongHashTable hashIndex;
+    private final long[] windowKeys;
+    private final byte[][] windowData;
+    private int windowHead;
+    private int windowSize;
+    private long duplicates;
+    private int errorCode;
+    private Exception exception;
+
+    /**
+     * Create the deduplicating data store on top of the data store.
+     *
+     * @param store  the data store holding the data
+     * @param window Number of last written data checked for duplicates.
+     */
+    public DeduplicatingDataStore(DataStore store, int window) {
+        if (window <= 0) {
+            throw new IllegalArgumentException("Window must be positive");
+        }
+        this.store = store;
+        keyIndex = new LongHashTable(window);
+        hashIndex = new LongHashTable(window);
+        windowKeys = new long[window];
+        windowData = new byte[window][];
+    }
+
+    /**
+     * Writes {@code len} bytes from the specified byte array
+     * starting at offset {@code off} to this data store, unless data with the same key was written
+     * within the window.
+     *
+     * @param      key   the key identifying the data.
+     * @param      b     the data.
+     * @param      off   the start offset in the data.
+     * @param      len   the number of bytes to write.
+     * @return     {@code false}  if an I/O error occurs, {@code true} if the data was written or is a duplicate.
+     */
+    public synchronized boolean write(long key, byte[] b, int off, int len) {
+        errorCode = ERROR_CODE_OK;
+        exception = null;
+        if (keyIndex.get(key) >= 0) {
+            duplicates++;
+            return true;
+        }
+        return append(key, null, b, off, len);
+    }
+
+    /**
+     * Writes {@code b.length} bytes from the specified byte array
+     * to this data store, unless data with the same key was written within the window.
+     *
+     * @param      key   the key identifying the data.
+     * @param      b     the data.
+     * @return     {@code false}  if an I/O error occurs, {@code true} if the data was written or is a duplicate.
+     */
+    public boolean write(long key, byte[] b) {
+        return write(key, b, 0, b.length);
+    }
+
+    /**
+     * Writes the data unless the same data was written within the window.
+     *
+     * @return     {@code false}  if an I/O error occurs, {@code true} if the data was written or is a duplicate.
+     */
+    @Override
+    public synchronized boolean write(byte[] b, int off, int len) {
+        errorCode = ERROR_CODE_OK;
+        exception = null;
+        long key = ((long) DataStoreUtil.getHashCode(b, off, len) << 32) | (len & 0xffffffffL);
+        long slot = hashIndex.get(key);
+        if (slot >= 0) {
+            byte[] data = windowData[(int) slot];
+            if (data != null && isEqual(data, b, off, len)) {
+                duplicates++;
+                return true;
+            }
+        }
+        return append(key, Arrays.copyOfRange(b, off, off + len), b, off, len);
+    }
+
+    @Override
+    public boolean write(byte[] b) {
+        return write(b, 0, b.length);
+    }
+
+    private static boolean isEqual(byte[] data, byte[] b, int off, int len) {
+        if (data.length != len) {
+            return false;
+        }
+        for (int i = 0; i < len; i++) {
+            if (data[i] != b[off + i]) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private boolean append(long key, byte[] data, byte[] b, int off, int len) {
+        boolean status = store.write(b, off, len);
+        errorCode = store.getErrorCode();
+        exception = store.getException();
+        if (status) {
+            int slot = (windowHead + windowSize) % windowKeys.length;
+            if (windowSize == windowKeys.length) {
+                // Evict the oldest key, unless a later data with a colliding hash took over its entry
+                LongHashTable evicted = windowData[slot] != null ? hashIndex : keyIndex;
+                if (evicted.get(windowKeys[slot]) == slot) {
+                    evicted.remove(windowKeys[slot]);
+                }
+                windowHead = (windowHead + 1) % windowKeys.length;
+            } else {
+                windowSize++;
+            }
+            windowKeys[slot] = key;
+            windowData[slot] = data;
+            // The data is kept for the keys derived from the data only
+            (data != null ? hashIndex : keyIndex).put(key, slot);
+        }
+        return status;
+    }
+
+    /**
+     * Get the number of duplicates rejected since this data store was created.
+     * @return Number of duplicates.
+     */
+    public synchronized long duplicates() {
+        return duplicates;
+    }
+
+    @Override
+    public synchronized int read(byte[] b, int off, int len) {
+        int size = store.read(b, off, len);
+        errorCode = store.getErrorCode();
+        exception = store.getException();
+        return size;
+    }
+
+    @Override
+    public int read(byte[] b) {
+        return read(b, 0, b.length);
+    }
+
+    @Override
+    public synchronized int readLength() {
+        int size = store.readLength();
+        errorCode = store.getErrorCode();
+        exception = store.getException();
+        return size;
+    }
+
+    @Override
+    public synchronized boolean sync() {
+        boolean status = store.sync();
+        errorCode = store.getErrorCode();
+        exception = store.getException();
+        return status;
+    }
+
+    @Override
+    public synchronized void remove() {
+        store.remove();
+        errorCode = store.getErrorCode();
+        exception = store.getException();
+    }
+
+    @Override
+    public synchronized boolean isEmpty() {
+        errorCode = ERROR_CODE_OK;
+        exception = null;
+        return store.isEmpty();
+    }
+
+    @Override
+    public synchronized long count() {
+        errorCode = ERROR_CODE_OK;
+        exception = null;
+        return store.count();
+    }
+
+    @Override
+    public synchronized long capacity() {
+        errorCode = ERROR_CODE_OK;
+        exception = null;
+        return store.capacity();
+    }
+
+    @Override
+    public synchronized long usage() {
+        errorCode = ERROR_CODE_OK;
+        exception = null;
+        return store.usage();
+    }
+
+    @Override
+    public synchronized long free() {
+        errorCode = ERROR_CODE_OK;
+        exception = null;
+        return store.free();
+    }
+
+    /**
+     * Get the data store holding the data.
+     * @return the underlying data store
+     */
+    public DataStore getDataStore() {
+        return store;
+    }
+
+    @Override
+    public int getErrorCode() {
+        return errorCode;
+    }
+
+    @Override
+    public Exception getException() {
+        return exception;
+    }
+
+    @Override
+    public synchronized void close() throws Exception {
+        store.close();
+    }
+}
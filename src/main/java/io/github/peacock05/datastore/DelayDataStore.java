@@ -0,0 +1,408 @@
+package io.github.peacock05.datastore;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.Map;
+import java.util.TreeMap;
+
+/**
+ * DelayDataStore implements a persistent queue where each data carries a not-before time, and becomes visible
+ * to {@link #read(byte[], int, int)} and {@link #poll(byte[], int, int, long)} only when it is due.
+ * <p>
+ * The data is stored in time buckets of {@code bucketMillis} milliseconds, each bucket being a
+ * {@link FileDataStoreQueue} that is deleted once empty. The buckets are served in time order and the data of a
+ * bucket in FIFO order, so a data may be delayed behind an earlier written data of the same bucket by at most
+ * the bucket duration. Each data is stored with its not-before time. A data that cannot be read is kept at the head
+ * and reported by {@link #getErrorCode()}, until it is skipped with {@link #remove()}.
+ * <p>
+ * | Not before time, Data 0, Data 1, ..... Data N
+ */
+public class DelayDataStore implements DataStore {
+
+    private final static int ERROR_CODE_OK = 0;
+    private final static int ERROR_CODE_IO_ERROR = 1;
+    private final static int TIME_LENGTH = 8;
+    private final String queueName;
+    private final String directory;
+    private final long limit;
+    private final long bucketMillis;
+    private final TreeMap<Long, FileDataStoreQueue> buckets;
+    private final FrameBuffer head;
+    private byte[] frame;
+    private int headSize;
+    private int errorCode;
+    private Exception exception;
+
+    /**
+     * Create the file based persistent delay queue.
+     *
+     * @param queueName    Name of the queue
+     * @param directory    Directory to store the files
+     * @param limit        Maximum amount of space of each time bucket.
+     * @param bucketMillis Duration of a time bucket in milliseconds.
+     * @throws IOException Upon error in creating, reading or writing to the files.
+     */
+    public DelayDataStore(String queueName, String directory, long limit, long bucketMillis) throws IOException {
+        if (bucketMillis <= 0) {
+            throw new IllegalArgumentException("Bucket duration must be positive");
+        }
+        this.queueName = queueName;
+        this.directory = directory;
+        this.limit = limit;
+        this.bucketMillis = bucketMillis;
+        buckets = new TreeMap<>();
+        head = new FrameBuffer();
+        frame = new byte[256];
+        headSize = -1;
+
+        String prefix = queueName + ".d";
+        File[] files = new File(directory).listFiles((dir, name) -> name.startsWith(prefix) && name.endsWith(".fifo"));
+        if (files != null) {
+            try {
+                for (File file : files) {
+                    String name = file.getName();
+                    long bucket;
+                    try {
+                        bucket = Long.parseLong(name.substring(prefix.length(), name.length() - ".fifo".length()));
+                    } catch (NumberFormatException e) {
+                        continue;
+                    }
+                    FileDataStoreQueue queue = new FileDataStoreQueue(prefix + bucket, directory, limit);
+                    if (queue.isEmpty()) {
+                        queue.close();
+                        deleteBucket(bucket);
+                    } else {
+                        buckets.put(bucket, queue);
+                    }
+                }
+            } catch (IOException e) {
+                close();
+                throw e;
+            }
+        }
+    }
+
+    /**
+     * Writes {@code len} bytes from the specified byte array
+     * starting at offset {@code off} to this data store, to be delivered not before the given time.
+     *
+     * @param      notBefore the time in milliseconds since the epoch when the data becomes due.
+     * @param      b         the data.
+     * @param      off       the start offset in the data.
+     * @param      len       the number of bytes to write.
+     * @return     {@code false}  if an I/O error occurs.
+     */
+    public synchronized boolean write(long notBefore, byte[] b, int off, int len) {
+        boolean status = false;
+        errorCode = ERROR_CODE_OK;
+        exception = null;
+        long bucket = Math.floorDiv(notBefore, bucketMillis);
+        FileDataStoreQueue queue = buckets.get(bucket);
+        try {
+            if (queue == null) {
+                queue = new FileDataStoreQueue(queueName + ".d" + bucket, directory, limit);
+                if (!buckets.isEmpty() && bucket < buckets.firstKey()) {
+                    // The data at the head of the new bucket precedes the cached head
+                    headSize = -1;
+                }
+                buckets.put(bucket, queue);
+            }
+            if (frame.length < TIME_LENGTH + len) {
+                frame = new byte[Math.max(frame.length * 2, TIME_LENGTH + len)];
+            }
+            DataStoreUtil.putLong(notBefore, frame, 0);
+            System.arraycopy(b, off, frame, TIME_LENGTH, len);
+            status = queue.write(frame, 0, TIME_LENGTH + len);
+            errorCode = queue.getErrorCode();
+            exception = queue.getException();
+            // The new data may be due before the one waited for
+            notifyAll();
+        } catch (IOException e) {
+            errorCode = ERROR_CODE_IO_ERROR;
+            exception = e;
+        }
+        return status;
+    }
+
+    /**
+     * Writes {@code b.length} bytes from the specified byte array
+     * to this data store, to be delivered not before the given time.
+     *
+     * @param      notBefore the time in milliseconds since the epoch when the data becomes due.
+     * @param      b         the data.
+     * @return     {@code false}  if an I/O error occurs.
+     */
+    public boolean write(long notBefore, byte[] b) {
+        return write(notBefore, b, 0, b.length);
+    }
+
+    /**
+     * Writes the data to be delivered immediately.
+     */
+    @Override
+    public boolean write(byte[] b, int off, int len) {
+        return write(System.currentTimeMillis(), b, off, len);
+    }
+
+    @Override
+    public boolean write(byte[] b) {
+        return write(System.currentTimeMillis(), b, 0, b.length);
+    }
+
+    /**
+     * Reads the due data at the head of this data store.
+     *
+     * @return     the total number of bytes read into the buffer, or
+     *             {@code -1} if there is no due data in the data store.
+     */
+    @Override
+    public synchronized int read(byte[] b, int off, int len) {
+        errorCode = ERROR_CODE_OK;
+        exception = null;
+        int size = -1;
+        long due = dueTime();
+        if (errorCode != ERROR_CODE_OK) {
+            size = 0;
+        } else if (due >= 0 && due <= System.currentTimeMillis()) {
+            size = 0;
+            if (len >= headSize - TIME_LENGTH) {
+                size = headSize - TIME_LENGTH;
+                System.arraycopy(head.ensure(headSize), TIME_LENGTH, b, off, size);
+            }
+        }
+        return size;
+    }
+
+    @Override
+    public int read(byte[] b) {
+        return read(b, 0, b.length);
+    }
+
+    /**
+     * Waits until a data is due, then reads and removes it.
+     *
+     * @param      b       the buffer into which the data is read.
+     * @param      off     the start offset in array {@code b} at which the data is written.
+     * @param      len     the maximum number of bytes read.
+     * @param      timeout the maximum time to wait in milliseconds.
+     * @return     the total number of bytes read into the buffer, {@code 0} if the data cannot be read, or
+     *             {@code -1} if no data became due before the timeout.
+     * @throws InterruptedException if the current thread is interrupted while waiting.
+     */
+    public synchronized int poll(byte[] b, int off, int len, long timeout) throws InterruptedException {
+        long deadline = System.currentTimeMillis() + timeout;
+        for (; ; ) {
+            long now = System.currentTimeMillis();
+            errorCode = ERROR_CODE_OK;
+            exception = null;
+            long due = dueTime();
+            if (errorCode != ERROR_CODE_OK) {
+                return 0;
+            }
+            if (due >= 0 && due <= now) {
+                int size = read(b, off, len);
+                // The data is removed only once it is read completely
+                if (errorCode == ERROR_CODE_OK && size == headSize - TIME_LENGTH) {
+                    remove();
+                }
+                return size;
+            }
+            if (now >= deadline) {
+                return -1;
+            }
+            wait(due < 0 ? deadline - now : Math.min(deadline, due) - now);
+        }
+    }
+
+    @Override
+    public synchronized int readLength() {
+        errorCode = ERROR_CODE_OK;
+        exception = null;
+        long due = dueTime();
+        if (errorCode != ERROR_CODE_OK) {
+            return 0;
+        }
+        return due >= 0 && due <= System.currentTimeMillis() ? headSize - TIME_LENGTH : -1;
+    }
+
+    /**
+     * Get the time when the data at the head of this data store becomes due.
+     *
+     * @return the time in milliseconds since the epoch, or {@code -1} if the data store is empty or the data at the
+     * head cannot be read, in which case {@link #getErrorCode()} is not {@code 0}.
+     */
+    public synchronized long nextDueTime() {
+        errorCode = ERROR_CODE_OK;
+        exception = null;
+        return dueTime();
+    }
+
+    /**
+     * Load the data at the head of the first time bucket, and get its not-before time.
+     */
+    private long dueTime() {
+        while (headSize < 0 && !buckets.isEmpty()) {
+            Map.Entry<Long, FileDataStoreQueue> entry = buckets.firstEntry();
+            FileDataStoreQueue queue = entry.getValue();
+            int length = queue.readLength();
+            int size = length > 0 ? queue.readFrame(head) : length;
+            if (queue.getErrorCode() != ERROR_CODE_OK || size != length) {
+                // An I/O error or a hash mismatch, the data stays at the head
+                errorCode = ERROR_CODE_IO_ERROR;
+                exception = queue.getException() != null ? queue.getException()
+                        : new IOException("Unable to read the data");
+                return -1;
+            }
+            if (size < 0) {
+                removeBucket(entry.getKey());
+            } else if (size < TIME_LENGTH) {
+                // The data was read completely but has no not-before time
+                queue.remove();
+            } else {
+                headSize = size;
+            }
+        }
+        return headSize >= 0 ? DataStoreUtil.getLong(head.ensure(headSize), 0) : -1;
+    }
+
+    @Override
+    public synchronized boolean sync() {
+        boolean status = true;
+        errorCode = ERROR_CODE_OK;
+        exception = null;
+        for (FileDataStoreQueue queue : buckets.values()) {
+            if (!queue.sync()) {
+                status = false;
+                errorCode = queue.getErrorCode();
+                exception = queue.getException();
+            }
+        }
+        return status;
+    }
+
+    /**
+     * Remove the data at the head of this data store, whether it is due or not, or whether it can be read or not.
+     */
+    @Override
+    public synchronized void remove() {
+        errorCode = ERROR_CODE_OK;
+        exception = null;
+        // The buckets left after loading the head are not empty, even if the data at the head cannot be read
+        dueTime();
+        if (!buckets.isEmpty()) {
+            Map.Entry<Long, FileDataStoreQueue> entry = buckets.firstEntry();
+            FileDataStoreQueue queue = entry.getValue();
+            queue.remove();
+            errorCode = queue.getErrorCode();
+            exception = queue.getException();
+            headSize = -1;
+            if (queue.isEmpty()) {
+                removeBucket(entry.getKey());
+            }
+        }
+    }
+
+    /**
+     * Check if the data store is empty, including the data not due yet.
+     * @return {@code true}  if the data store is empty
+     */
+    @Override
+    public synchronized boolean isEmpty() {
+        errorCode = ERROR_CODE_OK;
+        exception = null;
+        dueTime();
+        return buckets.isEmpty();
+    }
+
+    /**
+     * Get the numbers of elements stored into the data store, including the data not due yet.
+     * @return Number of elements stored in the data store.
+     */
+    @Override
+    public synchronized long count() {
+        long count = 0;
+        errorCode = ERROR_CODE_OK;
+        exception = null;
+        for (FileDataStoreQueue queue : buckets.values()) {
+            count += queue.count();
+        }
+        return count;
+    }
+
+    /**
+     * Get the capacity of a time bucket.
+     * @return capacity
+     */
+    @Override
+    public synchronized long capacity() {
+        errorCode = ERROR_CODE_OK;
+        exception = null;
+        return limit;
+    }
+
+    @Override
+    public synchronized long usage() {
+        long usage = 0;
+        errorCode = ERROR_CODE_OK;
+        exception = null;
+        for (FileDataStoreQueue queue : buckets.values()) {
+            usage += queue.usage();
+        }
+        return usage;
+    }
+
+    /**
+     * Get the amount of free space available in the time bucket with the least free space.
+     * @return Amount of space left by this data store in bytes.
+     */
+    @Override
+    public synchronized long free() {
+        long free = limit;
+        errorCode = ERROR_CODE_OK;
+        exception = null;
+        for (FileDataStoreQueue queue : buckets.values()) {
+            free = Math.min(free, queue.free());
+        }
+        return free;
+    }
+
+    @Override
+    public int getErrorCode() {
+        return errorCode;
+    }
+
+    @Override
+    public Exception getException() {
+        return exception;
+    }
+
+    @Override
+    public synchronized void close() {
+        for (FileDataStoreQueue queue : buckets.values()) {
+            try {
+                queue.close();
+            } catch (IOException ignored) {
+
+            }
+        }
+        buckets.clear();
+    }
+
+    private void removeBucket(long bucket) {
+        FileDataStoreQueue queue = buckets.remove(bucket);
+        try {
+            queue.close();
+        } catch (IOException ignored) {
+
+        }
+        deleteBucket(bucket);
+    }
+
+    private void deleteBucket(long bucket) {
+        String name = queueName + ".d" + bucket;
+        if (!new File(directory, name + ".fifo").delete()) {
+            errorCode = ERROR_CODE_IO_ERROR;
+            exception = new IOException("Unable to delete " + name);
+        }
+    }
+}
@@ -0,0 +1,42 @@
+package io.github.peacock05.datastore;
+
+/**
+ * ErrorState keeps the error code and the exception of the last operation of each thread on a data store, so the
+ * threads sharing a data store do not see the errors of each other.
+ */
+class ErrorState {
+
+    private final ThreadLocal<Entry> entries = ThreadLocal.withInitial(Entry::new);
+
+    /**
+     * Set the error of the last operation of the current thread.
+     *
+     * @param code      the error code, {@code 0} for no error
+     * @param exception the exception, or {@code null}
+     */
+    void set(int code, Exception exception) {
+        Entry entry = entries.get();
+        entry.code = code;
+        entry.exception = exception;
+    }
+
+    /**
+     * Clear the error of the current thread at the start of an operation.
+     */
+    void clear() {
+        set(0, null);
+    }
+
+    int getCode() {
+        return entries.get().code;
+    }
+
+    Exception getException() {
+        return entries.get().exception;
+    }
+
+    private static final class Entry {
+        private int code;
+        private Exception exception;
+    }
+}
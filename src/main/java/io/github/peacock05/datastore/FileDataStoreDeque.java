@@ -0,0 +1,525 @@
+package io.github.peacock05.datastore;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+
+/**
+ * FileDataStoreDeque implements a persistent double-ended queue that allows data to be read, write and remove at
+ * both ends, so it serves data in FIFO order from the front and in LIFO order from the back.
+ * <p>
+ * The data is stored in a ring and every frame carries its header before and after the data, so the ring can be
+ * walked in both directions. A frame reaching the end of the file continues at the start of the ring.
+ * <p>
+ * Persistent storage format
+ * ----------------------------------------------------------------------------
+ * | Magic number
+ * | Hash
+ * | Front Index
+ * | Rear Index
+ * | Count
+ * |
+ * <p>
+ * | Magic number
+ * | Hash
+ * | Front Index
+ * | Rear Index
+ * | Count
+ * |
+ * | 0x5b77f49e, Data length, ~Data length, Data Hash, Data 0, Data 1, ..... Data N,
+ * | 0x5b77f49e, Data length, ~Data length, Data Hash
+ */
+public class FileDataStoreDeque implements DataStore {
+
+    private final static int ERROR_CODE_OK = 0;
+    private final static int ERROR_CODE_IO_ERROR = 1;
+    private final static int ERROR_CODE_LN_ERROR = 2;
+    private final static int MAGIC_NUMBER = 0x34719e20;
+    private final static int FRAME_IDENTIFIER = 0x5b77f49e;
+    private final static int HEADER_LENGTH = 16;
+    private final RandomAccessFile file;
+    private final byte[] metaBlock, dataBlockHeader;
+    private final long capacity;
+    private final int offset;
+    private final long ring;
+    private byte[] frame;
+    private long frontIndex;
+    private long rearIndex;
+    private long count;
+    private long used;
+    private int frameLength;
+    private boolean isMetaBlockUpdated;
+    private int errorCode;
+    private Exception exception;
+
+    /**
+     * Create the file based persistent data store to read, write and delete the data at both ends.
+     *
+     * @param queueName Name of the queue
+     * @param directory Directory to store the file
+     * @param limit     Maximum amount of space.
+     * @throws IOException Upon error in creating, reading or writing to the file.
+     */
+    public FileDataStoreDeque(String queueName, String directory, long limit) throws IOException {
+        metaBlock = new byte[32];
+        dataBlockHeader = new byte[HEADER_LENGTH];
+        capacity = limit;
+        offset = metaBlock.length * 2;
+        ring = capacity - offset;
+        if (ring <= 2 * HEADER_LENGTH) {
+            throw new IllegalArgumentException("Limit is too small");
+        }
+        frame = new byte[256];
+        file = new RandomAccessFile(new File(directory, queueName + ".deque"), "rw");
+        if (!readMetaData()) {
+            frontIndex = 0;
+            rearIndex = 0;
+            count = 0;
+            writeMetaData();
+        }
+        used = count == 0 ? 0 : (rearIndex - frontIndex + ring - 1) % ring + 1;
+    }
+
+    private boolean readMetaData() {
+
+        boolean status = false;
+        errorCode = ERROR_CODE_OK;
+        exception = null;
+        for (int i = 0; i < 2; i++) {
+            int pos = i * metaBlock.length;
+            try {
+                file.seek(pos);
+                file.readFully(metaBlock);
+                int magic = DataStoreUtil.getInt(metaBlock, 0);
+                int hash = DataStoreUtil.getInt(metaBlock, 4);
+                if (magic == MAGIC_NUMBER && hash == DataStoreUtil.getHashCode(metaBlock, 8, metaBlock.length - 8)) {
+                    frontIndex = DataStoreUtil.getLong(metaBlock, 8);
+                    rearIndex = DataStoreUtil.getLong(metaBlock, 16);
+                    count = DataStoreUtil.getLong(metaBlock, 24);
+                    status = frontIndex >= 0 && frontIndex < ring && rearIndex >= 0 && rearIndex < ring;
+                    break;
+                }
+            } catch (IOException e) {
+                errorCode = ERROR_CODE_IO_ERROR;
+                exception = e;
+            }
+        }
+
+        return status;
+    }
+
+    private boolean writeMetaData() {
+
+        boolean status = false;
+        errorCode = ERROR_CODE_OK;
+        exception = null;
+        DataStoreUtil.putInt(MAGIC_NUMBER, metaBlock, 0);
+        DataStoreUtil.putLong(frontIndex, metaBlock, 8);
+        DataStoreUtil.putLong(rearIndex, metaBlock, 16);
+        DataStoreUtil.putLong(count, metaBlock, 24);
+        int hash = DataStoreUtil.getHashCode(metaBlock, 8, metaBlock.length - 8);
+        DataStoreUtil.putInt(hash, metaBlock, 4);
+
+        for (int i = 0; i < 2; i++) {
+            int pos = i * metaBlock.length;
+            try {
+                file.seek(pos);
+                file.write(metaBlock);
+                file.getFD().sync();
+                status = true;
+            } catch (IOException e) {
+                errorCode = ERROR_CODE_IO_ERROR;
+                exception = e;
+            }
+        }
+
+        return status;
+    }
+
+    private long wrap(long index) {
+        return index >= ring ? index - ring : index < 0 ? index + ring : index;
+    }
+
+    private void writeRing(long index, byte[] b, int off, int len) throws IOException {
+        int head = (int) Math.min(len, ring - index);
+        file.seek(offset + index);
+        file.write(b, off, head);
+        if (head < len) {
+            file.seek(offset);
+            file.write(b, off + head, len - head);
+        }
+    }
+
+    private void readRing(long index, byte[] b, int off, int len) throws IOException {
+        int head = (int) Math.min(len, ring - index);
+        file.seek(offset + index);
+        file.readFully(b, off, head);
+        if (head < len) {
+            file.seek(offset);
+            file.readFully(b, off + head, len - head);
+        }
+    }
+
+    /**
+     * Writes {@code len} bytes from the specified byte array
+     * starting at offset {@code off} to the front of this data store.
+     *
+     * @param      b     the data.
+     * @param      off   the start offset in the data.
+     * @param      len   the number of bytes to write.
+     * @return     {@code false}  if an I/O error occurs or there is no space.
+     */
+    public boolean pushFront(byte[] b, int off, int len) {
+        return push(true, b, off, len);
+    }
+
+    /**
+     * Writes {@code b.length} bytes from the specified byte array
+     * to the front of this data store.
+     *
+     * @param      b   the data.
+     * @return     {@code false}  if an I/O error occurs or there is no space.
+     */
+    public boolean pushFront(byte[] b) {
+        return push(true, b, 0, b.length);
+    }
+
+    /**
+     * Writes {@code len} bytes from the specified byte array
+     * starting at offset {@code off} to the back of this data store.
+     *
+     * @param      b     the data.
+     * @param      off   the start offset in the data.
+     * @param      len   the number of bytes to write.
+     * @return     {@code false}  if an I/O error occurs or there is no space.
+     */
+    public boolean pushBack(byte[] b, int off, int len) {
+        return push(false, b, off, len);
+    }
+
+    /**
+     * Writes {@code b.length} bytes from the specified byte array
+     * to the back of this data store.
+     *
+     * @param      b   the data.
+     * @return     {@code false}  if an I/O error occurs or there is no space.
+     */
+    public boolean pushBack(byte[] b) {
+        return push(false, b, 0, b.length);
+    }
+
+    private synchronized boolean push(boolean isFront, byte[] b, int off, int len) {
+        boolean status = false;
+        int flc = len + 2 * HEADER_LENGTH;
+        errorCode = ERROR_CODE_OK;
+        exception = null;
+        if (used + flc <= ring) {
+            if (frame.length < flc) {
+                frame = new byte[Math.max(frame.length * 2, flc)];
+            }
+            DataStoreUtil.putInt(FRAME_IDENTIFIER, frame, 0);
+            DataStoreUtil.putInt(len, frame, 4);
+            DataStoreUtil.putInt(~len, frame, 8);
+            DataStoreUtil.putInt(DataStoreUtil.getHashCode(b, off, len), frame, 12);
+            System.arraycopy(b, off, frame, HEADER_LENGTH, len);
+            System.arraycopy(frame, 0, frame, HEADER_LENGTH + len, HEADER_LENGTH);
+            try {
+                long index = isFront ? wrap(frontIndex - flc) : rearIndex;
+                writeRing(index, frame, 0, flc);
+                if (isFront) {
+                    frontIndex = index;
+                } else {
+                    rearIndex = wrap(rearIndex + flc);
+                }
+                used += flc;
+                count++;
+                isMetaBlockUpdated = true;
+                status = true;
+            } catch (IOException e) {
+                errorCode = ERROR_CODE_IO_ERROR;
+                exception = e;
+            }
+        }
+        return status;
+    }
+
+    /**
+     * Reads the header at the front or at the back of this data store into {@code frameLength}.
+     *
+     * @return the ring index of the data, or {@code -1} if the data store is empty or the header is corrupted.
+     */
+    private long readHeader(boolean isFront) throws IOException {
+        frameLength = -1;
+        if (count == 0) {
+            return -1;
+        }
+        readRing(isFront ? frontIndex : wrap(rearIndex - HEADER_LENGTH), dataBlockHeader, 0, HEADER_LENGTH);
+        int fid = DataStoreUtil.getInt(dataBlockHeader, 0);
+        int dlc = DataStoreUtil.getInt(dataBlockHeader, 4);
+        int negated = DataStoreUtil.getInt(dataBlockHeader, 8);
+        if (fid != FRAME_IDENTIFIER || dlc != (~negated) || dlc < 0 || dlc + 2L * HEADER_LENGTH > used) {
+            return -1;
+        }
+        frameLength = dlc;
+        return isFront ? wrap(frontIndex + HEADER_LENGTH) : wrap(rearIndex - HEADER_LENGTH - dlc);
+    }
+
+    private synchronized int readAt(boolean isFront, byte[] b, int off, int len) {
+        int size = -1;
+        errorCode = ERROR_CODE_OK;
+        exception = null;
+        if (count > 0) {
+            size = 0;
+            try {
+                long index = readHeader(isFront);
+                int hash = DataStoreUtil.getInt(dataBlockHeader, 12);
+                if (index >= 0 && len >= frameLength) {
+                    readRing(index, b, off, frameLength);
+                    if (DataStoreUtil.getHashCode(b, off, frameLength) == hash) {
+                        size = frameLength;
+                    }
+                }
+            } catch (IOException e) {
+                errorCode = ERROR_CODE_IO_ERROR;
+                exception = e;
+            }
+        }
+        return size;
+    }
+
+    private synchronized int readLengthAt(boolean isFront) {
+        int size = -1;
+        errorCode = ERROR_CODE_OK;
+        exception = null;
+        if (count > 0) {
+            size = 0;
+            try {
+                if (readHeader(isFront) >= 0) {
+                    size = frameLength;
+                }
+            } catch (IOException e) {
+                errorCode = ERROR_CODE_IO_ERROR;
+                exception = e;
+            }
+        }
+        return size;
+    }
+
+    private synchronized void removeAt(boolean isFront) {
+        errorCode = ERROR_CODE_OK;
+        exception = null;
+        if (count > 0) {
+            try {
+                isMetaBlockUpdated = true;
+                if (readHeader(isFront) >= 0) {
+                    int flc = frameLength + 2 * HEADER_LENGTH;
+                    if (isFront) {
+                        frontIndex = wrap(frontIndex + flc);
+                    } else {
+                        rearIndex = wrap(rearIndex - flc);
+                    }
+                    used -= flc;
+                    count--;
+                } else {
+                    // There is corruption in the file pointers
+                    // Let's drop all the data
+                    count = 0;
+                    used = 0;
+                    rearIndex = frontIndex;
+                    errorCode = ERROR_CODE_LN_ERROR;
+                }
+            } catch (IOException e) {
+                errorCode = ERROR_CODE_IO_ERROR;
+                exception = e;
+            }
+        }
+    }
+
+    private synchronized int pop(boolean isFront, byte[] b, int off, int len) {
+        int size = readAt(isFront, b, off, len);
+        if (size >= 0 && size == frameLength) {
+            removeAt(isFront);
+        }
+        return size;
+    }
+
+    /**
+     * Reads and removes the data at the front of this data store. The data is not removed if it is larger than
+     * {@code len}.
+     *
+     * @param      b     the buffer into which the data is read.
+     * @param      off   the start offset in array {@code b} at which the data is written.
+     * @param      len   the maximum number of bytes read.
+     * @return     the total number of bytes read into the buffer, or
+     *             {@code -1} if there is no more elements in the data store.
+     */
+    public int popFront(byte[] b, int off, int len) {
+        return pop(true, b, off, len);
+    }
+
+    /**
+     * Reads and removes the data at the front of this data store.
+     *
+     * @param      b   the buffer into which the data is read.
+     * @return     the total number of bytes read into the buffer, or
+     *             {@code -1} if there is no more elements in the data store.
+     */
+    public int popFront(byte[] b) {
+        return pop(true, b, 0, b.length);
+    }
+
+    /**
+     * Reads and removes the data at the back of this data store. The data is not removed if it is larger than
+     * {@code len}.
+     *
+     * @param      b     the buffer into which the data is read.
+     * @param      off   the start offset in array {@code b} at which the data is written.
+     * @param      len   the maximum number of bytes read.
+     * @return     the total number of bytes read into the buffer, or
+     *             {@code -1} if there is no more elements in the data store.
+     */
+    public int popBack(byte[] b, int off, int len) {
+        return pop(false, b, off, len);
+    }
+
+    /**
+     * Reads and removes the data at the back of this data store.
+     *
+     * @param      b   the buffer into which the data is read.
+     * @return     the total number of bytes read into the buffer, or
+     *             {@code -1} if there is no more elements in the data store.
+     */
+    public int popBack(byte[] b) {
+        return pop(false, b, 0, b.length);
+    }
+
+    /**
+     * Reads the data at the back of this data store without removing it.
+     *
+     * @param      b     the buffer into which the data is read.
+     * @param      off   the start offset in array {@code b} at which the data is written.
+     * @param      len   the maximum number of bytes read.
+     * @return     the total number of bytes read into the buffer, or
+     *             {@code -1} if there is no more elements in the data store.
+     */
+    public int readBack(byte[] b, int off, int len) {
+        return readAt(false, b, off, len);
+    }
+
+    /**
+     * Returns the size of the data at the back of this data store.
+     * @return     the size of the data, or
+     *             {@code -1} if there is no more elements in the data store.
+     */
+    public int readBackLength() {
+        return readLengthAt(false);
+    }
+
+    /**
+     * Remove the data at the back of this data store.
+     */
+    public void removeBack() {
+        removeAt(false);
+    }
+
+    /**
+     * Writes the data to the back of this data store.
+     */
+    @Override
+    public boolean write(byte[] b, int off, int len) {
+        return push(false, b, off, len);
+    }
+
+    @Override
+    public boolean write(byte[] b) {
+        return push(false, b, 0, b.length);
+    }
+
+    /**
+     * Reads the data at the front of this data store.
+     */
+    @Override
+    public int read(byte[] b, int off, int len) {
+        return readAt(true, b, off, len);
+    }
+
+    @Override
+    public int read(byte[] b) {
+        return readAt(true, b, 0, b.length);
+    }
+
+    @Override
+    public int readLength() {
+        return readLengthAt(true);
+    }
+
+    /**
+     * Remove the data at the front of this data store.
+     */
+    @Override
+    public void remove() {
+        removeAt(true);
+    }
+
+    @Override
+    public synchronized boolean sync() {
+        boolean status = true;
+        errorCode = ERROR_CODE_OK;
+        exception = null;
+        if (isMetaBlockUpdated) {
+            isMetaBlockUpdated = false;
+            status = writeMetaData();
+        }
+        return status;
+    }
+
+    @Override
+    public synchronized boolean isEmpty() {
+        errorCode = ERROR_CODE_OK;
+        exception = null;
+        return count == 0;
+    }
+
+    @Override
+    public synchronized long count() {
+        errorCode = ERROR_CODE_OK;
+        exception = null;
+        return count;
+    }
+
+    @Override
+    public synchronized long capacity() {
+        errorCode = ERROR_CODE_OK;
+        exception = null;
+        return capacity;
+    }
+
+    @Override
+    public synchronized long usage() {
+        errorCode = ERROR_CODE_OK;
+        exception = null;
+        return used;
+    }
+
+    @Override
+    public synchronized long free() {
+        errorCode = ERROR_CODE_OK;
+        exception = null;
+        return ring - used;
+    }
+
+    @Override
+    public int getErrorCode() {
+        return errorCode;
+    }
+
+    @Override
+    public Exception getException() {
+        return exception;
+    }
+
+    @Override
+    public synchronized void close() throws IOException {
+        file.close();
+    }
+}
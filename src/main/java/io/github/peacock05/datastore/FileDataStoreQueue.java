@@ -3,7 +3,22 @@ package io.github.peacock05.datastore;
 import java.io.EOFException;
 import java.io.File;
 import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
 import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.channels.WritableByteChannel;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.atomic.AtomicInteger;
 
 /**
  * FileDataStoreQueue implements a persistent queue that allows data to be read, write and remove in FIFO order
@@ -24,325 +39,2003 @@ import java.io.RandomAccessFile;
  * | Count
  * |
  * | 0x5b77f49e, Data length, ~Data length, Data Hash, Data 0, Data 1, ..... Data N
+ * | 0x5b77f49f, Data length, ~Data length, Data Hash, Expiry time, Data 0, Data 1, ..... Data N
+ * | 0x5b77f4a2, Data length, ~Data length, Data Hash, Data 0, Data 1, ..... Data N
+ * <p>
+ * The second frame format is used by the records written with a time to live. Expired records at the front are
+ * skipped by the reads and can be reclaimed by {@link #purgeExpired()} without reading their data.
+ * <p>
+ * The third frame format is used by the chunks of a record written with {@link #openWriteStream()}, except the last
+ * chunk which uses the first format, so a record written with {@link #write(byte[])} reads as a single chunk. The
+ * reads of single records reject a chunk with the error code {@code 3}, and {@link #remove()} removes all the chunks
+ * of the record, but each chunk counts as a record in {@link #count()}, so a queue holding records written with
+ * streams should be consumed with {@link #openReadStream()} only.
+ * <p>
+ * In checkpoint-light mode every frame is followed by a 4 byte zero terminator, written together with the frame,
+ * so the tail written after the last checkpoint of the meta block can be recovered by scanning forward from the
+ * persisted rear index. The identifier of a frame written on an odd lap of the rear index around the file has the
+ * bit {@code 0x00800000} set, and the meta block records the lap of the rear index with its magic number, so the
+ * recovery stops at a frame left by an earlier lap.
+ * <p>
+ * In shared mode the meta block is mapped and locked by every operation, so processes opening the same file see
+ * the records written and removed by each other.
+ * <p>
+ * The capacity set by {@link #resize(long)} is stored in a separate file with the extension {@code .cap}, in two
+ * copies of
+ * <p>
+ * | Magic number, Hash, Capacity, Previous capacity, Front Index, Rear Index
+ * <p>
+ * The capacity is written as pending before the pointers of the resized layout, and the previous capacity is used
+ * on open unless the persisted pointers are the ones of the resized layout.
  */
-public class FileDataStoreQueue implements DataStore {
+public class FileDataStoreQueue implements DataStore, FrameStore {
 
     private final static int ERROR_CODE_OK = 0;
     private final static int ERROR_CODE_IO_ERROR = 1;
+    private final static int ERROR_CODE_LN_ERROR = 2;
+    private final static int ERROR_CODE_NOT_SUPPORTED = 3;
     private final static int MAGIC_NUMBER = 0x34719e13;
+    private final static int CHECKPOINT_MAGIC_NUMBER = 0x34719e14;
+    private final static int ODD_LAP_CHECKPOINT_MAGIC_NUMBER = 0x34719e17;
+    private final static int CAPACITY_MAGIC_NUMBER = 0x34719e15;
+    private final static int PENDING_CAPACITY_MAGIC_NUMBER = 0x34719e16;
+    private final static int CAPACITY_BLOCK_LENGTH = 40;
     private final static int FRAME_IDENTIFIER = 0x5b77f49e;
+    private final static int TTL_FRAME_IDENTIFIER = 0x5b77f49f;
+    private final static int CHUNK_FRAME_IDENTIFIER = 0x5b77f4a2;
+    private final static int ODD_LAP_FLAG = 0x00800000;
+    private final static int DEFAULT_CHUNK_SIZE = 64 * 1024;
+    private final static int TTL_HEADER_LENGTH = HEADER_LENGTH + 8;
+    private final static int TERMINATOR_LENGTH = 4;
+    private final static long ABANDON_CHECK_INTERVAL = 100;
+    private final static AtomicInteger PURGE_THREAD_COUNT = new AtomicInteger();
     private final RandomAccessFile file;
-    private final byte[] metaBlock, dataBlockHeader;
-    private final long capacity;
+    private final File capacityPath;
+    private final byte[] metaBlock, dataBlockHeader, ttlBlockHeader;
+    private long capacity;
     private final int offset;
+    private final long checkpointBytes;
+    private final long checkpointMillis;
+    private final int reserve;
+    private final SequenceIndex index;
+    private final SharedMetaBlock shared;
+    private final CopyOnWriteArrayList<Runnable> writeListeners;
+    private final ArrayDeque<LeasedRecord> leases;
+    private final Set<Thread> abortedOwners;
     private long frontIndex;
     private long rearIndex;
     private long count;
+    private long headSequence;
+    private long checkpointFrontIndex;
+    private long checkpointTime;
+    private long uncheckpointedBytes;
     private boolean isMetaBlockUpdated;
-    private int errorCode;
-    private Exception exception;
+    private boolean isTailTerminated;
+    private boolean isOddLap;
+    private long timeToLive;
+    private int frameLength;
+    private int frameHash;
+    private long frameExpiry;
+    private int frameIdentifier;
+    private boolean isFrameOddLap;
+    private boolean isChunkRead;
+    private byte[] readAhead;
+    private long readAheadIndex;
+    private int readAheadLength;
+    private Thread purgeTask;
+    private Thread transactionOwner;
+    private long transactionTimeout;
+    private long transactionActivity;
+    private long transactionFrontIndex;
+    private long transactionRearIndex;
+    private long transactionCount;
+    private long transactionHeadSequence;
+    private boolean transactionOddLap;
+    private long stagedIndex;
+    private long leaseIndex;
+    private int stagedIdentifier;
+    private long sharedFrontIndex;
+    private long sharedRearIndex;
+    private long sharedCount;
+    private volatile Pointers pointers;
+    private final ErrorState error = new ErrorState();
+
+
+    /**
+     * Create the file based persistent data store to read, write and delete the data in FIFO order.
+     *
+     * @param queueName Name of the queue
+     * @param directory Directory to store the file
+     * @param limit     Maximum amount of space.
+     * @throws IOException Upon error in creating, reading or writing to the file.
+     */
+    public FileDataStoreQueue(String queueName, String directory, long limit) throws IOException {
+        this(queueName, directory, limit, 0, 0);
+    }
+
+    /**
+     * Create the file based persistent data store in checkpoint-light mode. {@link #sync()} only forces the data
+     * to the disk and the meta block is written once {@code checkpointBytes} bytes were written or removed, or
+     * {@code checkpointMillis} milliseconds elapsed since the last checkpoint. On open, the records written after
+     * the last checkpoint are recovered by scanning forward from the persisted rear index. Records removed after
+     * the last checkpoint are delivered again after a crash.
+     *
+     * @param queueName        Name of the queue
+     * @param directory        Directory to store the file
+     * @param limit            Maximum amount of space.
+     * @param checkpointBytes  Number of bytes written or removed between checkpoints, {@code 0} to disable.
+     * @param checkpointMillis Time in milliseconds between checkpoints, {@code 0} to disable.
+     * @throws IOException Upon error in creating, reading or writing to the file.
+     */
+    public FileDataStoreQueue(String queueName, String directory, long limit, long checkpointBytes,
+                              long checkpointMillis) throws IOException {
+        this(queueName, directory, limit, checkpointBytes, checkpointMillis, 0);
+    }
+
+    /**
+     * Create the file based persistent data store with sequence numbers. Every record gets the sequence number
+     * following the one of the previous record, and every {@code indexInterval} records the position of the record
+     * is stored in a sparse index file, which allows {@link #read(long, byte[], int, int)} and {@link #seek(long)}
+     * to locate a record without reading from the front index.
+     *
+     * @param queueName        Name of the queue
+     * @param directory        Directory to store the file
+     * @param limit            Maximum amount of space.
+     * @param checkpointBytes  Number of bytes written or removed between checkpoints, {@code 0} to disable.
+     * @param checkpointMillis Time in milliseconds between checkpoints, {@code 0} to disable.
+     * @param indexInterval    Number of records between two index entries, {@code 0} to disable sequence numbers.
+     * @throws IOException Upon error in creating, reading or writing to the file.
+     */
+    public FileDataStoreQueue(String queueName, String directory, long limit, long checkpointBytes,
+                              long checkpointMillis, int indexInterval) throws IOException {
+        this(queueName, directory, limit, checkpointBytes, checkpointMillis, indexInterval, false);
+    }
+
+    /**
+     * Create the file based persistent data store in shared mode if {@code isShared} is {@code true}. In shared mode
+     * several data stores of this and other processes can open the same file, for example a producer and a
+     * consumer. The meta block is mapped into memory and every operation locks it with a
+     * {@link java.nio.channels.FileLock}, so each data store sees the records written and removed by the others without
+     * reopening the file.
+     *
+     * @param queueName Name of the queue
+     * @param directory Directory to store the file
+     * @param limit     Maximum amount of space.
+     * @param isShared  {@code true} to open the file in shared mode.
+     * @throws IOException Upon error in creating, reading or writing to the file.
+     */
+    public FileDataStoreQueue(String queueName, String directory, long limit, boolean isShared) throws IOException {
+        this(queueName, directory, limit, 0, 0, 0, isShared);
+    }
+
+    private FileDataStoreQueue(String queueName, String directory, long limit, long checkpointBytes,
+                               long checkpointMillis, int indexInterval, boolean isShared) throws IOException {
+        metaBlock = new byte[32];
+        dataBlockHeader = new byte[HEADER_LENGTH];
+        ttlBlockHeader = new byte[TTL_HEADER_LENGTH];
+        stagedIndex = -1;
+        capacity = limit;
+        offset = metaBlock.length * 2;
+        this.checkpointBytes = Math.max(0, checkpointBytes);
+        this.checkpointMillis = Math.max(0, checkpointMillis);
+        reserve = isCheckpointLight() ? TERMINATOR_LENGTH : 0;
+        writeListeners = new CopyOnWriteArrayList<>();
+        leases = new ArrayDeque<>();
+        abortedOwners = new HashSet<>();
+        File path = new File(directory, queueName + ".fifo");
+        capacityPath = new File(directory, queueName + ".cap");
+        file = new RandomAccessFile(path, "rw");
+        index = indexInterval > 0 ? new SequenceIndex(new File(directory, queueName + ".idx"), indexInterval) : null;
+        if (isShared) {
+            try {
+                shared = new SharedMetaBlock(path, file, offset);
+                shared.lock();
+            } catch (IOException e) {
+                file.close();
+                throw e;
+            }
+        } else {
+            shared = null;
+        }
+        try {
+            open();
+            publish();
+        } catch (IOException e) {
+            close();
+            throw e;
+        } finally {
+            if (shared != null) {
+                shared.unlock();
+            }
+        }
+    }
+
+    private void open() throws IOException {
+        boolean isLoaded = readMetaData();
+        if (!isLoaded) {
+            frontIndex = offset;
+            rearIndex = offset;
+            count = 0;
+        }
+
+        readCapacity();
+        if (frontIndex >= capacity || rearIndex >= capacity) {
+            throw new IOException("The data store holds records beyond the limit of " + capacity + " bytes");
+        }
+
+        if (index != null) {
+            headSequence = index.load(frontIndex, rearIndex, count);
+        }
+
+        if (isTailTerminated) {
+            recoverTail();
+        }
+        if (!isCheckpointLight()) {
+            isOddLap = false;
+        }
+
+        if (index != null) {
+            index.retain(headSequence, headSequence + count);
+        }
+
+        if (isCheckpointLight()) {
+            writeTerminator();
+        }
+
+        if (!isLoaded || isTailTerminated || isCheckpointLight()) {
+            writeMetaData();
+        }
+    }
+
+    /**
+     * Wait for the transaction of another thread to end, then lock the meta block in shared mode and load the
+     * pointers written by the other data stores. A transaction whose thread ended, or idle for longer than the
+     * transaction timeout, is rolled back instead of waited for.
+     *
+     * @return {@code false} if the thread is interrupted, its transaction was aborted or the meta block cannot be
+     * locked.
+     */
+    private boolean enter() {
+        Thread current = Thread.currentThread();
+        if (!abortedOwners.isEmpty() && abortedOwners.contains(current)) {
+            error.set(ERROR_CODE_IO_ERROR, new IOException("The transaction of the thread was aborted"));
+            return false;
+        }
+        while (transactionOwner != null && transactionOwner != current) {
+            if (isTransactionAbandoned()) {
+                abortTransaction();
+                continue;
+            }
+            try {
+                wait(ABANDON_CHECK_INTERVAL);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                error.set(ERROR_CODE_IO_ERROR,
+                        new InterruptedIOException("Interrupted while waiting for a transaction"));
+                return false;
+            }
+        }
+        if (transactionOwner == current) {
+            transactionActivity = System.currentTimeMillis();
+        }
+        if (shared == null) {
+            return true;
+        }
+        try {
+            shared.lock();
+        } catch (IOException e) {
+            error.set(ERROR_CODE_IO_ERROR, e);
+            return false;
+        }
+        for (int i = 0; i < 2; i++) {
+            shared.get(i * metaBlock.length, metaBlock);
+            if (parseMetaBlock()) {
+                break;
+            }
+        }
+        sharedFrontIndex = frontIndex;
+        sharedRearIndex = rearIndex;
+        sharedCount = count;
+        return true;
+    }
+
+    /**
+     * Wait for the transaction of another thread to end, and load the pointers written by the other data stores
+     * in shared mode.
+     */
+    private void refresh() {
+        if (enter()) {
+            exit();
+        }
+    }
+
+    /**
+     * Publish the pointers to the other data stores and unlock the meta block in shared mode.
+     */
+    private void exit() {
+        publish();
+        if (shared == null) {
+            return;
+        }
+        if (frontIndex != sharedFrontIndex || rearIndex != sharedRearIndex || count != sharedCount) {
+            fillMetaBlock();
+            shared.put(0, metaBlock);
+            shared.put(metaBlock.length, metaBlock);
+        }
+        shared.unlock();
+    }
+
+    /**
+     * Publish the pointers for the statistics read without the lock. The pointers of an open transaction are
+     * published when it ends.
+     */
+    private void publish() {
+        Pointers published = pointers;
+        if (transactionOwner == null && (published == null || published.frontIndex != frontIndex
+                || published.rearIndex != rearIndex || published.count != count || published.capacity != capacity)) {
+            pointers = new Pointers(frontIndex, rearIndex, count, capacity);
+        }
+    }
+
+    /**
+     * Get the pointers for the statistics. The owner of a transaction sees its own records, and in shared mode the
+     * pointers of the other processes are loaded under the lock of the meta block.
+     */
+    private Pointers getPointers() {
+        if (shared != null || transactionOwner == Thread.currentThread()) {
+            synchronized (this) {
+                refresh();
+                return new Pointers(frontIndex, rearIndex, count, capacity);
+            }
+        }
+        return pointers;
+    }
+
+    /**
+     * Writes the frame at the rear index. In checkpoint-light mode the identifier carries the lap of the rear index,
+     * and the first frame staged by a transaction is written with a zero identifier until the commit.
+     *
+     * @param next the rear index after the frame
+     */
+    private void writeData(long next, byte[] header, byte[] b, int off, int len, long expiry, boolean isContinued)
+            throws IOException {
+
+        int fid = expiry != 0 ? TTL_FRAME_IDENTIFIER : isContinued ? CHUNK_FRAME_IDENTIFIER : FRAME_IDENTIFIER;
+        DataStoreUtil.putInt(fid | lapFlag(), header, 0);
+        DataStoreUtil.putInt(len, header, 4);
+        DataStoreUtil.putInt(~len, header, 8);
+        int hash = getFrameHash(b, off, len, expiry);
+        DataStoreUtil.putInt(hash, header, 12);
+        if (expiry != 0) {
+            DataStoreUtil.putLong(expiry, header, HEADER_LENGTH);
+        }
+        if (transactionOwner != null && stagedIndex < 0 && isCheckpointLight()) {
+            // The first staged frame stays terminated until the commit, so the recovery of the tail does not
+            // publish a part of the transaction
+            stagedIndex = rearIndex;
+            stagedIdentifier = DataStoreUtil.getInt(header, 0);
+            DataStoreUtil.putInt(0, header, 0);
+        }
+        if (header == b) {
+            // The header is filled in place in front of the data
+            writeRear(next, ByteBuffer.wrap(b, off - HEADER_LENGTH, HEADER_LENGTH + len));
+        } else {
+            writeRear(next, ByteBuffer.wrap(header), ByteBuffer.wrap(b, off, len));
+        }
+    }
+
+    private int lapFlag() {
+        return isOddLap ? ODD_LAP_FLAG : 0;
+    }
+
+    /**
+     * Writes a frame at the rear index. In checkpoint-light mode the terminator behind the frame is written by the
+     * same gathering write, or before the frame if the frame wraps around, so a killed process never leaves the new
+     * frame followed by a valid frame of an earlier lap.
+     *
+     * @param next  the rear index after the frame
+     * @param frame the header and the data of the frame
+     */
+    private void writeRear(long next, ByteBuffer... frame) throws IOException {
+        long flc = 0;
+        for (ByteBuffer buffer : frame) {
+            flc += buffer.remaining();
+        }
+        invalidate(rearIndex, flc + TERMINATOR_LENGTH);
+        if (!isCheckpointLight() || !isTerminable(next)) {
+            writeFully(rearIndex, frame);
+        } else if (next == rearIndex + flc) {
+            ByteBuffer[] buffers = Arrays.copyOf(frame, frame.length + 1);
+            buffers[frame.length] = ByteBuffer.wrap(new byte[TERMINATOR_LENGTH]);
+            writeFully(rearIndex, buffers);
+        } else {
+            invalidate(next, TERMINATOR_LENGTH);
+            writeFully(next, ByteBuffer.wrap(new byte[TERMINATOR_LENGTH]));
+            writeFully(rearIndex, frame);
+        }
+    }
+
+    private void writeFully(long index, ByteBuffer... buffers) throws IOException {
+        long remaining = 0;
+        for (ByteBuffer buffer : buffers) {
+            remaining += buffer.remaining();
+        }
+        FileChannel channel = file.getChannel();
+        channel.position(index);
+        while (remaining > 0) {
+            remaining -= channel.write(buffers);
+        }
+    }
+
+    /**
+     * The hash of a frame with an expiry time also covers the expiry time.
+     */
+    private static int getFrameHash(byte[] b, int off, int len, long expiry) {
+        int hash = DataStoreUtil.getHashCode(b, off, len);
+        return expiry != 0 ? 31 * hash + (int) (expiry ^ (expiry >>> 32)) : hash;
+    }
+
+    /**
+     * Reads and validates the header of the frame at the given file position. The identifier without the lap flag,
+     * data length, hash and expiry time of the frame are kept in {@code frameIdentifier}, {@code frameLength},
+     * {@code frameHash} and {@code frameExpiry}, and the lap in {@code isFrameOddLap}.
+     *
+     * @param index the file position of the frame
+     * @return the length of the header, or {@code -1} if the header is corrupted.
+     */
+    private int readHeader(long index) throws IOException {
+        readFully(index, dataBlockHeader, 0, HEADER_LENGTH);
+        int fid = index == stagedIndex ? stagedIdentifier : DataStoreUtil.getInt(dataBlockHeader, 0);
+        isFrameOddLap = (fid & ODD_LAP_FLAG) != 0;
+        fid &= ~ODD_LAP_FLAG;
+        frameLength = DataStoreUtil.getInt(dataBlockHeader, 4);
+        int negated = DataStoreUtil.getInt(dataBlockHeader, 8);
+        frameHash = DataStoreUtil.getInt(dataBlockHeader, 12);
+        frameExpiry = 0;
+        frameIdentifier = fid;
+        if (frameLength != (~negated) || frameLength < 0) {
+            return -1;
+        }
+        if (fid == FRAME_IDENTIFIER || fid == CHUNK_FRAME_IDENTIFIER) {
+            return HEADER_LENGTH;
+        }
+        if (fid == TTL_FRAME_IDENTIFIER) {
+            readFully(index + HEADER_LENGTH, ttlBlockHeader, HEADER_LENGTH, TTL_HEADER_LENGTH - HEADER_LENGTH);
+            frameExpiry = DataStoreUtil.getLong(ttlBlockHeader, HEADER_LENGTH);
+            return TTL_HEADER_LENGTH;
+        }
+        return -1;
+    }
+
+    /**
+     * Rejects the frame of the last {@link #readHeader(long)} if it is a chunk of a record written with a stream,
+     * which only {@link #readChunk(FrameBuffer)} reads.
+     *
+     * @return {@code true} if the frame is rejected.
+     */
+    private boolean rejectChunk() {
+        if (frameIdentifier != CHUNK_FRAME_IDENTIFIER || isChunkRead) {
+            return false;
+        }
+        error.set(ERROR_CODE_NOT_SUPPORTED, new IOException("The record was written with a stream, "
+                + "it can only be read with openReadStream()"));
+        return true;
+    }
+
+    /**
+     * Reads the bytes at the given file position, from the read-ahead buffer when it is enabled.
+     */
+    private void readFully(long index, byte[] b, int off, int len) throws IOException {
+        if (readAhead != null && len <= readAhead.length) {
+            if (index < readAheadIndex || index + len > readAheadIndex + readAheadLength) {
+                fillReadAhead(index);
+            }
+            if (index + len <= readAheadIndex + readAheadLength) {
+                System.arraycopy(readAhead, (int) (index - readAheadIndex), b, off, len);
+                return;
+            }
+        }
+        file.seek(index);
+        file.readFully(b, off, len);
+    }
+
+    private void fillReadAhead(long index) throws IOException {
+        readAheadLength = 0;
+        file.seek(index);
+        int length = 0;
+        while (length < readAhead.length) {
+            int n = file.read(readAhead, length, readAhead.length - length);
+            if (n < 0) {
+                break;
+            }
+            length += n;
+        }
+        readAheadIndex = index;
+        readAheadLength = length;
+    }
+
+    /**
+     * Drops the read-ahead buffer if it holds bytes of the file region about to be written.
+     */
+    private void invalidate(long index, long len) {
+        if (index < readAheadIndex + readAheadLength && index + len > readAheadIndex) {
+            readAheadLength = 0;
+        }
+    }
+
+    private boolean isCheckpointLight() {
+        return checkpointBytes > 0 || checkpointMillis > 0;
+    }
+
+    /**
+     * Computes the rear index after appending a frame of {@code flc} bytes.
+     *
+     * @param front the front index limiting the free space
+     * @param flc   the frame length including the header
+     * @return the new rear index, or {@code -1} if there is no space for the frame.
+     */
+    private long nextRearIndex(long front, long flc) {
+        long next = -1;
+        if (rearIndex < front) {
+            // 0---offset---rearIndex----frontIndex----limit
+            if ((rearIndex + flc + reserve) < front) {
+                next = rearIndex + flc;
+            }
+        } else {
+            // 0---offset---frontIndex----rearIndex----limit
+            // 0 --offset-- frontIndex and rearIndex --- limit
+            if (rearIndex + flc < capacity) {
+                next = rearIndex + flc;
+            } else if (front != offset) {
+                next = offset;
+            }
+        }
+        return next;
+    }
+
+    private void writeTerminator() throws IOException {
+        if (isTerminable(rearIndex)) {
+            invalidate(rearIndex, TERMINATOR_LENGTH);
+            file.seek(rearIndex);
+            file.writeInt(0);
+        }
+    }
+
+    /**
+     * Check that a terminator at the given rear index does not overwrite the front record.
+     */
+    private boolean isTerminable(long index) {
+        return index >= frontIndex || index + TERMINATOR_LENGTH < frontIndex;
+    }
+
+    /**
+     * Scans forward from the rear index and appends every valid frame written after the last checkpoint.
+     */
+    private void recoverTail() throws IOException {
+        byte[] b = new byte[0];
+        for (; ; ) {
+            int dlc, hlc;
+            try {
+                hlc = readHeader(rearIndex);
+                dlc = frameLength;
+                // A frame of another lap was left by an earlier pass of the rear index over the file
+                if (hlc < 0 || dlc > capacity || isFrameOddLap != isOddLap) {
+                    break;
+                }
+            } catch (EOFException e) {
+                break;
+            }
+
+            long next = nextRearIndex(frontIndex, dlc + hlc);
+            if (next < 0) {
+                break;
+            }
+            if (b.length < dlc) {
+                b = new byte[dlc];
+            }
+            try {
+                readFully(rearIndex + hlc, b, 0, dlc);
+            } catch (EOFException e) {
+                break;
+            }
+            if (getFrameHash(b, 0, dlc, frameExpiry) != frameHash) {
+                break;
+            }
+            count++;
+            if (next < rearIndex) {
+                isOddLap = !isOddLap;
+            }
+            rearIndex = next;
+        }
+    }
+
+    /**
+     * Load the capacity set by the last resize, if it is larger than the limit.
+     */
+    private void readCapacity() throws IOException {
+        if (!capacityPath.exists()) {
+            return;
+        }
+        byte[] block = new byte[CAPACITY_BLOCK_LENGTH];
+        try (RandomAccessFile capacityFile = new RandomAccessFile(capacityPath, "r")) {
+            for (int i = 0; i < 2; i++) {
+                capacityFile.seek((long) i * block.length);
+                try {
+                    capacityFile.readFully(block);
+                } catch (EOFException e) {
+                    break;
+                }
+                int magic = DataStoreUtil.getInt(block, 0);
+                int hash = DataStoreUtil.getInt(block, 4);
+                if ((magic == CAPACITY_MAGIC_NUMBER || magic == PENDING_CAPACITY_MAGIC_NUMBER)
+                        && hash == DataStoreUtil.getHashCode(block, 8, block.length - 8)) {
+                    // A pending capacity applies only if the pointers of the resized layout were persisted
+                    boolean isCommitted = magic == CAPACITY_MAGIC_NUMBER
+                            || (frontIndex == DataStoreUtil.getLong(block, 24)
+                            && rearIndex == DataStoreUtil.getLong(block, 32));
+                    capacity = Math.max(capacity, DataStoreUtil.getLong(block, isCommitted ? 8 : 16));
+                    return;
+                }
+            }
+        }
+    }
+
+    /**
+     * Store the capacity with the pointers of the resized layout, before the meta block as pending, and after the
+     * meta block as committed.
+     */
+    private boolean writeCapacity(int magic, long previousCapacity) {
+        byte[] block = new byte[CAPACITY_BLOCK_LENGTH];
+        DataStoreUtil.putInt(magic, block, 0);
+        DataStoreUtil.putLong(capacity, block, 8);
+        DataStoreUtil.putLong(previousCapacity, block, 16);
+        DataStoreUtil.putLong(frontIndex, block, 24);
+        DataStoreUtil.putLong(rearIndex, block, 32);
+        DataStoreUtil.putInt(DataStoreUtil.getHashCode(block, 8, block.length - 8), block, 4);
+        try (RandomAccessFile capacityFile = new RandomAccessFile(capacityPath, "rw")) {
+            for (int i = 0; i < 2; i++) {
+                capacityFile.seek((long) i * block.length);
+                capacityFile.write(block);
+                capacityFile.getFD().sync();
+            }
+            return true;
+        } catch (IOException e) {
+            error.set(ERROR_CODE_IO_ERROR, e);
+            return false;
+        }
+    }
+
+    private boolean readMetaData() {
+
+        boolean status = false;
+        error.clear();
+        for (int i = 0; i < 2; i++) {
+            int pos = i * metaBlock.length;
+            try {
+                file.seek(pos);
+                file.readFully(metaBlock);
+                if (parseMetaBlock()) {
+                    status = true;
+                    break;
+                }
+            } catch (IOException e) {
+                error.set(ERROR_CODE_IO_ERROR, e);
+            }
+        }
+
+        return status;
+    }
+
+    private boolean parseMetaBlock() {
+        int magic = DataStoreUtil.getInt(metaBlock, 0);
+        int hash = DataStoreUtil.getInt(metaBlock, 4);
+        if ((magic == MAGIC_NUMBER || magic == CHECKPOINT_MAGIC_NUMBER || magic == ODD_LAP_CHECKPOINT_MAGIC_NUMBER)
+                && hash == DataStoreUtil.getHashCode(metaBlock, 8, metaBlock.length - 8)) {
+            frontIndex = DataStoreUtil.getLong(metaBlock, 8);
+            rearIndex = DataStoreUtil.getLong(metaBlock, 16);
+            count = DataStoreUtil.getLong(metaBlock, 24);
+            isTailTerminated = magic != MAGIC_NUMBER;
+            isOddLap = magic == ODD_LAP_CHECKPOINT_MAGIC_NUMBER;
+            return true;
+        }
+        return false;
+    }
+
+    private void fillMetaBlock() {
+        DataStoreUtil.putInt(!isCheckpointLight() ? MAGIC_NUMBER
+                : isOddLap ? ODD_LAP_CHECKPOINT_MAGIC_NUMBER : CHECKPOINT_MAGIC_NUMBER, metaBlock, 0);
+        DataStoreUtil.putLong(frontIndex, metaBlock, 8);
+        DataStoreUtil.putLong(rearIndex, metaBlock, 16);
+        DataStoreUtil.putLong(count, metaBlock, 24);
+        int hash = DataStoreUtil.getHashCode(metaBlock, 8, metaBlock.length - 8);
+        DataStoreUtil.putInt(hash, metaBlock, 4);
+    }
+
+    private boolean writeMetaData() {
+
+        boolean status = false;
+        error.clear();
+        fillMetaBlock();
+
+        if (index != null) {
+            // The head sequence must reach the disk before the pointers it belongs to
+            try {
+                index.checkpoint(frontIndex, rearIndex, count, headSequence);
+            } catch (IOException e) {
+                error.set(ERROR_CODE_IO_ERROR, e);
+                return false;
+            }
+        }
+
+        for (int i = 0; i < 2; i++) {
+            int pos = i * metaBlock.length;
+            try {
+                file.seek(pos);
+                file.write(metaBlock);
+                file.getFD().sync();
+                status = true;
+            } catch (IOException e) {
+                error.set(ERROR_CODE_IO_ERROR, e);
+            }
+        }
+
+        checkpointFrontIndex = frontIndex;
+        checkpointTime = System.currentTimeMillis();
+        uncheckpointedBytes = 0;
+        return status;
+    }
+
+    @Override
+    public boolean write(byte[] b, int off, int len) {
+        return notifyWriteListeners(append(dataBlockHeader, b, off, len, -1, false));
+    }
+
+    /**
+     * Writes {@code len} bytes from the specified byte array
+     * starting at offset {@code off} to this data store, to expire after the given time.
+     *
+     * @param      b          the data.
+     * @param      off        the start offset in the data.
+     * @param      len        the number of bytes to write.
+     * @param      timeToLive the time to live in milliseconds, {@code 0} if the data never expires.
+     * @return     {@code false}  if an I/O error occurs.
+     */
+    public boolean write(byte[] b, int off, int len, long timeToLive) {
+        return notifyWriteListeners(append(dataBlockHeader, b, off, len, Math.max(0, timeToLive), false));
+    }
+
+    @Override
+    public boolean writeFrame(byte[] frame, int len) {
+        return notifyWriteListeners(append(frame, frame, HEADER_LENGTH, len, -1, false));
+    }
+
+    /**
+     * Set the time to live of the data written without an explicit time to live.
+     *
+     * @param timeToLive the time to live in milliseconds, {@code 0} if the data never expires.
+     */
+    public synchronized void setTimeToLive(long timeToLive) {
+        this.timeToLive = Math.max(0, timeToLive);
+    }
+
+    /**
+     * Get the time to live of the data written without an explicit time to live.
+     *
+     * @return the time to live in milliseconds, {@code 0} if the data never expires.
+     */
+    public synchronized long getTimeToLive() {
+        return timeToLive;
+    }
+
+    /**
+     * Set the size of the read-ahead buffer. A read fetches a block of this size starting at the record read, and the
+     * following headers and records are served from the buffer until they run past its end, so a consumer reads the
+     * disk in large sequential blocks instead of a seek and two small reads per record. Records larger than the buffer
+     * are read directly.
+     *
+     * @param size the size of the buffer in bytes, {@code 0} to disable the read-ahead.
+     * @return {@code false} in shared mode, where the buffer would not see the records written by other processes.
+     */
+    public synchronized boolean setReadAhead(int size) {
+        error.clear();
+        if (shared != null) {
+            error.set(ERROR_CODE_NOT_SUPPORTED, null);
+            return false;
+        }
+        readAhead = size > 0 ? new byte[size] : null;
+        readAheadLength = 0;
+        return true;
+    }
+
+    /**
+     * Register a listener invoked after every successful write. The listener is invoked on the writing thread
+     * after the lock of the data store is released, so it must not block.
+     *
+     * @param listener the listener
+     */
+    public void addWriteListener(Runnable listener) {
+        writeListeners.add(listener);
+    }
+
+    /**
+     * Unregister a listener registered with {@link #addWriteListener(Runnable)}.
+     *
+     * @param listener the listener
+     */
+    public void removeWriteListener(Runnable listener) {
+        writeListeners.remove(listener);
+    }
+
+    private boolean notifyWriteListeners(boolean status) {
+        // The writes of a transaction are notified on commit
+        if (status && transactionOwner != Thread.currentThread()) {
+            for (Runnable listener : writeListeners) {
+                listener.run();
+            }
+        }
+        return status;
+    }
+
+    private synchronized boolean append(byte[] header, byte[] b, int off, int len, long ttl, boolean isContinued) {
+        boolean status = false;
+        ttl = ttl < 0 ? timeToLive : ttl;
+        long expiry = ttl > 0 ? System.currentTimeMillis() + ttl : 0;
+        if (expiry != 0) {
+            header = ttlBlockHeader;
+        }
+        int flc = len + (expiry != 0 ? TTL_HEADER_LENGTH : HEADER_LENGTH);
+        error.clear();
+        if (!enter()) {
+            return status;
+        }
+        try {
+            try {
+                long next = allocate(flc);
+                if (next >= 0) {
+                    writeData(next, header, b, off, len, expiry, isContinued);
+                    advanceRear(next, flc);
+                    status = true;
+                }
+            } catch (IOException e) {
+                error.set(ERROR_CODE_IO_ERROR, e);
+            }
+        } finally {
+            exit();
+        }
+
+        return status;
+    }
+
+    /**
+     * Finds the space for a frame of {@code flc} bytes at the rear index.
+     *
+     * @return the new rear index, or {@code -1} if there is no space for the frame.
+     */
+    private long allocate(int flc) {
+        // The space released after the last checkpoint is reused only after the next checkpoint,
+        // otherwise the records of the persisted front index would be overwritten. The same holds
+        // for the space released by a transaction until it is committed.
+        long front = isCheckpointLight() ? checkpointFrontIndex
+                : transactionOwner != null ? transactionFrontIndex : frontIndex;
+        long next = nextRearIndex(front, flc);
+        if (next < 0 && checkpointFrontIndex != frontIndex && isCheckpointLight()
+                && transactionOwner == null && writeMetaData()) {
+            next = nextRearIndex(frontIndex, flc);
+        }
+        return next;
+    }
+
+    /**
+     * Appends the frame written at the rear index to the records.
+     */
+    private void advanceRear(long next, int flc) throws IOException {
+        if (index != null) {
+            index.add(headSequence + count, rearIndex);
+        }
+        count++;
+        if (next < rearIndex && isCheckpointLight()) {
+            isOddLap = !isOddLap;
+        }
+        rearIndex = next;
+        uncheckpointedBytes += flc;
+        isMetaBlockUpdated = true;
+    }
+
+    /**
+     * Write all the records to the channel, oldest first. The frames are transferred from the file to the channel
+     * as they are stored, without passing through the heap, and the records stay in this data store.
+     *
+     * @param channel the blocking channel receiving the frames
+     * @return {@code false} if an I/O error occurs or the current thread has an open transaction.
+     */
+    @Override
+    public synchronized boolean exportTo(WritableByteChannel channel) {
+        boolean status = false;
+        error.clear();
+        if (transactionOwner == Thread.currentThread()) {
+            error.set(ERROR_CODE_NOT_SUPPORTED, null);
+            return false;
+        }
+        if (!enter()) {
+            return false;
+        }
+        try {
+            FileChannel source = file.getChannel();
+            if (rearIndex >= frontIndex) {
+                DataStoreUtil.transferTo(source, frontIndex, rearIndex - frontIndex, channel);
+            } else {
+                long end = segmentEnd();
+                DataStoreUtil.transferTo(source, frontIndex, end - frontIndex, channel);
+                DataStoreUtil.transferTo(source, offset, rearIndex - offset, channel);
+            }
+            status = true;
+        } catch (IOException e) {
+            error.set(ERROR_CODE_IO_ERROR, e);
+        } finally {
+            exit();
+        }
+        return status;
+    }
+
+    /**
+     * Write the frames read from the channel until the end of the stream. Each frame is read from the channel
+     * without the lock of this data store, which is taken only to append the frame, so a slow channel does not
+     * stall the producers and consumers. The hash of the data is checked when the record is read.
+     *
+     * @param channel the blocking channel providing the frames written by {@link #exportTo(WritableByteChannel)}
+     * @return {@code false} if an I/O error occurs, the stream is corrupted, the current thread has an open
+     * transaction or the data store is full. The records imported until then are kept, and the exception gives the
+     * position in the stream of the first record not imported, the error code being {@code 2} if the data store is
+     * full.
+     */
+    @Override
+    public boolean importFrom(ReadableByteChannel channel) {
+        boolean status = false;
+        long imported = 0;
+        long position = 0;
+        error.clear();
+        if (transactionOwner == Thread.currentThread()) {
+            error.set(ERROR_CODE_NOT_SUPPORTED, null);
+            return false;
+        }
+        byte[] frame = new byte[TTL_HEADER_LENGTH];
+        try {
+            for (; ; ) {
+                ByteBuffer buffer = ByteBuffer.wrap(frame, 0, HEADER_LENGTH);
+                if (!DataStoreUtil.readFully(channel, buffer)) {
+                    status = true;
+                    break;
+                }
+                int fid = DataStoreUtil.getInt(frame, 0) & ~ODD_LAP_FLAG;
+                int len = DataStoreUtil.getInt(frame, 4);
+                int negated = DataStoreUtil.getInt(frame, 8);
+                if (len != ~negated || len < 0 || len > capacity() || (fid != FRAME_IDENTIFIER
+                        && fid != TTL_FRAME_IDENTIFIER && fid != CHUNK_FRAME_IDENTIFIER)) {
+                    throw new IOException("Corrupted record at position " + position + " of the channel");
+                }
+                int hlc = fid == TTL_FRAME_IDENTIFIER ? TTL_HEADER_LENGTH : HEADER_LENGTH;
+                if (frame.length < hlc + len) {
+                    frame = Arrays.copyOf(frame, Math.max(frame.length * 2, hlc + len));
+                }
+                buffer = ByteBuffer.wrap(frame, HEADER_LENGTH, hlc + len - HEADER_LENGTH);
+                if (!DataStoreUtil.readFully(channel, buffer)) {
+                    throw new EOFException("Incomplete record at position " + position + " of the channel");
+                }
+                if (!appendFrame(frame, hlc + len)) {
+                    if (error.getCode() == ERROR_CODE_OK) {
+                        error.set(ERROR_CODE_LN_ERROR, new IOException("No space for the record at position "
+                                + position + " of the channel"));
+                    }
+                    break;
+                }
+                imported++;
+                position += hlc + len;
+            }
+        } catch (IOException e) {
+            error.set(ERROR_CODE_IO_ERROR, e);
+        }
+        if (imported > 0) {
+            notifyWriteListeners(true);
+        }
+        return status;
+    }
+
+    /**
+     * Append a complete frame read by {@link #importFrom(ReadableByteChannel)}.
+     *
+     * @return {@code false} if the data store is full or cannot be locked.
+     */
+    private synchronized boolean appendFrame(byte[] frame, int flc) throws IOException {
+        if (!enter()) {
+            return false;
+        }
+        try {
+            long next = allocate(flc);
+            if (next < 0) {
+                return false;
+            }
+            // The frame takes the lap of the rear index of this data store
+            DataStoreUtil.putInt(DataStoreUtil.getInt(frame, 0) & ~ODD_LAP_FLAG | lapFlag(), frame, 0);
+            writeRear(next, ByteBuffer.wrap(frame, 0, flc));
+            advanceRear(next, flc);
+            return true;
+        } finally {
+            exit();
+        }
+    }
+
+    @Override
+    public boolean write(byte[] b) {
+        return write(b, 0, b.length);
+    }
+
+    @Override
+    public synchronized int read(byte[] b, int off, int len) {
+        int size = -1;
+        error.clear();
+        if (!enter()) {
+            return size;
+        }
+        try {
+            if (skipExpired() && rearIndex != frontIndex) {
+                try {
+                    size = readData(frontIndex, null, b, off, len);
+                } catch (IOException e) {
+                    size = 0;
+                    error.set(ERROR_CODE_IO_ERROR, e);
+                }
+            }
+        } finally {
+            exit();
+        }
+
+        return size;
+    }
+
+    @Override
+    public synchronized int readFrame(FrameBuffer buffer) {
+        int size = -1;
+        error.clear();
+        if (!enter()) {
+            return size;
+        }
+        try {
+            if (skipExpired() && rearIndex != frontIndex) {
+                try {
+                    size = readData(frontIndex, buffer, null, 0, 0);
+                } catch (IOException e) {
+                    size = 0;
+                    error.set(ERROR_CODE_IO_ERROR, e);
+                }
+            }
+        } finally {
+            exit();
+        }
+
+        return size;
+    }
+
+    /**
+     * Reads the record of the frame at the given file position into the array, or into the frame buffer
+     * if {@code buffer} is not {@code null}. The frame buffer fits any record, so a record that is not read into the
+     * frame buffer is reported as corrupted.
+     */
+    private int readData(long index, FrameBuffer buffer, byte[] b, int off, int len) throws IOException {
+        int size = 0;
+        boolean isRead = false;
+        int hlc = readHeader(index);
+        if (hlc >= 0 && !rejectChunk()) {
+            int dlc = frameLength;
+            if (buffer != null && dlc <= capacity) {
+                b = buffer.ensure(dlc);
+                off = 0;
+                len = dlc;
+            }
+            if (len >= dlc) {
+                readFully(index + hlc, b, off, dlc);
+                if (getFrameHash(b, off, dlc, frameExpiry) == frameHash) {
+                    size = dlc;
+                    isRead = true;
+                }
+            }
+        }
+        if (buffer != null && !isRead && error.getCode() == ERROR_CODE_OK) {
+            error.set(ERROR_CODE_IO_ERROR, new IOException("Corrupted record"));
+        }
+        return size;
+    }
+
+    /**
+     * Reads the record with the given sequence number without removing it from this data store.
+     *
+     * @param sequence the sequence number of the record.
+     * @param b        the buffer into which the data is read.
+     * @param off      the start offset in array {@code b} at which the data is written.
+     * @param len      the maximum number of bytes read.
+     * @return the total number of bytes read into the buffer, or
+     * {@code -1} if there is no record with the given sequence number in the data store.
+     */
+    public synchronized int read(long sequence, byte[] b, int off, int len) {
+        int size = -1;
+        error.clear();
+        if (!enter()) {
+            return size;
+        }
+        try {
+            if (index == null) {
+                error.set(ERROR_CODE_NOT_SUPPORTED, null);
+            } else if (sequence >= headSequence && sequence < headSequence + count) {
+                try {
+                    long pos = locate(sequence);
+                    size = pos < 0 ? 0 : readData(pos, null, b, off, len);
+                } catch (IOException e) {
+                    size = 0;
+                    error.set(ERROR_CODE_IO_ERROR, e);
+                }
+            }
+        } finally {
+            exit();
+        }
+        return size;
+    }
+
+    /**
+     * Removes the records preceding the record with the given sequence number, so that it becomes the front
+     * of this data store.
+     *
+     * @param sequence the sequence number of the record.
+     * @return {@code true} if the record was found.
+     */
+    public synchronized boolean seek(long sequence) {
+        boolean status = false;
+        error.clear();
+        if (!enter()) {
+            return status;
+        }
+        try {
+            if (index == null) {
+                error.set(ERROR_CODE_NOT_SUPPORTED, null);
+            } else if (sequence >= headSequence && sequence <= headSequence + count) {
+                try {
+                    long pos = sequence == headSequence + count ? rearIndex : locate(sequence);
+                    if (pos >= 0) {
+                        clearLeases();
+                        uncheckpointedBytes += pos >= frontIndex ? pos - frontIndex
+                                : (capacity - frontIndex) + (pos - offset);
+                        count -= (sequence - headSequence);
+                        headSequence = sequence;
+                        frontIndex = pos;
+                        index.retain(headSequence, headSequence + count);
+                        isMetaBlockUpdated = true;
+                        status = true;
+                    }
+                } catch (IOException e) {
+                    error.set(ERROR_CODE_IO_ERROR, e);
+                }
+            }
+        } finally {
+            exit();
+        }
+        return status;
+    }
+
+    /**
+     * Get the sequence number of the record at the front of this data store.
+     *
+     * @return the sequence number of the front record, or of the next record to be written if the data store is
+     * empty, {@code -1} if the data store has no sequence numbers.
+     */
+    public synchronized long headSequence() {
+        error.clear();
+        refresh();
+        return index != null ? headSequence : -1;
+    }
+
+    /**
+     * Get the sequence number that will be assigned to the next record written.
+     *
+     * @return the sequence number of the next record, {@code -1} if the data store has no sequence numbers.
+     */
+    public synchronized long tailSequence() {
+        error.clear();
+        refresh();
+        return index != null ? headSequence + count : -1;
+    }
+
+    /**
+     * Find the file position of a live record, starting from the nearest index entry.
+     *
+     * @param sequence the sequence number of the record.
+     * @return the file position of the record, or {@code -1} if the frames are corrupted.
+     */
+    private long locate(long sequence) throws IOException {
+        long pos = frontIndex;
+        long current = headSequence;
+        int slot = index.floor(sequence);
+        if (slot >= 0 && index.sequenceAt(slot) >= headSequence) {
+            pos = index.indexAt(slot);
+            current = index.sequenceAt(slot);
+        }
+
+        for (; current < sequence; current++) {
+            int hlc = readHeader(pos);
+            if (hlc < 0) {
+                return -1;
+            }
+            pos += (frameLength + hlc);
+            if (pos >= capacity)
+                pos = offset;
+        }
+        return pos;
+    }
+
+    @Override
+    public int read(byte[] b) {
+        return read(b, 0, b.length);
+    }
+
+    @Override
+    public synchronized int readLength() {
+        int size = -1;
+        error.clear();
+        if (!enter()) {
+            return size;
+        }
+        try {
+            if (skipExpired() && rearIndex != frontIndex) {
+                size = 0;
+                try {
+                    if (readHeader(frontIndex) >= 0 && !rejectChunk()) {
+                        size = frameLength;
+                    }
+                } catch (IOException e) {
+                    error.set(ERROR_CODE_IO_ERROR, e);
+                }
+            }
+        } finally {
+            exit();
+        }
+
+        return size;
+    }
+
+    @Override
+    public synchronized boolean sync() {
+        boolean status = true;
+        error.clear();
+        if (!enter()) {
+            return false;
+        }
+        try {
+            // The pointers of a transaction are stored on commit
+            if (isMetaBlockUpdated && transactionOwner == null) {
+                if (isCheckpointDue()) {
+                    isMetaBlockUpdated = false;
+                    status = writeMetaData();
+                } else {
+                    try {
+                        file.getChannel().force(false);
+                    } catch (IOException e) {
+                        status = false;
+                        error.set(ERROR_CODE_IO_ERROR, e);
+                    }
+                }
+            }
+        } finally {
+            exit();
+        }
+
+        return status;
+    }
+
+    /**
+     * Store pointers and data to the disk, regardless of the checkpoint interval.
+     * @return {@code true} if the checkpoint is successful
+     */
+    public synchronized boolean checkpoint() {
+        error.clear();
+        if (!enter()) {
+            return false;
+        }
+        try {
+            // The pointers of a transaction are stored on commit
+            if (transactionOwner != null) {
+                return false;
+            }
+            isMetaBlockUpdated = false;
+            return writeMetaData();
+        } finally {
+            exit();
+        }
+    }
+
+    private boolean isCheckpointDue() {
+        return !isCheckpointLight()
+                || (checkpointBytes > 0 && uncheckpointedBytes >= checkpointBytes)
+                || (checkpointMillis > 0 && System.currentTimeMillis() - checkpointTime >= checkpointMillis);
+    }
+
+    /**
+     * Start a transaction for the current thread. The records written and removed by the current thread become
+     * visible to the other threads and are stored to the disk together on {@link #commit()}, with a single update of
+     * the meta block. The other threads wait until the transaction is committed or rolled back, while the statistics
+     * such as {@link #count()} show them the records committed before.
+     * <p>
+     * The transaction is rolled back by the other threads if its thread ends, or if it stays idle for longer than
+     * the timeout set by {@link #setTransactionTimeout(long)}. The operations of its thread then fail until the thread
+     * calls {@link #commit()} or {@link #rollback()}, which return {@code false}.
+     *
+     * @return {@code false} if a transaction is already open or the data store is in shared mode.
+     */
+    @Override
+    public synchronized boolean beginTransaction() {
+        error.clear();
+        if (shared != null) {
+            error.set(ERROR_CODE_NOT_SUPPORTED, null);
+            return false;
+        }
+        if (!enter() || transactionOwner != null) {
+            return false;
+        }
+        transactionOwner = Thread.currentThread();
+        transactionActivity = System.currentTimeMillis();
+        transactionFrontIndex = frontIndex;
+        transactionRearIndex = rearIndex;
+        transactionCount = count;
+        transactionHeadSequence = headSequence;
+        transactionOddLap = isOddLap;
+        return true;
+    }
+
+    /**
+     * Publish and store to the disk the records written and removed since {@link #beginTransaction()}.
+     *
+     * @return {@code false} if the current thread has no transaction or an I/O error occurs, the transaction is
+     * rolled back if the records cannot be published.
+     */
+    @Override
+    public boolean commit() {
+        return notifyWriteListeners(endTransaction(true));
+    }
+
+    /**
+     * Discard the records written and restore the records removed since {@link #beginTransaction()}.
+     *
+     * @return {@code false} if the current thread has no transaction.
+     */
+    @Override
+    public boolean rollback() {
+        return endTransaction(false);
+    }
+
+    /**
+     * Set the time after which the transaction of a thread that does not use the data store is rolled back by the
+     * other threads, for example the transaction of a stream that is never closed.
+     *
+     * @param timeout the timeout in milliseconds, {@code 0} to roll back only the transactions of ended threads.
+     */
+    public synchronized void setTransactionTimeout(long timeout) {
+        transactionTimeout = Math.max(0, timeout);
+    }
+
+    private boolean isTransactionAbandoned() {
+        return !transactionOwner.isAlive() || (transactionTimeout > 0
+                && System.currentTimeMillis() - transactionActivity >= transactionTimeout);
+    }
+
+    /**
+     * Roll back the abandoned transaction of another thread.
+     */
+    private void abortTransaction() {
+        if (transactionOwner.isAlive()) {
+            abortedOwners.add(transactionOwner);
+        }
+        stagedIndex = -1;
+        restoreTransaction();
+        transactionOwner = null;
+        publish();
+        notifyAll();
+    }
+
+    private void restoreTransaction() {
+        clearLeases();
+        frontIndex = transactionFrontIndex;
+        rearIndex = transactionRearIndex;
+        count = transactionCount;
+        headSequence = transactionHeadSequence;
+        isOddLap = transactionOddLap;
+        try {
+            if (index != null) {
+                index.retain(headSequence, headSequence + count);
+            }
+            if (isCheckpointLight()) {
+                writeTerminator();
+            }
+        } catch (IOException e) {
+            error.set(ERROR_CODE_IO_ERROR, e);
+        }
+    }
 
+    private synchronized boolean endTransaction(boolean isCommit) {
+        boolean status = false;
+        error.clear();
+        if (abortedOwners.remove(Thread.currentThread())) {
+            error.set(ERROR_CODE_IO_ERROR, new IOException("The transaction of the thread was aborted"));
+            return false;
+        }
+        if (transactionOwner == Thread.currentThread()) {
+            status = true;
+            if (isCommit && stagedIndex >= 0) {
+                try {
+                    invalidate(stagedIndex, 4);
+                    file.seek(stagedIndex);
+                    file.writeInt(stagedIdentifier);
+                } catch (IOException e) {
+                    error.set(ERROR_CODE_IO_ERROR, e);
+                    isCommit = false;
+                    status = false;
+                }
+            }
+            stagedIndex = -1;
+            if (isCommit) {
+                isMetaBlockUpdated = false;
+                status = writeMetaData();
+            } else {
+                restoreTransaction();
+            }
+            transactionOwner = null;
+            publish();
+            notifyAll();
+        }
+        return status;
+    }
 
     /**
-     * Create the file based persistent data store to read, write and delete the data in FIFO order.
+     * Open a stream writing a record of any length as a run of chunks of 64 KB.
      *
-     * @param queueName Name of the queue
-     * @param directory Directory to store the file
-     * @param limit     Maximum amount of space.
-     * @throws IOException Upon error in creating, reading or writing to the file.
+     * @return the stream, the record is stored when the stream is closed.
+     * @throws IOException if this data store is in shared mode.
+     * @see #openWriteStream(int)
      */
-    public FileDataStoreQueue(String queueName, String directory, long limit) throws IOException {
-        metaBlock = new byte[32];
-        dataBlockHeader = new byte[16];
-        capacity = limit;
-        offset = metaBlock.length * 2;
-        file = new RandomAccessFile(new File(directory, queueName + ".fifo"), "rw");
-        if (!readMetaData()) {
-            frontIndex = offset;
-            rearIndex = offset;
-            count = 0;
-            writeMetaData();
+    public OutputStream openWriteStream() throws IOException {
+        return openWriteStream(DEFAULT_CHUNK_SIZE);
+    }
+
+    /**
+     * Open a stream writing a record of any length as a run of chunks, each stored with its own hash, so the record
+     * is never held in memory as a whole. The chunks are written in a transaction of the current thread, started
+     * when the first chunk is full, so the record becomes visible and durable at once when the stream is closed. A
+     * record of a single chunk is written by {@link #close()} without a transaction.
+     * <p>
+     * The transaction locks the whole data store: all the other producers and consumers wait until the stream is
+     * closed, so a stream should be written at once. A stream that is never closed is rolled back when its thread
+     * ends or after the timeout set by {@link #setTransactionTimeout(long)}. {@link #read(byte[])},
+     * {@link #readFrame(FrameBuffer)}, {@link #readLength()} and {@link #lease(long)} fail with the error code
+     * {@code 3} on the record, which must be read with {@link #openReadStream()}, and each chunk counts as a record in
+     * {@link #count()}.
+     *
+     * @param chunkSize the number of bytes of a chunk
+     * @return the stream, the record is stored when the stream is closed.
+     * @throws IOException if this data store is in shared mode.
+     */
+    public OutputStream openWriteStream(int chunkSize) throws IOException {
+        if (chunkSize <= 0) {
+            throw new IllegalArgumentException("Chunk size must be positive");
         }
+        if (shared != null) {
+            throw new IOException("Streams are not supported in shared mode");
+        }
+        return new ChunkOutputStream(this, chunkSize);
     }
 
-    private static void writeData(RandomAccessFile file, long index, byte[] header, byte[] b, int off, int len)
-            throws IOException {
+    /**
+     * Open a stream reading the record at the front of this data store chunk by chunk. The chunks are removed in a
+     * transaction of the current thread, which is committed when the stream is closed after the last chunk was read,
+     * and rolled back otherwise, so the record stays in the data store if the stream is not read to the end. The
+     * other threads wait until the stream is closed, and a stream that is never closed is rolled back as described by
+     * {@link #openWriteStream(int)}.
+     *
+     * @return the stream, empty if this data store is empty.
+     * @throws IOException if a transaction cannot be started.
+     */
+    public InputStream openReadStream() throws IOException {
+        if (!beginTransaction()) {
+            throw new IOException("Unable to start the transaction of the stream", getException());
+        }
+        return new ChunkInputStream(this);
+    }
 
-        DataStoreUtil.putInt(FRAME_IDENTIFIER, header, 0);
-        DataStoreUtil.putInt(len, header, 4);
-        DataStoreUtil.putInt(~len, header, 8);
-        int hash = DataStoreUtil.getHashCode(b, off, len);
-        DataStoreUtil.putInt(hash, header, 12);
-        file.seek(index);
-        file.write(header);
-        file.write(b, off, len);
+    /**
+     * Writes a chunk of a record held at offset {@link #HEADER_LENGTH} of the frame buffer.
+     *
+     * @param isContinued {@code true} if more chunks of the record follow.
+     */
+    boolean writeChunk(byte[] frame, int len, boolean isContinued) {
+        return notifyWriteListeners(append(frame, frame, HEADER_LENGTH, len, 0, isContinued));
+    }
 
+    /**
+     * Reads and removes the chunk at the front into the frame buffer.
+     *
+     * @return the number of bytes {@code n} of a chunk followed by more chunks, {@code -2 - n} for the last chunk of
+     * a record, or {@code -1} if this data store is empty.
+     * @throws IOException if the chunk cannot be read.
+     */
+    synchronized int readChunk(FrameBuffer buffer) throws IOException {
+        isChunkRead = true;
+        try {
+            int size = readFrame(buffer);
+            if (size < 0 && getErrorCode() == ERROR_CODE_OK) {
+                return size;
+            }
+            if (size != frameLength || getErrorCode() != ERROR_CODE_OK) {
+                throw new IOException("Unable to read the chunk", getException());
+            }
+            boolean isContinued = frameIdentifier == CHUNK_FRAME_IDENTIFIER;
+            remove();
+            if (getErrorCode() != ERROR_CODE_OK) {
+                throw new IOException("Unable to remove the chunk", getException());
+            }
+            return isContinued ? size : -2 - size;
+        } finally {
+            isChunkRead = false;
+        }
     }
 
-    private boolean readMetaData() {
+    /**
+     * Lease the next record for {@code timeout} milliseconds. The record stays in the data store until it is
+     * acknowledged with {@link #ack(Lease)}, and is leased again once the lease expires or is released with
+     * {@link #nack(Lease)}, so several threads can process the records concurrently with at-least-once delivery.
+     * The front of the data store only moves over the records acknowledged in a row from the front. Each delivery
+     * returns a new lease, and only the lease of the last delivery of a record can acknowledge or release it. The
+     * leases are kept in memory, and {@link #remove()} or {@link #seek(long)} drop them.
+     *
+     * @param timeout the duration of the lease in milliseconds
+     * @return the lease of the record, or {@code null} if there is no record to lease.
+     */
+    public synchronized Lease lease(long timeout) {
+        List<Lease> leased = lease(1, timeout);
+        return leased.isEmpty() ? null : leased.get(0);
+    }
 
-        boolean status = false;
-        errorCode = ERROR_CODE_OK;
-        exception = null;
-        for (int i = 0; i < 2; i++) {
-            int pos = i * metaBlock.length;
-            try {
-                file.seek(pos);
-                file.readFully(metaBlock);
-                int magic = DataStoreUtil.getInt(metaBlock, 0);
-                int hash = DataStoreUtil.getInt(metaBlock, 4);
-                if (magic == MAGIC_NUMBER && hash == DataStoreUtil.getHashCode(metaBlock, 8, metaBlock.length - 8)) {
-                    frontIndex = DataStoreUtil.getLong(metaBlock, 8);
-                    rearIndex = DataStoreUtil.getLong(metaBlock, 16);
-                    count = DataStoreUtil.getLong(metaBlock, 24);
-                    status = true;
+    /**
+     * Lease up to {@code max} records for {@code timeout} milliseconds with a single lock of this data store, the
+     * records whose lease expired first, then the next records in order. Each record is leased as by
+     * {@link #lease(long)}.
+     *
+     * @param max     the maximum number of records to lease
+     * @param timeout the duration of the leases in milliseconds
+     * @return the leases of the records, empty if there is no record to lease. If an error occurs, the leases
+     * taken before the error are returned and the error code is set.
+     */
+    public synchronized List<Lease> lease(int max, long timeout) {
+        List<Lease> leased = new ArrayList<>(Math.min(max, 64));
+        error.clear();
+        if (shared != null) {
+            error.set(ERROR_CODE_NOT_SUPPORTED, null);
+            return leased;
+        }
+        if (!enter()) {
+            return leased;
+        }
+        try {
+            long now = System.currentTimeMillis();
+            for (LeasedRecord record : leases) {
+                if (leased.size() == max) {
                     break;
                 }
-            } catch (IOException e) {
-                errorCode = ERROR_CODE_IO_ERROR;
-                exception = e;
+                if (!record.isAcknowledged && record.deadline <= now) {
+                    leased.add(deliver(record, now, timeout));
+                }
             }
+            while (leased.size() < max) {
+                LeasedRecord record = leaseNext();
+                if (record == null) {
+                    break;
+                }
+                leased.add(deliver(record, now, timeout));
+            }
+        } catch (IOException e) {
+            error.set(ERROR_CODE_IO_ERROR, e);
+        } finally {
+            exit();
         }
-
-        return status;
+        return leased;
     }
 
-    private boolean writeMetaData() {
+    /**
+     * Read the record following the last leased record and add it to the leased records.
+     *
+     * @return the record, or {@code null} if there is no record to lease or the record is a chunk.
+     */
+    private LeasedRecord leaseNext() throws IOException {
+        if (!skipExpired()) {
+            return null;
+        }
+        long index = leases.isEmpty() ? frontIndex : leaseIndex;
+        if (index == rearIndex) {
+            return null;
+        }
+        int hlc = readHeader(index);
+        if (hlc >= 0 && rejectChunk()) {
+            return null;
+        }
+        byte[] data = hlc >= 0 ? new byte[frameLength] : null;
+        if (data != null) {
+            readFully(index + hlc, data, 0, data.length);
+        }
+        if (data == null || getFrameHash(data, 0, data.length, frameExpiry) != frameHash) {
+            throw new IOException("Corrupted record");
+        }
+        LeasedRecord record = new LeasedRecord(data, hlc + frameLength);
+        leases.addLast(record);
+        leaseIndex = index + hlc + frameLength;
+        if (leaseIndex >= capacity)
+            leaseIndex = offset;
+        return record;
+    }
 
-        boolean status = false;
-        errorCode = ERROR_CODE_OK;
-        exception = null;
-        DataStoreUtil.putInt(MAGIC_NUMBER, metaBlock, 0);
-        DataStoreUtil.putLong(frontIndex, metaBlock, 8);
-        DataStoreUtil.putLong(rearIndex, metaBlock, 16);
-        DataStoreUtil.putLong(count, metaBlock, 24);
-        int hash = DataStoreUtil.getHashCode(metaBlock, 8, metaBlock.length - 8);
-        DataStoreUtil.putInt(hash, metaBlock, 4);
+    private Lease deliver(LeasedRecord record, long now, long timeout) {
+        // The lease of the previous delivery is stale from now on
+        record.deadline = now + timeout;
+        record.deliveries++;
+        record.current = new Lease(this, record);
+        return record.current;
+    }
 
-        for (int i = 0; i < 2; i++) {
-            int pos = i * metaBlock.length;
-            try {
-                file.seek(pos);
-                file.write(metaBlock);
-                file.getFD().sync();
-                status = true;
-            } catch (IOException e) {
-                errorCode = ERROR_CODE_IO_ERROR;
-                exception = e;
+    /**
+     * Acknowledge the processing of a leased record. The record is removed once all the records in front of it
+     * are acknowledged.
+     *
+     * @param lease the lease of the record
+     * @return {@code false} if the lease was already acknowledged, dropped or superseded by a later delivery.
+     */
+    public synchronized boolean ack(Lease lease) {
+        error.clear();
+        if (!isCurrent(lease) || !enter()) {
+            return false;
+        }
+        try {
+            lease.record.isAcknowledged = true;
+            while (!leases.isEmpty() && leases.peekFirst().isAcknowledged) {
+                LeasedRecord head = leases.pollFirst();
+                head.isLive = false;
+                advanceFront(head.length);
+                isMetaBlockUpdated = true;
             }
+        } finally {
+            exit();
         }
+        return true;
+    }
 
-        return status;
+    /**
+     * Release a leased record, so it is leased again by the next {@link #lease(long)}.
+     *
+     * @param lease the lease of the record
+     * @return {@code false} if the lease was already acknowledged, dropped or superseded by a later delivery.
+     */
+    public synchronized boolean nack(Lease lease) {
+        return nack(lease, 0);
+    }
+
+    /**
+     * Release a leased record, so it is leased again by the first {@link #lease(long)} after {@code delay}
+     * milliseconds.
+     *
+     * @param lease the lease of the record
+     * @param delay the time in milliseconds before the record is delivered again
+     * @return {@code false} if the lease was already acknowledged, dropped or superseded by a later delivery.
+     */
+    public synchronized boolean nack(Lease lease, long delay) {
+        error.clear();
+        if (!isCurrent(lease)) {
+            return false;
+        }
+        lease.record.deadline = delay > 0 ? System.currentTimeMillis() + delay : 0;
+        return true;
+    }
+
+    /**
+     * Check that the lease is the last delivery of a record not yet acknowledged or dropped.
+     */
+    private boolean isCurrent(Lease lease) {
+        LeasedRecord record = lease.record;
+        return lease.queue == this && record.isLive && !record.isAcknowledged && record.current == lease;
+    }
+
+    private void clearLeases() {
+        for (LeasedRecord record : leases) {
+            record.isLive = false;
+        }
+        leases.clear();
     }
 
     @Override
-    public synchronized boolean write(byte[] b, int off, int len) {
-        boolean status = false;
-        int flc = len + dataBlockHeader.length;
-        errorCode = ERROR_CODE_OK;
-        exception = null;
+    public synchronized void remove() {
+        error.clear();
+        if (!enter()) {
+            return;
+        }
         try {
-            if (rearIndex < frontIndex) {
-                // 0---offset---rearIndex----frontIndex----limit
-                if ((rearIndex + flc) < frontIndex) {
-                    writeData(file, rearIndex, dataBlockHeader, b, off, len);
-                    count++;
-                    rearIndex = rearIndex + flc;
-                    isMetaBlockUpdated = true;
-                    status = true;
-                }
-
-            } else {
-                // 0---offset---frontIndex----rearIndex----limit
-                // 0 --offset-- frontIndex and rearIndex --- limit
-                if (rearIndex + flc < capacity) {
-                    writeData(file, rearIndex, dataBlockHeader, b, off, len);
-                    count++;
-                    rearIndex = rearIndex + flc;
+            clearLeases();
+            if (rearIndex != frontIndex) {
+                try {
+                    int hlc = readHeader(frontIndex);
                     isMetaBlockUpdated = true;
-                    status = true;
-                } else {
-                    if (frontIndex != offset) {
-                        writeData(file, rearIndex, dataBlockHeader, b, off, len);
-                        count++;
-                        rearIndex = offset;
-                        isMetaBlockUpdated = true;
-                        status = true;
+                    if (hlc >= 0) {
+                        advanceFront(frameLength + hlc);
+                        // A record written with a stream is removed with all its chunks, unless read by the stream
+                        while (frameIdentifier == CHUNK_FRAME_IDENTIFIER && !isChunkRead && rearIndex != frontIndex
+                                && (hlc = readHeader(frontIndex)) >= 0) {
+                            advanceFront(frameLength + hlc);
+                        }
+                    } else {
+                        // There is corruption in the file pointers
+                        // Let's drop data until write index
+                        headSequence += count;
+                        count = 0;
+                        frontIndex = rearIndex;
                     }
+                } catch (EOFException e) {
+                    // Pointer reached end-of-file
+                    // Reset the index
+                    isMetaBlockUpdated = true;
+                    frontIndex = offset;
+                } catch (IOException e) {
+                    error.set(ERROR_CODE_IO_ERROR, e);
                 }
             }
-        } catch (IOException e) {
-            errorCode = ERROR_CODE_IO_ERROR;
-            exception = e;
+        } finally {
+            exit();
         }
-
-
-        return status;
     }
 
-    @Override
-    public boolean write(byte[] b) {
-        return write(b, 0, b.length);
+    private void advanceFront(long flc) {
+        count = count > 0 ? count - 1 : 0;
+        headSequence++;
+        frontIndex += flc;
+        uncheckpointedBytes += flc;
+        if (frontIndex >= capacity)
+            frontIndex = offset;
     }
 
-    @Override
-    public synchronized int read(byte[] b, int off, int len) {
-        int size = -1;
-        errorCode = ERROR_CODE_OK;
-        exception = null;
-        if (rearIndex != frontIndex) {
-            size = 0;
-            try {
-                file.seek(frontIndex);
-                file.readFully(dataBlockHeader);
-                int fid = DataStoreUtil.getInt(dataBlockHeader, 0);
-                int dlc = DataStoreUtil.getInt(dataBlockHeader, 4);
-                int negated = DataStoreUtil.getInt(dataBlockHeader, 8);
-                int hash = DataStoreUtil.getInt(dataBlockHeader, 12);
-                if (fid == FRAME_IDENTIFIER && (dlc == (~negated))) {
-                    if (len >= dlc) {
-                        file.readFully(b, off, dlc);
-                        if (DataStoreUtil.getHashCode(b, off, dlc) == hash) {
-                            size = dlc;
-                        }
-                    }
+    /**
+     * Removes the expired records at the front of this data store, reading only their headers.
+     *
+     * @return {@code false} if an I/O error occurs.
+     */
+    private boolean skipExpired() {
+        long now = 0;
+        try {
+            // The leased records are removed by their acknowledgement only
+            while (rearIndex != frontIndex && leases.isEmpty()) {
+                int hlc = readHeader(frontIndex);
+                if (hlc < 0 || frameExpiry == 0) {
+                    break;
                 }
-            } catch (IOException e) {
-                errorCode = ERROR_CODE_IO_ERROR;
-                exception = e;
+                now = now == 0 ? System.currentTimeMillis() : now;
+                if (frameExpiry > now) {
+                    break;
+                }
+                isMetaBlockUpdated = true;
+                advanceFront(frameLength + hlc);
             }
+        } catch (EOFException e) {
+            // Let the remove reset the front index
+        } catch (IOException e) {
+            error.set(ERROR_CODE_IO_ERROR, e);
+            return false;
         }
+        return true;
+    }
 
-        return size;
+    /**
+     * Removes the run of expired records at the front of this data store. The front index is moved past the
+     * records without reading their data. Expired records behind a record that did not expire yet are kept until
+     * they reach the front.
+     *
+     * @return the number of records removed, or {@code -1} if an I/O error occurs.
+     */
+    public synchronized long purgeExpired() {
+        error.clear();
+        if (!enter()) {
+            return -1;
+        }
+        try {
+            long before = count;
+            return skipExpired() ? before - count : -1;
+        } finally {
+            exit();
+        }
     }
 
-    @Override
-    public int read(byte[] b) {
-        return read(b, 0, b.length);
+    /**
+     * Start a low priority daemon thread that invokes {@link #purgeExpired()} periodically, until this data store
+     * is closed. The removals are stored to the disk by the next {@link #sync()}.
+     *
+     * @param period the time in milliseconds between two purges.
+     */
+    public synchronized void startPurgeTask(long period) {
+        if (period <= 0) {
+            throw new IllegalArgumentException("Purge period must be positive");
+        }
+        if (purgeTask != null) {
+            purgeTask.interrupt();
+        }
+        Thread task = new Thread(() -> {
+            for (; ; ) {
+                try {
+                    Thread.sleep(period);
+                } catch (InterruptedException e) {
+                    return;
+                }
+                synchronized (this) {
+                    if (purgeTask != Thread.currentThread()) {
+                        return;
+                    }
+                    purgeExpired();
+                }
+            }
+        }, "datastore-purge-" + PURGE_THREAD_COUNT.incrementAndGet());
+        task.setDaemon(true);
+        task.setPriority(Thread.MIN_PRIORITY);
+        purgeTask = task;
+        task.start();
     }
 
-    @Override
-    public synchronized int readLength() {
-        int size = -1;
-        errorCode = ERROR_CODE_OK;
-        exception = null;
-        if (rearIndex != frontIndex) {
-            size = 0;
-            try {
-                file.seek(frontIndex);
-                file.readFully(dataBlockHeader);
-                int fid = DataStoreUtil.getInt(dataBlockHeader, 0);
-                int dlc = DataStoreUtil.getInt(dataBlockHeader, 4);
-                int negated = DataStoreUtil.getInt(dataBlockHeader, 8);
-                if (fid == FRAME_IDENTIFIER && (dlc == (~negated))) {
-                    size = dlc;
+    /**
+     * Grow the capacity of this data store without copying the records when possible. When the records wrap around
+     * the end of the file, the smaller of the two segments is moved to the new space, so the records stay in one
+     * piece. The writers wait until the resize is complete. The new capacity is stored, so the data store can be
+     * opened again with the previous limit.
+     *
+     * @param newCapacity the new capacity, not smaller than the current capacity.
+     * @return {@code false} if an I/O error occurs or the new capacity is too small to hold a segment.
+     */
+    public synchronized boolean resize(long newCapacity) {
+        boolean status = false;
+        error.clear();
+        if (shared != null) {
+            error.set(ERROR_CODE_NOT_SUPPORTED, null);
+            return false;
+        }
+        if (!enter()) {
+            return false;
+        }
+        try {
+            long previousCapacity = capacity;
+            if (newCapacity >= capacity && transactionOwner == null
+                    && (rearIndex >= frontIndex || relocate(newCapacity))) {
+                capacity = newCapacity;
+                if (isCheckpointLight()) {
+                    writeTerminator();
                 }
-            } catch (IOException e) {
-                errorCode = ERROR_CODE_IO_ERROR;
-                exception = e;
+                status = writeCapacity(PENDING_CAPACITY_MAGIC_NUMBER, previousCapacity) && writeMetaData()
+                        && writeCapacity(CAPACITY_MAGIC_NUMBER, previousCapacity);
             }
+        } catch (IOException e) {
+            error.set(ERROR_CODE_IO_ERROR, e);
+        } finally {
+            exit();
         }
-        return size;
+        return status;
     }
 
-    @Override
-    public synchronized boolean sync() {
-        boolean status = true;
-        errorCode = ERROR_CODE_OK;
-        exception = null;
-        if (isMetaBlockUpdated) {
-            isMetaBlockUpdated = false;
-            status = writeMetaData();
+    /**
+     * Move the segment of the records at the start of the file behind the segment at the end of the file, or the
+     * segment at the end of the file to the end of the new capacity, whichever is smaller and fits.
+     *
+     * @return {@code false} if none of the segments fits.
+     */
+    private boolean relocate(long newCapacity) throws IOException {
+        long end = segmentEnd();
+        long head = end - frontIndex;
+        long tail = rearIndex - offset;
+        // The rear stays below the capacity, as after any append
+        boolean isTailMovable = end + tail < newCapacity;
+        // The moved segment must not overlap its old place, so a crash leaves the persisted layout intact
+        boolean isHeadMovable = newCapacity - head >= end;
+        if (isTailMovable && (tail <= head || !isHeadMovable)) {
+            long delta = end - offset;
+            copy(offset, end, tail);
+            if (index != null) {
+                index.relocate(offset, rearIndex, delta);
+            }
+            if (!leases.isEmpty() && leaseIndex <= rearIndex) {
+                leaseIndex += delta;
+            }
+            rearIndex += delta;
+        } else if (isHeadMovable) {
+            long delta = newCapacity - end;
+            copy(frontIndex, frontIndex + delta, head);
+            if (index != null) {
+                index.relocate(frontIndex, end, delta);
+            }
+            if (!leases.isEmpty() && leaseIndex >= frontIndex) {
+                leaseIndex += delta;
+            }
+            frontIndex += delta;
+        } else {
+            return false;
         }
-        return status;
+        file.getFD().sync();
+        return true;
     }
 
-    @Override
-    public synchronized void remove() {
-        errorCode = ERROR_CODE_OK;
-        exception = null;
-        if (rearIndex != frontIndex) {
-            try {
-                file.seek(frontIndex);
-                file.readFully(dataBlockHeader);
-                int fid = DataStoreUtil.getInt(dataBlockHeader, 0);
-                int dlc = DataStoreUtil.getInt(dataBlockHeader, 4);
-                int negated = DataStoreUtil.getInt(dataBlockHeader, 8);
-                isMetaBlockUpdated = true;
-                if (fid == FRAME_IDENTIFIER && (dlc == (~negated))) {
-                    count = count > 0 ? count - 1 : 0;
-                    frontIndex += (dlc + dataBlockHeader.length);
-                    if (frontIndex >= capacity)
-                        frontIndex = offset;
-                } else {
-                    // There is corruption in the file pointers
-                    // Let's drop data until write index
-                    count = 0;
-                    frontIndex = rearIndex;
-                }
-            } catch (EOFException e) {
-                // Pointer reached end-of-file
-                // Reset the index
-                isMetaBlockUpdated = true;
-                frontIndex = offset;
-            } catch (IOException e) {
-                errorCode = ERROR_CODE_IO_ERROR;
-                exception = e;
+    /**
+     * Finds the end of the records at the end of the file when the records wrap around.
+     */
+    private long segmentEnd() throws IOException {
+        // The last frame of the segment at the end of the file may run past the capacity
+        long end = frontIndex;
+        while (end < capacity) {
+            int hlc = readHeader(end);
+            if (hlc < 0) {
+                throw new IOException("Corrupted record");
             }
+            end += hlc + frameLength;
+        }
+        return end;
+    }
+
+    private void copy(long from, long to, long len) throws IOException {
+        invalidate(to, len);
+        byte[] b = new byte[(int) Math.min(len, 1 << 16)];
+        for (long done = 0; done < len; ) {
+            int n = (int) Math.min(b.length, len - done);
+            file.seek(from + done);
+            file.readFully(b, 0, n);
+            file.seek(to + done);
+            file.write(b, 0, n);
+            done += n;
         }
     }
 
     @Override
-    public synchronized boolean isEmpty() {
-        errorCode = ERROR_CODE_OK;
-        exception = null;
-        return rearIndex == frontIndex;
+    public boolean isEmpty() {
+        Pointers published = getPointers();
+        return published.rearIndex == published.frontIndex;
     }
 
     @Override
-    public synchronized long count() {
-        errorCode = ERROR_CODE_OK;
-        exception = null;
-        return count;
+    public long count() {
+        return getPointers().count;
     }
 
     @Override
-    public synchronized long capacity() {
-        errorCode = ERROR_CODE_OK;
-        exception = null;
-        return capacity;
+    public long capacity() {
+        return getPointers().capacity;
     }
 
     @Override
-    public synchronized long usage() {
+    public long usage() {
         long used;
-        errorCode = ERROR_CODE_OK;
-        exception = null;
-        if (rearIndex < frontIndex) {
+        Pointers published = getPointers();
+        if (published.rearIndex < published.frontIndex) {
             // 0---offset---rearIndex----frontIndex----limit
-            used = (rearIndex + offset) + (capacity - frontIndex);
+            used = (published.rearIndex + offset) + (published.capacity - published.frontIndex);
 
         } else {
             // 0---offset---frontIndex----rearIndex----limit
             // 0 --offset-- frontIndex and rearIndex --- limit
-            used = rearIndex - frontIndex;
+            used = published.rearIndex - published.frontIndex;
         }
         return used;
     }
 
     @Override
-    public synchronized long free() {
+    public long free() {
         long free;
-        errorCode = ERROR_CODE_OK;
-        exception = null;
-        if (rearIndex < frontIndex) {
+        Pointers published = getPointers();
+        if (published.rearIndex < published.frontIndex) {
             // 0---offset---rearIndex----frontIndex----limit
-            free = frontIndex - rearIndex;
+            free = published.frontIndex - published.rearIndex;
 
         } else {
             // 0---offset---frontIndex----rearIndex----limit
             // 0 --offset-- frontIndex and rearIndex --- limit
-            free = (capacity - rearIndex) + (frontIndex - offset);
+            free = (published.capacity - published.rearIndex) + (published.frontIndex - offset);
         }
         return free;
 
@@ -350,16 +2043,90 @@ public class FileDataStoreQueue implements DataStore {
 
     @Override
     public int getErrorCode() {
-        return errorCode;
+        return error.getCode();
     }
 
     @Override
     public Exception getException() {
-        return exception;
+        return error.getException();
     }
 
     @Override
     public synchronized void close() throws IOException {
+        if (purgeTask != null) {
+            purgeTask.interrupt();
+            purgeTask = null;
+        }
         file.close();
+        if (index != null) {
+            index.close();
+        }
+    }
+
+    /**
+     * Lease of a delivery of a record of the data store, returned by {@link #lease(long)}.
+     */
+    public static final class Lease {
+        private final FileDataStoreQueue queue;
+        private final LeasedRecord record;
+        private final int delivery;
+
+        private Lease(FileDataStoreQueue queue, LeasedRecord record) {
+            this.queue = queue;
+            this.record = record;
+            delivery = record.deliveries;
+        }
+
+        /**
+         * Get the leased record.
+         * @return the data of the record
+         */
+        public byte[] getData() {
+            return record.data;
+        }
+
+        /**
+         * Get the number of times the record was leased up to this delivery, since the data store was opened.
+         * @return the number of deliveries, {@code 1} for the first delivery
+         */
+        public int getDeliveryCount() {
+            return delivery;
+        }
+    }
+
+    /**
+     * Record leased and not yet removed from the front, guarded by the data store.
+     */
+    private static final class LeasedRecord {
+        private final byte[] data;
+        private final int length;
+        private long deadline;
+        private int deliveries;
+        private boolean isAcknowledged;
+        private boolean isLive;
+        private Lease current;
+
+        private LeasedRecord(byte[] data, int length) {
+            this.data = data;
+            this.length = length;
+            isLive = true;
+        }
+    }
+
+    /**
+     * Pointers published by the last operation, read by the statistics without the lock.
+     */
+    private static final class Pointers {
+        private final long frontIndex;
+        private final long rearIndex;
+        private final long count;
+        private final long capacity;
+
+        private Pointers(long frontIndex, long rearIndex, long count, long capacity) {
+            this.frontIndex = frontIndex;
+            this.rearIndex = rearIndex;
+            this.count = count;
+            this.capacity = capacity;
+        }
     }
 }
@@ -2,6 +2,11 @@ package io.github.peacock05.datastore;
 
 
 import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.channels.WritableByteChannel;
+import java.util.Arrays;
 
 /**
  * FileDataStoreStack implements a persistent queue that allows data to be read, write and remove in LIFO order
@@ -10,19 +15,19 @@ import java.io.*;
  * ----------------------------------------------------------------------------
  * | Magic number
  * | Top Index
- * | 0
+ * | Capacity
  * | Count
  * | Hash
  * |
  * | Magic number
  * | Top Index
- * | 0
+ * | Capacity
  * | Count
  * | Hash
  * |
  * | Data 0, Data 1, ..... Data N, 0x5b77f49e, Data length, ~Data length, Data Hash
  */
-public class FileDataStoreStack implements DataStore {
+public class FileDataStoreStack implements DataStore, FrameStore {
 
     private final static int ERROR_CODE_OK = 0;
     private final static int ERROR_CODE_IO_ERROR = 1;
@@ -31,15 +36,16 @@ public class FileDataStoreStack implements DataStore {
     private final static int FRAME_IDENTIFIER = 0x5b77f49e;
     private final RandomAccessFile file;
     private final byte[] metaBlock, dataBlockHeader, backUpBlockHeader;
-    private final long capacity;
+    private long capacity;
     private final int offset;
     private final RandomAccessFile backUpFile;
     private long topIndex;
     private long count;
     private boolean isMetaBlockUpdated;
     private boolean isBackUpUpdated;
-    private int errorCode;
-    private Exception exception;
+    private boolean isBackUpPresent;
+    private volatile Pointers pointers;
+    private final ErrorState error = new ErrorState();
 
     /**
      * Create the file based persistent data store to read, write and delete the data in LIFO order.
@@ -61,13 +67,19 @@ public class FileDataStoreStack implements DataStore {
             topIndex = 0;
             writeMetaData();
         }
+        isBackUpPresent = readBackUpLength() >= 0;
+        if (isBackUpPresent && isBackUpUnpersisted()) {
+            // The element is still on the top of the stack, as the pop did not reach the meta block
+            removeBackUp();
+            backUpFile.getFD().sync();
+        }
+        publish();
     }
 
     private boolean readMetaData() {
 
         boolean status = false;
-        errorCode = ERROR_CODE_OK;
-        exception = null;
+        error.clear();
         for (int i = 0; i < 2; i++) {
             int pos = i * metaBlock.length;
             try {
@@ -77,14 +89,13 @@ public class FileDataStoreStack implements DataStore {
                 int hash = DataStoreUtil.getInt(metaBlock, 4);
                 if (magic == MAGIC_NUMBER && hash == DataStoreUtil.getHashCode(metaBlock, 8, metaBlock.length - 8)) {
                     topIndex = DataStoreUtil.getLong(metaBlock, 8);
-                    DataStoreUtil.getLong(metaBlock, 16); // Reserved
+                    capacity = Math.max(capacity, DataStoreUtil.getLong(metaBlock, 16));
                     count = DataStoreUtil.getLong(metaBlock, 24);
                     status = true;
                     break;
                 }
             } catch (IOException e) {
-                errorCode = ERROR_CODE_IO_ERROR;
-                exception = e;
+                error.set(ERROR_CODE_IO_ERROR, e);
             }
         }
 
@@ -95,11 +106,10 @@ public class FileDataStoreStack implements DataStore {
     private boolean writeMetaData() {
 
         boolean status = false;
-        errorCode = ERROR_CODE_OK;
-        exception = null;
+        error.clear();
         DataStoreUtil.putInt(MAGIC_NUMBER, metaBlock, 0);
         DataStoreUtil.putLong(topIndex, metaBlock, 8);
-        DataStoreUtil.putLong(0, metaBlock, 16);
+        DataStoreUtil.putLong(capacity, metaBlock, 16);
         DataStoreUtil.putLong(count, metaBlock, 24);
         int hash = DataStoreUtil.getHashCode(metaBlock, 8, metaBlock.length - 8);
         DataStoreUtil.putInt(hash, metaBlock, 4);
@@ -112,8 +122,7 @@ public class FileDataStoreStack implements DataStore {
                 file.getFD().sync();
                 status = true;
             } catch (IOException e) {
-                errorCode = ERROR_CODE_IO_ERROR;
-                exception = e;
+                error.set(ERROR_CODE_IO_ERROR, e);
             }
         }
 
@@ -121,32 +130,45 @@ public class FileDataStoreStack implements DataStore {
     }
 
     @Override
-    public synchronized boolean write(byte[] b, int off, int len) {
+    public boolean write(byte[] b, int off, int len) {
+        return append(b, off, len, dataBlockHeader, 0);
+    }
+
+    @Override
+    public boolean writeFrame(byte[] frame, int len) {
+        return append(frame, HEADER_LENGTH, len, frame, HEADER_LENGTH + len);
+    }
+
+    private synchronized boolean append(byte[] b, int off, int len, byte[] header, int hoff) {
         boolean status = false;
         int flc = len + dataBlockHeader.length;
-        errorCode = ERROR_CODE_OK;
-        exception = null;
+        error.clear();
         if ((topIndex + flc) < capacity) {
-            DataStoreUtil.putInt(FRAME_IDENTIFIER, dataBlockHeader, 0);
-            DataStoreUtil.putInt(len, dataBlockHeader, 4);
-            DataStoreUtil.putInt(~len, dataBlockHeader, 8);
+            DataStoreUtil.putInt(FRAME_IDENTIFIER, header, hoff);
+            DataStoreUtil.putInt(len, header, hoff + 4);
+            DataStoreUtil.putInt(~len, header, hoff + 8);
             int hash = DataStoreUtil.getHashCode(b, off, len);
-            DataStoreUtil.putInt(hash, dataBlockHeader, 12);
+            DataStoreUtil.putInt(hash, header, hoff + 12);
 
             try {
                 file.seek(topIndex + offset);
-                file.write(b, off, len);
-                file.write(dataBlockHeader);
+                if (header == b && hoff == off + len) {
+                    // The header is filled in place behind the data
+                    file.write(b, off, flc);
+                } else {
+                    file.write(b, off, len);
+                    file.write(header, hoff, dataBlockHeader.length);
+                }
                 status = true;
                 isMetaBlockUpdated = true;
                 count++;
                 topIndex += flc;
 
             } catch (IOException e) {
-                errorCode = ERROR_CODE_IO_ERROR;
-                exception = e;
+                error.set(ERROR_CODE_IO_ERROR, e);
             }
         }
+        publish();
 
         return status;
     }
@@ -157,6 +179,10 @@ public class FileDataStoreStack implements DataStore {
     }
 
 
+    /**
+     * Write the popped element to the back up file, followed by the top index and the count before the pop, which
+     * tell on the next open whether the pop reached the meta block.
+     */
     private void writeBackUp(byte[] b, int off, int len) {
 
         try {
@@ -166,13 +192,33 @@ public class FileDataStoreStack implements DataStore {
             int hash = DataStoreUtil.getHashCode(b, off, len);
             DataStoreUtil.putInt(hash, backUpBlockHeader, 12);
             backUpFile.seek(0);
-            backUpFile.write(dataBlockHeader);
+            backUpFile.write(backUpBlockHeader);
             backUpFile.write(b, off, len);
+            backUpFile.writeLong(topIndex);
+            backUpFile.writeLong(count);
+            isBackUpPresent = true;
         } catch (IOException ignore) {
 
         }
     }
 
+    /**
+     * Only pushes are accepted while the back up is present, and every push changes the count, so the meta block
+     * still holds the top index and the count written after the element only if the pop was not persisted.
+     */
+    private boolean isBackUpUnpersisted() {
+        boolean status = false;
+        try {
+            long trailer = backUpBlockHeader.length + (long) readBackUpLength();
+            if (backUpFile.length() >= trailer + 16) {
+                backUpFile.seek(trailer);
+                status = backUpFile.readLong() == topIndex && backUpFile.readLong() == count;
+            }
+        } catch (IOException ignore) {
+        }
+        return status;
+    }
+
     private int readBackUp(byte[] b, int off, int len) {
         int size = -1;
         try {
@@ -220,6 +266,7 @@ public class FileDataStoreStack implements DataStore {
             if(fid == FRAME_IDENTIFIER){
                 backUpFile.seek(0);
                 backUpFile.writeInt(0);
+                isBackUpPresent = false;
                 status = true;
             }
         } catch (IOException ignore) {
@@ -229,8 +276,7 @@ public class FileDataStoreStack implements DataStore {
 
     @Override
     public synchronized int read(byte[] b, int off, int len) {
-        errorCode = ERROR_CODE_OK;
-        exception = null;
+        error.clear();
         int size = readBackUp(b, off, len);
         if (size < 0 && (topIndex >= (dataBlockHeader.length))) {
             try {
@@ -257,12 +303,25 @@ public class FileDataStoreStack implements DataStore {
                     }
                 }
             } catch (IOException e) {
-                errorCode = ERROR_CODE_IO_ERROR;
-                exception = e;
+                error.set(ERROR_CODE_IO_ERROR, e);
             }
         }
+        publish();
 
+        return size;
+    }
 
+    @Override
+    public synchronized int readFrame(FrameBuffer buffer) {
+        int size = readLength();
+        if (size > 0) {
+            int length = size;
+            size = read(buffer.ensure(length), 0, length);
+            // The frame buffer fits the record, so a record that is not read is corrupted
+            if (size != length && error.getCode() == ERROR_CODE_OK) {
+                error.set(ERROR_CODE_IO_ERROR, new IOException("Corrupted record"));
+            }
+        }
         return size;
     }
 
@@ -273,8 +332,7 @@ public class FileDataStoreStack implements DataStore {
 
     @Override
     public synchronized int readLength() {
-        errorCode = ERROR_CODE_OK;
-        exception = null;
+        error.clear();
         int size = readBackUpLength();
         if (size < 0 && topIndex >= dataBlockHeader.length) {
             try {
@@ -289,8 +347,7 @@ public class FileDataStoreStack implements DataStore {
                 }
             } catch (IOException e) {
                 size = 0;
-                errorCode = ERROR_CODE_IO_ERROR;
-                exception = e;
+                error.set(ERROR_CODE_IO_ERROR, e);
             }
         }
 
@@ -300,8 +357,7 @@ public class FileDataStoreStack implements DataStore {
     @Override
     public synchronized boolean sync() {
         boolean status = true;
-        errorCode = ERROR_CODE_OK;
-        exception = null;
+        error.clear();
         if (isMetaBlockUpdated) {
             isMetaBlockUpdated = false;
             status = writeMetaData();
@@ -312,8 +368,7 @@ public class FileDataStoreStack implements DataStore {
             try {
                 backUpFile.getFD().sync();
             } catch (IOException e) {
-                errorCode = ERROR_CODE_IO_ERROR;
-                exception = e;
+                error.set(ERROR_CODE_IO_ERROR, e);
             }
         }
         return status;
@@ -321,8 +376,7 @@ public class FileDataStoreStack implements DataStore {
 
     @Override
     public synchronized void remove() {
-        errorCode = ERROR_CODE_OK;
-        exception = null;
+        error.clear();
         boolean backRemoved = removeBackUp();
         if(backRemoved){
             isBackUpUpdated = true;
@@ -344,63 +398,207 @@ public class FileDataStoreStack implements DataStore {
                     } else {
                         count = 0;
                         topIndex = 0;
-                        errorCode = ERROR_CODE_LN_ERROR;
-                        exception = null;
+                        error.set(ERROR_CODE_LN_ERROR, null);
                     }
                 } catch (IOException e) {
                     count = 0;
                     topIndex = 0;
-                    errorCode = ERROR_CODE_IO_ERROR;
-                    exception = e;
+                    error.set(ERROR_CODE_IO_ERROR, e);
+                }
+            }
+        }
+        publish();
+    }
+
+    /**
+     * Write all the elements to the channel, from the bottom to the top of the stack, so an import restores the
+     * same stack. The frames are transferred from the file to the channel without passing through the heap, and
+     * the elements stay in this data store. The positions of the frames are collected first, as the headers follow
+     * the data.
+     *
+     * @param channel the blocking channel receiving the frames
+     * @return {@code false} if an I/O error occurs or a frame is corrupted.
+     */
+    @Override
+    public synchronized boolean exportTo(WritableByteChannel channel) {
+        boolean status = false;
+        error.clear();
+        try {
+            long[] frames = new long[16];
+            int frameCount = 0;
+            long headerSeek = topIndex - dataBlockHeader.length;
+            for (; headerSeek >= 0; frameCount++) {
+                file.seek(headerSeek + offset);
+                file.readFully(dataBlockHeader);
+                int fid = DataStoreUtil.getInt(dataBlockHeader, 0);
+                int dlc = DataStoreUtil.getInt(dataBlockHeader, 4);
+                int negated = DataStoreUtil.getInt(dataBlockHeader, 8);
+                long dataSeek = headerSeek - dlc;
+                if (fid != FRAME_IDENTIFIER || dlc != (~negated) || dlc < 0 || dataSeek < 0) {
+                    error.set(ERROR_CODE_LN_ERROR, null);
+                    return false;
+                }
+                if (frameCount == frames.length) {
+                    frames = Arrays.copyOf(frames, frameCount * 2);
+                }
+                frames[frameCount] = dataSeek;
+                headerSeek = dataSeek - dataBlockHeader.length;
+            }
+            FileChannel source = file.getChannel();
+            for (int i = frameCount - 1; i >= 0; i--) {
+                long end = (i == 0 ? topIndex : frames[i - 1]) - dataBlockHeader.length;
+                DataStoreUtil.transferTo(source, end + offset, dataBlockHeader.length, channel);
+                DataStoreUtil.transferTo(source, frames[i] + offset, end - frames[i], channel);
+            }
+            // The element read last is kept in the backup file until it is removed
+            int size = readBackUpLength();
+            if (size >= 0) {
+                DataStoreUtil.transferTo(backUpFile.getChannel(), 0, backUpBlockHeader.length + size, channel);
+            }
+            status = true;
+        } catch (IOException e) {
+            error.set(ERROR_CODE_IO_ERROR, e);
+        }
+        return status;
+    }
+
+    /**
+     * Push the frames read from the channel until the end of the stream. Each frame is read from the channel
+     * without the lock of this data store, which is taken only to push the frame, so a slow channel does not stall
+     * the other threads. The hash of the data is checked when the element is read.
+     *
+     * @param channel the blocking channel providing the frames written by {@link #exportTo(WritableByteChannel)}
+     * @return {@code false} if an I/O error occurs, the stream is corrupted or holds elements with a time to live,
+     * or the data store is full. The elements imported until then are kept, and the exception gives the position in
+     * the stream of the first element not imported, the error code being {@code 2} if the stream is corrupted or the
+     * data store is full.
+     */
+    @Override
+    public boolean importFrom(ReadableByteChannel channel) {
+        boolean status = false;
+        long position = 0;
+        error.clear();
+        byte[] header = new byte[HEADER_LENGTH];
+        byte[] frame = new byte[256];
+        try {
+            for (; ; ) {
+                if (!DataStoreUtil.readFully(channel, ByteBuffer.wrap(header))) {
+                    status = true;
+                    break;
+                }
+                int fid = DataStoreUtil.getInt(header, 0);
+                int dlc = DataStoreUtil.getInt(header, 4);
+                int negated = DataStoreUtil.getInt(header, 8);
+                if (fid != FRAME_IDENTIFIER || dlc != (~negated) || dlc < 0 || dlc > capacity()) {
+                    error.set(ERROR_CODE_LN_ERROR, new IOException("Unsupported element at position " + position
+                            + " of the channel"));
+                    break;
+                }
+                // The header is stored behind the data
+                int flc = dlc + HEADER_LENGTH;
+                if (frame.length < flc) {
+                    frame = new byte[Math.max(frame.length * 2, flc)];
                 }
+                if (!DataStoreUtil.readFully(channel, ByteBuffer.wrap(frame, 0, dlc))) {
+                    throw new EOFException("Incomplete element at position " + position + " of the channel");
+                }
+                System.arraycopy(header, 0, frame, dlc, HEADER_LENGTH);
+                if (!pushFrame(frame, flc)) {
+                    error.set(ERROR_CODE_LN_ERROR, new IOException("No space for the element at position "
+                            + position + " of the channel"));
+                    break;
+                }
+                position += flc;
             }
+        } catch (IOException e) {
+            error.set(ERROR_CODE_IO_ERROR, e);
         }
+        return status;
+    }
 
+    /**
+     * Push a complete frame read by {@link #importFrom(ReadableByteChannel)}.
+     *
+     * @return {@code false} if the data store is full.
+     */
+    private synchronized boolean pushFrame(byte[] frame, int flc) throws IOException {
+        if ((topIndex + flc) >= capacity) {
+            return false;
+        }
+        file.seek(topIndex + offset);
+        file.write(frame, 0, flc);
+        isMetaBlockUpdated = true;
+        count++;
+        topIndex += flc;
+        publish();
+        return true;
+    }
+
+    /**
+     * Grow the capacity of this data store. The data is never moved and the new capacity is stored in the meta
+     * block, so the data store keeps it when opened with a smaller limit.
+     *
+     * @param newCapacity the new capacity, not smaller than the current capacity.
+     * @return {@code false} if an I/O error occurs or the new capacity is smaller than the current capacity.
+     */
+    public synchronized boolean resize(long newCapacity) {
+        error.clear();
+        if (newCapacity < capacity) {
+            return false;
+        }
+        capacity = newCapacity;
+        isMetaBlockUpdated = false;
+        boolean status = writeMetaData();
+        publish();
+        return status;
+    }
+
+    /**
+     * Publish the pointers for the statistics read without the lock.
+     */
+    private void publish() {
+        Pointers published = pointers;
+        if (published == null || published.topIndex != topIndex || published.count != count
+                || published.capacity != capacity || published.isBackUpPresent != isBackUpPresent) {
+            pointers = new Pointers(topIndex, count, capacity, isBackUpPresent);
+        }
     }
 
     @Override
-    public synchronized boolean isEmpty() {
-        errorCode = ERROR_CODE_OK;
-        exception = null;
-        return readBackUpLength() < 0 && (topIndex < dataBlockHeader.length);
+    public boolean isEmpty() {
+        Pointers published = pointers;
+        return !published.isBackUpPresent && (published.topIndex < dataBlockHeader.length);
     }
 
     @Override
-    public synchronized long count() {
-        errorCode = ERROR_CODE_OK;
-        exception = null;
-        return count;
+    public long count() {
+        return pointers.count;
     }
 
     @Override
-    public synchronized long capacity() {
-        errorCode = ERROR_CODE_OK;
-        exception = null;
-        return capacity;
+    public long capacity() {
+        return pointers.capacity;
     }
 
     @Override
-    public synchronized long usage() {
-        errorCode = ERROR_CODE_OK;
-        exception = null;
-        return topIndex;
+    public long usage() {
+        return pointers.topIndex;
     }
 
     @Override
-    public synchronized long free() {
-        errorCode = ERROR_CODE_OK;
-        exception = null;
-        return (capacity - topIndex);
+    public long free() {
+        Pointers published = pointers;
+        return (published.capacity - published.topIndex);
     }
 
     @Override
     public int getErrorCode() {
-        return errorCode;
+        return error.getCode();
     }
 
     @Override
     public Exception getException() {
-        return exception;
+        return error.getException();
     }
 
     @Override
@@ -416,4 +614,21 @@ public class FileDataStoreStack implements DataStore {
 
         }
     }
+
+    /**
+     * Pointers published by the last operation, read by the statistics without the lock.
+     */
+    private static final class Pointers {
+        private final long topIndex;
+        private final long count;
+        private final long capacity;
+        private final boolean isBackUpPresent;
+
+        private Pointers(long topIndex, long count, long capacity, boolean isBackUpPresent) {
+            this.topIndex = topIndex;
+            this.count = count;
+            this.capacity = capacity;
+            this.isBackUpPresent = isBackUpPresent;
+        }
+    }
 }
@@ -0,0 +1,556 @@
+package io.github.peacock05.datastore;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.Arrays;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * FileKeyValueStore implements a persistent key-value store as an append-only log, with an in-memory index of the
+ * file position and the frame length of the latest value of every key, so a value is read with a single seek and a
+ * single read.
+ * <p>
+ * Every put and delete appends a frame to the log, the frames made stale by later puts and deletes are dropped by
+ * {@link #compact()}, which rewrites the live frames to a new log. The index is rebuilt by scanning the log on open.
+ * <p>
+ * Persistent storage format
+ * ----------------------------------------------------------------------------
+ * | 0x5b77f4a0, Data length, ~Data length, Data Hash, Key, Value 0, Value 1, ..... Value N
+ * | 0x5b77f4a1, Data length, ~Data length, Data Hash, Key
+ * <p>
+ * The second frame format marks a deleted key, the data of both formats being the key followed by the value.
+ */
+public class FileKeyValueStore implements AutoCloseable {
+
+    private final static int ERROR_CODE_OK = 0;
+    private final static int ERROR_CODE_IO_ERROR = 1;
+    private final static int PUT_FRAME_IDENTIFIER = 0x5b77f4a0;
+    private final static int DELETE_FRAME_IDENTIFIER = 0x5b77f4a1;
+    private final static int HEADER_LENGTH = 16;
+    private final static int KEY_LENGTH = 8;
+    private final static int COPY_BUFFER_SIZE = 64 * 1024;
+    private final static AtomicInteger COMPACTION_THREAD_COUNT = new AtomicInteger();
+    private final File path;
+    private final File compactionPath;
+    private final long capacity;
+    private final byte[] dataBlockHeader;
+    private final Object compactionLock;
+    private LongHashTable index;
+    private LongHashTable lengths;
+    private RandomAccessFile file;
+    private byte[] frame;
+    private long rearIndex;
+    private long staleBytes;
+    private Thread compactionTask;
+    private boolean isClosed;
+    private int errorCode;
+    private Exception exception;
+
+    /**
+     * Create the file based persistent key-value store.
+     *
+     * @param storeName Name of the store
+     * @param directory Directory to store the file
+     * @param limit     Maximum size of the log.
+     * @throws IOException Upon error in creating, reading or writing to the file.
+     */
+    public FileKeyValueStore(String storeName, String directory, long limit) throws IOException {
+        path = new File(directory, storeName + ".kv");
+        compactionPath = new File(directory, storeName + ".kv.compact");
+        capacity = limit;
+        dataBlockHeader = new byte[HEADER_LENGTH + KEY_LENGTH];
+        compactionLock = new Object();
+        index = new LongHashTable(1024);
+        lengths = new LongHashTable(1024);
+        frame = new byte[256];
+        // A compaction interrupted before the rename is discarded
+        Files.deleteIfExists(compactionPath.toPath());
+        file = new RandomAccessFile(path, "rw");
+        try {
+            load();
+        } catch (IOException e) {
+            file.close();
+            throw e;
+        }
+    }
+
+    /**
+     * Scans the log and drops the frame left incomplete by a crash.
+     */
+    private void load() throws IOException {
+        long pos = 0;
+        for (; ; ) {
+            int fid, dlc, hash;
+            try {
+                file.seek(pos);
+                file.readFully(dataBlockHeader, 0, HEADER_LENGTH);
+                fid = DataStoreUtil.getInt(dataBlockHeader, 0);
+                dlc = DataStoreUtil.getInt(dataBlockHeader, 4);
+                int negated = DataStoreUtil.getInt(dataBlockHeader, 8);
+                hash = DataStoreUtil.getInt(dataBlockHeader, 12);
+                if ((fid != PUT_FRAME_IDENTIFIER && fid != DELETE_FRAME_IDENTIFIER) || dlc != (~negated)
+                        || dlc < KEY_LENGTH || pos + HEADER_LENGTH + dlc > capacity) {
+                    break;
+                }
+                file.readFully(ensure(dlc), 0, dlc);
+            } catch (EOFException e) {
+                break;
+            }
+            if (DataStoreUtil.getHashCode(frame, 0, dlc) != hash) {
+                break;
+            }
+            staleBytes += apply(index, lengths, fid, DataStoreUtil.getLong(frame, 0), pos, HEADER_LENGTH + dlc);
+            pos += HEADER_LENGTH + dlc;
+        }
+        rearIndex = pos;
+        if (file.length() > rearIndex) {
+            file.setLength(rearIndex);
+        }
+    }
+
+    /**
+     * Applies the frame at the given position to the index.
+     *
+     * @return the size of the frames made stale by the frame.
+     */
+    private static long apply(LongHashTable index, LongHashTable lengths, int fid, long key, long pos, long flc) {
+        long stale = 0;
+        long previous = fid == PUT_FRAME_IDENTIFIER ? index.put(key, pos) : index.remove(key);
+        if (previous >= 0) {
+            stale += fid == PUT_FRAME_IDENTIFIER ? lengths.put(key, flc) : lengths.remove(key);
+        } else if (fid == PUT_FRAME_IDENTIFIER) {
+            lengths.put(key, flc);
+        }
+        if (fid == DELETE_FRAME_IDENTIFIER) {
+            stale += flc;
+        }
+        return stale;
+    }
+
+    private byte[] ensure(int len) {
+        if (frame.length < len) {
+            frame = new byte[Math.max(frame.length * 2, len)];
+        }
+        return frame;
+    }
+
+    private void append(int fid, long key, byte[] b, int off, int len) throws IOException {
+        int dlc = KEY_LENGTH + len;
+        byte[] data = ensure(HEADER_LENGTH + dlc);
+        DataStoreUtil.putInt(fid, data, 0);
+        DataStoreUtil.putInt(dlc, data, 4);
+        DataStoreUtil.putInt(~dlc, data, 8);
+        DataStoreUtil.putLong(key, data, HEADER_LENGTH);
+        System.arraycopy(b, off, data, HEADER_LENGTH + KEY_LENGTH, len);
+        DataStoreUtil.putInt(DataStoreUtil.getHashCode(data, HEADER_LENGTH, dlc), data, 12);
+        file.seek(rearIndex);
+        file.write(data, 0, HEADER_LENGTH + dlc);
+        rearIndex += HEADER_LENGTH + dlc;
+    }
+
+    /**
+     * Associates the value of {@code len} bytes from the specified byte array
+     * starting at offset {@code off} with the key.
+     *
+     * @param      key   the key.
+     * @param      b     the value.
+     * @param      off   the start offset in the value.
+     * @param      len   the number of bytes to write.
+     * @return     {@code false}  if an I/O error occurs or the log is full.
+     */
+    public synchronized boolean put(long key, byte[] b, int off, int len) {
+        boolean status = false;
+        errorCode = ERROR_CODE_OK;
+        exception = null;
+        if (rearIndex + HEADER_LENGTH + KEY_LENGTH + len <= capacity) {
+            try {
+                long pos = rearIndex;
+                append(PUT_FRAME_IDENTIFIER, key, b, off, len);
+                staleBytes += apply(index, lengths, PUT_FRAME_IDENTIFIER, key, pos, rearIndex - pos);
+                status = true;
+            } catch (IOException e) {
+                errorCode = ERROR_CODE_IO_ERROR;
+                exception = e;
+            }
+        }
+        return status;
+    }
+
+    /**
+     * Associates the value of {@code b.length} bytes from the specified byte array with the key.
+     *
+     * @param      key   the key.
+     * @param      b     the value.
+     * @return     {@code false}  if an I/O error occurs or the log is full.
+     */
+    public boolean put(long key, byte[] b) {
+        return put(key, b, 0, b.length);
+    }
+
+    /**
+     * Reads the value of the key.
+     *
+     * @param      key   the key.
+     * @param      b     the buffer into which the value is read.
+     * @param      off   the start offset in array {@code b} at which the value is written.
+     * @param      len   the maximum number of bytes read.
+     * @return     the total number of bytes read into the buffer, or
+     *             {@code -1} if the key has no value.
+     */
+    public synchronized int get(long key, byte[] b, int off, int len) {
+        int size = -1;
+        errorCode = ERROR_CODE_OK;
+        exception = null;
+        long pos = index.get(key);
+        if (pos >= 0) {
+            size = 0;
+            int dlc = (int) lengths.get(key) - HEADER_LENGTH - KEY_LENGTH;
+            if (len >= dlc) {
+                size = readValue(pos, b, off, dlc);
+            }
+        }
+        return size;
+    }
+
+    /**
+     * Reads the value of the key.
+     *
+     * @param      key   the key.
+     * @return     the value, or {@code null} if the key has no value or the value cannot be read.
+     */
+    public synchronized byte[] get(long key) {
+        errorCode = ERROR_CODE_OK;
+        exception = null;
+        long pos = index.get(key);
+        if (pos < 0) {
+            return null;
+        }
+        byte[] b = new byte[(int) lengths.get(key) - HEADER_LENGTH - KEY_LENGTH];
+        return readValue(pos, b, 0, b.length) == b.length ? b : null;
+    }
+
+    /**
+     * Reads the frame at the given position with a single scatter read, the header and the key into
+     * {@code dataBlockHeader} and the value into the array.
+     *
+     * @return the size of the value, or {@code 0} if the frame is corrupted or cannot be read.
+     */
+    private int readValue(long pos, byte[] b, int off, int dlc) {
+        ByteBuffer[] buffers = {ByteBuffer.wrap(dataBlockHeader), ByteBuffer.wrap(b, off, dlc)};
+        try {
+            FileChannel channel = file.getChannel();
+            channel.position(pos);
+            for (long remaining = dataBlockHeader.length + dlc; remaining > 0; ) {
+                long n = channel.read(buffers);
+                if (n < 0) {
+                    throw new EOFException();
+                }
+                remaining -= n;
+            }
+        } catch (IOException e) {
+            errorCode = ERROR_CODE_IO_ERROR;
+            exception = e;
+            return 0;
+        }
+        int keyHash = DataStoreUtil.getHashCode(dataBlockHeader, HEADER_LENGTH, KEY_LENGTH);
+        if (DataStoreUtil.getInt(dataBlockHeader, 0) != PUT_FRAME_IDENTIFIER
+                || DataStoreUtil.getInt(dataBlockHeader, 4) != KEY_LENGTH + dlc
+                || continueHash(keyHash, b, off, dlc) != DataStoreUtil.getInt(dataBlockHeader, 12)) {
+            return 0;
+        }
+        return dlc;
+    }
+
+    /**
+     * Returns the size of the value of the key.
+     *
+     * @param      key   the key.
+     * @return     the size of the value, or {@code -1} if the key has no value.
+     */
+    public synchronized int length(long key) {
+        errorCode = ERROR_CODE_OK;
+        exception = null;
+        long flc = lengths.get(key);
+        return flc >= 0 ? (int) flc - HEADER_LENGTH - KEY_LENGTH : -1;
+    }
+
+    private static int continueHash(int hash, byte[] b, int off, int len) {
+        for (int i = off; i < off + len; i++) {
+            hash = 31 * hash + b[i];
+        }
+        return hash;
+    }
+
+    /**
+     * Removes the value of the key.
+     *
+     * @param      key   the key.
+     * @return     {@code false}  if an I/O error occurs or the log is full.
+     */
+    public synchronized boolean delete(long key) {
+        boolean status = true;
+        errorCode = ERROR_CODE_OK;
+        exception = null;
+        if (index.get(key) >= 0) {
+            status = false;
+            if (rearIndex + HEADER_LENGTH + KEY_LENGTH <= capacity) {
+                try {
+                    long pos = rearIndex;
+                    append(DELETE_FRAME_IDENTIFIER, key, frame, 0, 0);
+                    staleBytes += apply(index, lengths, DELETE_FRAME_IDENTIFIER, key, pos, rearIndex - pos);
+                    status = true;
+                } catch (IOException e) {
+                    errorCode = ERROR_CODE_IO_ERROR;
+                    exception = e;
+                }
+            }
+        }
+        return status;
+    }
+
+    /**
+     * Check if the key has a value.
+     *
+     * @param      key   the key.
+     * @return     {@code true} if the key has a value.
+     */
+    public synchronized boolean contains(long key) {
+        errorCode = ERROR_CODE_OK;
+        exception = null;
+        return index.get(key) >= 0;
+    }
+
+    /**
+     * Rewrites the live frames to a new log, which replaces the current log. The live frames are copied from a
+     * snapshot of the index without the lock of this store, so the puts, gets and deletes proceed during the copy.
+     * The frames appended during the copy are then replayed to the new log, which replaces the current log, under
+     * the lock.
+     *
+     * @return     {@code false}  if an I/O error occurs or this store is closed.
+     */
+    public boolean compact() {
+        synchronized (compactionLock) {
+            LongHashTable snapshot;
+            long end;
+            synchronized (this) {
+                errorCode = ERROR_CODE_OK;
+                exception = null;
+                if (isClosed) {
+                    return false;
+                }
+                snapshot = new LongHashTable(index);
+                end = rearIndex;
+            }
+            LongHashTable positions = new LongHashTable(snapshot.size());
+            LongHashTable frameLengths = new LongHashTable(snapshot.size());
+            try {
+                long pos;
+                try (DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(path),
+                        COPY_BUFFER_SIZE));
+                     OutputStream out = new BufferedOutputStream(new FileOutputStream(compactionPath),
+                             COPY_BUFFER_SIZE)) {
+                    pos = copyLive(in, out, end, snapshot, positions, frameLengths);
+                }
+                try (RandomAccessFile compacted = new RandomAccessFile(compactionPath, "rw")) {
+                    return replace(compacted, end, pos, positions, frameLengths);
+                }
+            } catch (IOException e) {
+                synchronized (this) {
+                    errorCode = ERROR_CODE_IO_ERROR;
+                    exception = e;
+                }
+                return false;
+            }
+        }
+    }
+
+    /**
+     * Copies the frames of the log up to {@code end} that are live in the snapshot of the index.
+     *
+     * @return the size of the copied frames.
+     */
+    private static long copyLive(DataInputStream in, OutputStream out, long end, LongHashTable snapshot,
+                                 LongHashTable positions, LongHashTable frameLengths) throws IOException {
+        byte[] data = new byte[256];
+        long pos = 0;
+        for (long read = 0; read < end; ) {
+            in.readFully(data, 0, HEADER_LENGTH + KEY_LENGTH);
+            int fid = DataStoreUtil.getInt(data, 0);
+            int flc = HEADER_LENGTH + DataStoreUtil.getInt(data, 4);
+            long key = DataStoreUtil.getLong(data, HEADER_LENGTH);
+            if (fid == PUT_FRAME_IDENTIFIER && snapshot.get(key) == read) {
+                if (data.length < flc) {
+                    data = Arrays.copyOf(data, Math.max(data.length * 2, flc));
+                }
+                in.readFully(data, HEADER_LENGTH + KEY_LENGTH, flc - HEADER_LENGTH - KEY_LENGTH);
+                out.write(data, 0, flc);
+                positions.put(key, pos);
+                frameLengths.put(key, flc);
+                pos += flc;
+            } else {
+                in.skipBytes(flc - HEADER_LENGTH - KEY_LENGTH);
+            }
+            read += flc;
+        }
+        return pos;
+    }
+
+    /**
+     * Appends the frames written since the copy to the new log, and replaces the current log with the new log.
+     */
+    private synchronized boolean replace(RandomAccessFile compacted, long end, long pos, LongHashTable positions,
+                                         LongHashTable frameLengths) throws IOException {
+        if (isClosed) {
+            return false;
+        }
+        long stale = 0;
+        for (long read = end; read < rearIndex; ) {
+            file.seek(read);
+            file.readFully(dataBlockHeader, 0, HEADER_LENGTH);
+            int fid = DataStoreUtil.getInt(dataBlockHeader, 0);
+            int flc = HEADER_LENGTH + DataStoreUtil.getInt(dataBlockHeader, 4);
+            byte[] data = ensure(flc);
+            System.arraycopy(dataBlockHeader, 0, data, 0, HEADER_LENGTH);
+            file.readFully(data, HEADER_LENGTH, flc - HEADER_LENGTH);
+            compacted.seek(pos);
+            compacted.write(data, 0, flc);
+            stale += apply(positions, frameLengths, fid, DataStoreUtil.getLong(data, HEADER_LENGTH), pos, flc);
+            pos += flc;
+            read += flc;
+        }
+        compacted.getFD().sync();
+        file.close();
+        try {
+            Files.move(compactionPath.toPath(), path.toPath(), StandardCopyOption.REPLACE_EXISTING,
+                    StandardCopyOption.ATOMIC_MOVE);
+            index = positions;
+            lengths = frameLengths;
+            rearIndex = pos;
+            staleBytes = stale;
+        } finally {
+            file = new RandomAccessFile(path, "rw");
+        }
+        return true;
+    }
+
+    /**
+     * Start a low priority daemon thread that invokes {@link #compact()} periodically when the stale frames exceed
+     * the given ratio of the log, until this key-value store is closed.
+     *
+     * @param period     the time in milliseconds between two checks.
+     * @param staleRatio the ratio of stale frames in the log triggering a compaction.
+     */
+    public synchronized void startCompactionTask(long period, double staleRatio) {
+        if (period <= 0) {
+            throw new IllegalArgumentException("Compaction period must be positive");
+        }
+        if (compactionTask != null) {
+            compactionTask.interrupt();
+        }
+        Thread task = new Thread(() -> {
+            for (; ; ) {
+                try {
+                    Thread.sleep(period);
+                } catch (InterruptedException e) {
+                    return;
+                }
+                boolean isStale;
+                synchronized (this) {
+                    if (compactionTask != Thread.currentThread()) {
+                        return;
+                    }
+                    isStale = staleBytes > 0 && staleBytes >= staleRatio * rearIndex;
+                }
+                // The copy runs without the lock of this store
+                if (isStale) {
+                    compact();
+                }
+            }
+        }, "datastore-compaction-" + COMPACTION_THREAD_COUNT.incrementAndGet());
+        task.setDaemon(true);
+        task.setPriority(Thread.MIN_PRIORITY);
+        compactionTask = task;
+        task.start();
+    }
+
+    /**
+     * Store the frames to the disk.
+     * @return {@code true} if the sync is successful
+     */
+    public synchronized boolean sync() {
+        boolean status = true;
+        errorCode = ERROR_CODE_OK;
+        exception = null;
+        try {
+            file.getFD().sync();
+        } catch (IOException e) {
+            status = false;
+            errorCode = ERROR_CODE_IO_ERROR;
+            exception = e;
+        }
+        return status;
+    }
+
+    /**
+     * Get the numbers of keys having a value.
+     * @return Number of keys.
+     */
+    public synchronized long count() {
+        errorCode = ERROR_CODE_OK;
+        exception = null;
+        return index.size();
+    }
+
+    /**
+     * Get the size of the log.
+     * @return Size of the log in bytes.
+     */
+    public synchronized long usage() {
+        errorCode = ERROR_CODE_OK;
+        exception = null;
+        return rearIndex;
+    }
+
+    /**
+     * Get the size of the frames made stale by later puts and deletes, which is released by {@link #compact()}.
+     * @return Size of the stale frames in bytes.
+     */
+    public synchronized long staleBytes() {
+        errorCode = ERROR_CODE_OK;
+        exception = null;
+        return staleBytes;
+    }
+
+    public int getErrorCode() {
+        return errorCode;
+    }
+
+    public Exception getException() {
+        return exception;
+    }
+
+    /**
+     * Stop the compaction thread and close the log. A compaction in progress is discarded.
+     */
+    @Override
+    public synchronized void close() throws IOException {
+        if (compactionTask != null) {
+            compactionTask.interrupt();
+            compactionTask = null;
+        }
+        isClosed = true;
+        file.close();
+    }
+}
@@ -0,0 +1,43 @@
+package io.github.peacock05.datastore;
+
+import java.nio.ByteBuffer;
+
+/**
+ * FrameBuffer is a reusable buffer that grows to the length of the records read into it.
+ */
+class FrameBuffer {
+
+    private byte[] array;
+    private ByteBuffer view;
+
+    FrameBuffer() {
+        array = new byte[256];
+        view = ByteBuffer.wrap(array);
+    }
+
+    /**
+     * Get an array of at least {@code len} bytes, the content is not preserved when the array grows.
+     *
+     * @param len the minimum length of the array
+     * @return the backing array of this buffer
+     */
+    byte[] ensure(int len) {
+        if (array.length < len) {
+            array = new byte[Math.max(array.length * 2, len)];
+            view = ByteBuffer.wrap(array);
+        }
+        return array;
+    }
+
+    /**
+     * Get a view of the first {@code len} bytes of the backing array.
+     *
+     * @param len the length of the record
+     * @return the buffer positioned at the start of the record
+     */
+    ByteBuffer view(int len) {
+        view.clear();
+        view.limit(len);
+        return view;
+    }
+}
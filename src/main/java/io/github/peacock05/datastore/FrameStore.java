@@ -0,0 +1,33 @@
+package io.github.peacock05.datastore;
+
+/**
+ * FrameStore is implemented by the data stores that accept a record together with the room for its frame header,
+ * so that the header is filled in place and the frame is written without copying the record.
+ */
+interface FrameStore {
+
+    /**
+     * Length of the room reserved before and after the record in a frame buffer.
+     */
+    int HEADER_LENGTH = 16;
+
+    /**
+     * Writes the record of {@code len} bytes starting at offset {@link #HEADER_LENGTH} of the frame buffer.
+     * The buffer has at least {@link #HEADER_LENGTH} bytes of room before and after the record.
+     *
+     * @param frame the frame buffer.
+     * @param len   the number of bytes of the record.
+     * @return {@code false}  if an I/O error occurs or there is no space left.
+     */
+    boolean writeFrame(byte[] frame, int len);
+
+    /**
+     * Reads the record at the head of the data store into the frame buffer, which grows to the length of the record.
+     *
+     * @param buffer the frame buffer.
+     * @return     the number of bytes read into the buffer, which is the length of the record,
+     *             {@code -1} if there is no more elements in the data store, or
+     *             {@code 0} with an error code if the record cannot be read.
+     */
+    int readFrame(FrameBuffer buffer);
+}
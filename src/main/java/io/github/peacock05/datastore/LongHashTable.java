@@ -0,0 +1,153 @@
+package io.github.peacock05.datastore;
+
+import java.util.Arrays;
+
+/**
+ * LongHashTable maps {@code long} keys to non-negative {@code long} values without boxing.
+ * <p>
+ * The keys and values are kept in two arrays with open addressing and linear probing. Removed entries are
+ * filled by shifting back the following entries of the probe sequence, so no tombstones are left behind.
+ */
+class LongHashTable {
+
+    private final static long EMPTY = -1;
+    private long[] keys;
+    private long[] values;
+    private int mask;
+    private int size;
+
+    /**
+     * Create the table for the expected number of entries, the table grows when it is half full.
+     *
+     * @param expectedSize the expected number of entries
+     */
+    LongHashTable(int expectedSize) {
+        int capacity = Integer.highestOneBit(Math.max(4, expectedSize) * 2 - 1) << 1;
+        keys = new long[capacity];
+        values = new long[capacity];
+        Arrays.fill(values, EMPTY);
+        mask = capacity - 1;
+    }
+
+    /**
+     * Create a copy of the table.
+     *
+     * @param table the table to copy
+     */
+    LongHashTable(LongHashTable table) {
+        keys = table.keys.clone();
+        values = table.values.clone();
+        mask = table.mask;
+        size = table.size;
+    }
+
+    private static int hash(long key) {
+        long h = key * 0x9E3779B97F4A7C15L;
+        return (int) (h ^ (h >>> 32));
+    }
+
+    /**
+     * Get the value of the key.
+     *
+     * @param key the key
+     * @return the value, or {@code -1} if the key is not in the table.
+     */
+    long get(long key) {
+        for (int i = hash(key) & mask; values[i] != EMPTY; i = (i + 1) & mask) {
+            if (keys[i] == key) {
+                return values[i];
+            }
+        }
+        return EMPTY;
+    }
+
+    /**
+     * Set the value of the key.
+     *
+     * @param key   the key
+     * @param value the value, not negative
+     * @return the previous value, or {@code -1} if the key was not in the table.
+     */
+    long put(long key, long value) {
+        int i = hash(key) & mask;
+        for (; values[i] != EMPTY; i = (i + 1) & mask) {
+            if (keys[i] == key) {
+                long previous = values[i];
+                values[i] = value;
+                return previous;
+            }
+        }
+        keys[i] = key;
+        values[i] = value;
+        if (++size * 2 > keys.length) {
+            grow();
+        }
+        return EMPTY;
+    }
+
+    /**
+     * Remove the key.
+     *
+     * @param key the key
+     * @return the value, or {@code -1} if the key was not in the table.
+     */
+    long remove(long key) {
+        int i = hash(key) & mask;
+        for (; values[i] != EMPTY; i = (i + 1) & mask) {
+            if (keys[i] == key) {
+                long previous = values[i];
+                shiftBack(i);
+                size--;
+                return previous;
+            }
+        }
+        return EMPTY;
+    }
+
+    /**
+     * Fill the slot by moving back the next entry of the probe sequence that may be stored there.
+     */
+    private void shiftBack(int hole) {
+        for (int i = (hole + 1) & mask; values[i] != EMPTY; i = (i + 1) & mask) {
+            int home = hash(keys[i]) & mask;
+            // Move the entry if its home slot is not between the hole and its current slot
+            if (((i - home) & mask) >= ((i - hole) & mask)) {
+                keys[hole] = keys[i];
+                values[hole] = values[i];
+                hole = i;
+            }
+        }
+        values[hole] = EMPTY;
+    }
+
+    private void grow() {
+        long[] oldKeys = keys;
+        long[] oldValues = values;
+        keys = new long[oldKeys.length * 2];
+        values = new long[oldValues.length * 2];
+        Arrays.fill(values, EMPTY);
+        mask = keys.length - 1;
+        for (int i = 0; i < oldKeys.length; i++) {
+            if (oldValues[i] != EMPTY) {
+                int j = hash(oldKeys[i]) & mask;
+                while (values[j] != EMPTY) {
+                    j = (j + 1) & mask;
+                }
+                keys[j] = oldKeys[i];
+                values[j] = oldValues[i];
+            }
+        }
+    }
+
+    /**
+     * Remove all the entries.
+     */
+    void clear() {
+        Arrays.fill(values, EMPTY);
+        size = 0;
+    }
+
+    int size() {
+        return size;
+    }
+}
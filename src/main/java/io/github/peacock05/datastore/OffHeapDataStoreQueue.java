@@ -0,0 +1,225 @@
+package io.github.peacock05.datastore;
+
+import java.nio.Buffer;
+import java.nio.ByteBuffer;
+
+/**
+ * OffHeapDataStoreQueue implements a queue that allows data to be read, write and remove in FIFO order in a direct
+ * {@link ByteBuffer} outside the Java heap, without any file. The data is lost when the process ends, and the memory
+ * is released when the data store is garbage collected.
+ * <p>
+ * The frames have the layout of {@link FileDataStoreQueue} and are written into a ring, where a frame may be split
+ * by the end of the buffer. The data is not checked against the hash on read, as it never leaves the memory.
+ * <p>
+ * | 0x5b77f49e, Data length, ~Data length, Data Hash, Data 0, Data 1, ..... Data N
+ */
+public class OffHeapDataStoreQueue implements DataStore, FrameStore {
+
+    private final static int ERROR_CODE_OK = 0;
+    private final static int FRAME_IDENTIFIER = 0x5b77f49e;
+    private final ByteBuffer buffer;
+    private final byte[] dataBlockHeader;
+    private final int capacity;
+    private int frontIndex;
+    private int rearIndex;
+    private int used;
+    private long count;
+    private volatile long publishedCount;
+    private volatile int publishedUsage;
+
+    /**
+     * Create the in-memory data store to read, write and delete the data in FIFO order.
+     *
+     * @param limit Maximum amount of memory, at most {@link Integer#MAX_VALUE} bytes.
+     */
+    public OffHeapDataStoreQueue(long limit) {
+        if (limit <= HEADER_LENGTH || limit > Integer.MAX_VALUE) {
+            throw new IllegalArgumentException("Limit must be between " + HEADER_LENGTH + " and "
+                    + Integer.MAX_VALUE + " bytes");
+        }
+        capacity = (int) limit;
+        buffer = ByteBuffer.allocateDirect(capacity);
+        dataBlockHeader = new byte[HEADER_LENGTH];
+    }
+
+    private void put(int index, byte[] b, int off, int len) {
+        int first = Math.min(len, capacity - index);
+        // The position is set through Buffer, so the class runs on Java 8
+        ((Buffer) buffer).position(index);
+        buffer.put(b, off, first);
+        if (first < len) {
+            ((Buffer) buffer).position(0);
+            buffer.put(b, off + first, len - first);
+        }
+    }
+
+    private void get(int index, byte[] b, int off, int len) {
+        int first = Math.min(len, capacity - index);
+        ((Buffer) buffer).position(index);
+        buffer.get(b, off, first);
+        if (first < len) {
+            ((Buffer) buffer).position(0);
+            buffer.get(b, off + first, len - first);
+        }
+    }
+
+    private int next(int index, int len) {
+        return (int) (((long) index + len) % capacity);
+    }
+
+    private void publish() {
+        publishedCount = count;
+        publishedUsage = used;
+    }
+
+    @Override
+    public boolean write(byte[] b, int off, int len) {
+        return append(b, off, len, dataBlockHeader, 0);
+    }
+
+    @Override
+    public boolean writeFrame(byte[] frame, int len) {
+        return append(frame, HEADER_LENGTH, len, frame, 0);
+    }
+
+    private synchronized boolean append(byte[] b, int off, int len, byte[] header, int hoff) {
+        if ((long) len + HEADER_LENGTH > capacity - used) {
+            return false;
+        }
+        int flc = len + HEADER_LENGTH;
+        DataStoreUtil.putInt(FRAME_IDENTIFIER, header, hoff);
+        DataStoreUtil.putInt(len, header, hoff + 4);
+        DataStoreUtil.putInt(~len, header, hoff + 8);
+        DataStoreUtil.putInt(DataStoreUtil.getHashCode(b, off, len), header, hoff + 12);
+        if (header == b && hoff == off - HEADER_LENGTH) {
+            // The header is filled in place in front of the data
+            put(rearIndex, b, hoff, flc);
+        } else {
+            put(rearIndex, header, hoff, HEADER_LENGTH);
+            put(next(rearIndex, HEADER_LENGTH), b, off, len);
+        }
+        rearIndex = next(rearIndex, flc);
+        used += flc;
+        count++;
+        publish();
+        return true;
+    }
+
+    @Override
+    public boolean write(byte[] b) {
+        return write(b, 0, b.length);
+    }
+
+    @Override
+    public synchronized int read(byte[] b, int off, int len) {
+        int size = -1;
+        if (count > 0) {
+            get(frontIndex, dataBlockHeader, 0, HEADER_LENGTH);
+            int dlc = DataStoreUtil.getInt(dataBlockHeader, 4);
+            size = 0;
+            if (len >= dlc) {
+                get(next(frontIndex, HEADER_LENGTH), b, off, dlc);
+                size = dlc;
+            }
+        }
+        return size;
+    }
+
+    @Override
+    public synchronized int readFrame(FrameBuffer frame) {
+        int size = readLength();
+        if (size > 0) {
+            get(next(frontIndex, HEADER_LENGTH), frame.ensure(size), 0, size);
+        }
+        return size;
+    }
+
+    @Override
+    public int read(byte[] b) {
+        return read(b, 0, b.length);
+    }
+
+    @Override
+    public synchronized int readLength() {
+        int size = -1;
+        if (count > 0) {
+            get(frontIndex, dataBlockHeader, 0, HEADER_LENGTH);
+            size = DataStoreUtil.getInt(dataBlockHeader, 4);
+        }
+        return size;
+    }
+
+    /**
+     * The data is kept in memory only, so there is nothing to store.
+     *
+     * @return {@code true}
+     */
+    @Override
+    public boolean sync() {
+        return true;
+    }
+
+    @Override
+    public synchronized void remove() {
+        if (count > 0) {
+            get(frontIndex, dataBlockHeader, 0, HEADER_LENGTH);
+            int flc = DataStoreUtil.getInt(dataBlockHeader, 4) + HEADER_LENGTH;
+            frontIndex = next(frontIndex, flc);
+            used -= flc;
+            count--;
+            if (count == 0) {
+                // Start again at the start of the buffer, so the next frames are not split
+                frontIndex = 0;
+                rearIndex = 0;
+            }
+            publish();
+        }
+    }
+
+    @Override
+    public boolean isEmpty() {
+        return publishedCount == 0;
+    }
+
+    @Override
+    public long count() {
+        return publishedCount;
+    }
+
+    @Override
+    public long capacity() {
+        return capacity;
+    }
+
+    @Override
+    public long usage() {
+        return publishedUsage;
+    }
+
+    @Override
+    public long free() {
+        return capacity - publishedUsage;
+    }
+
+    @Override
+    public int getErrorCode() {
+        return ERROR_CODE_OK;
+    }
+
+    @Override
+    public Exception getException() {
+        return null;
+    }
+
+    /**
+     * Remove all the data.
+     */
+    @Override
+    public synchronized void close() {
+        frontIndex = 0;
+        rearIndex = 0;
+        used = 0;
+        count = 0;
+        publish();
+    }
+}
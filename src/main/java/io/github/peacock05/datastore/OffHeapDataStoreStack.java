@@ -0,0 +1,194 @@
+package io.github.peacock05.datastore;
+
+import java.nio.Buffer;
+import java.nio.ByteBuffer;
+
+/**
+ * OffHeapDataStoreStack implements a stack that allows data to be read, write and remove in LIFO order in a direct
+ * {@link ByteBuffer} outside the Java heap, without any file. The data is lost when the process ends, and the memory
+ * is released when the data store is garbage collected.
+ * <p>
+ * The frames have the layout of {@link FileDataStoreStack}. The data is not checked against the hash on read, as it
+ * never leaves the memory.
+ * <p>
+ * | Data 0, Data 1, ..... Data N, 0x5b77f49e, Data length, ~Data length, Data Hash
+ */
+public class OffHeapDataStoreStack implements DataStore, FrameStore {
+
+    private final static int ERROR_CODE_OK = 0;
+    private final static int FRAME_IDENTIFIER = 0x5b77f49e;
+    private final ByteBuffer buffer;
+    private final byte[] dataBlockHeader;
+    private final int capacity;
+    private int topIndex;
+    private long count;
+    private volatile long publishedCount;
+    private volatile int publishedUsage;
+
+    /**
+     * Create the in-memory data store to read, write and delete the data in LIFO order.
+     *
+     * @param limit Maximum amount of memory, at most {@link Integer#MAX_VALUE} bytes.
+     */
+    public OffHeapDataStoreStack(long limit) {
+        if (limit <= HEADER_LENGTH || limit > Integer.MAX_VALUE) {
+            throw new IllegalArgumentException("Limit must be between " + HEADER_LENGTH + " and "
+                    + Integer.MAX_VALUE + " bytes");
+        }
+        capacity = (int) limit;
+        buffer = ByteBuffer.allocateDirect(capacity);
+        dataBlockHeader = new byte[HEADER_LENGTH];
+    }
+
+    private void publish() {
+        publishedCount = count;
+        publishedUsage = topIndex;
+    }
+
+    /**
+     * Reads the header of the top frame.
+     *
+     * @return the length of the data of the top frame.
+     */
+    private int readHeader() {
+        // The position is set through Buffer, so the class runs on Java 8
+        ((Buffer) buffer).position(topIndex - HEADER_LENGTH);
+        buffer.get(dataBlockHeader);
+        return DataStoreUtil.getInt(dataBlockHeader, 4);
+    }
+
+    @Override
+    public boolean write(byte[] b, int off, int len) {
+        return append(b, off, len, dataBlockHeader, 0);
+    }
+
+    @Override
+    public boolean writeFrame(byte[] frame, int len) {
+        return append(frame, HEADER_LENGTH, len, frame, HEADER_LENGTH + len);
+    }
+
+    private synchronized boolean append(byte[] b, int off, int len, byte[] header, int hoff) {
+        if ((long) topIndex + len + HEADER_LENGTH > capacity) {
+            return false;
+        }
+        DataStoreUtil.putInt(FRAME_IDENTIFIER, header, hoff);
+        DataStoreUtil.putInt(len, header, hoff + 4);
+        DataStoreUtil.putInt(~len, header, hoff + 8);
+        DataStoreUtil.putInt(DataStoreUtil.getHashCode(b, off, len), header, hoff + 12);
+        ((Buffer) buffer).position(topIndex);
+        if (header == b && hoff == off + len) {
+            // The header is filled in place behind the data
+            buffer.put(b, off, len + HEADER_LENGTH);
+        } else {
+            buffer.put(b, off, len);
+            buffer.put(header, hoff, HEADER_LENGTH);
+        }
+        topIndex += len + HEADER_LENGTH;
+        count++;
+        publish();
+        return true;
+    }
+
+    @Override
+    public boolean write(byte[] b) {
+        return write(b, 0, b.length);
+    }
+
+    @Override
+    public synchronized int read(byte[] b, int off, int len) {
+        int size = -1;
+        if (count > 0) {
+            int dlc = readHeader();
+            size = 0;
+            if (len >= dlc) {
+                ((Buffer) buffer).position(topIndex - HEADER_LENGTH - dlc);
+                buffer.get(b, off, dlc);
+                size = dlc;
+            }
+        }
+        return size;
+    }
+
+    @Override
+    public synchronized int readFrame(FrameBuffer frame) {
+        int size = readLength();
+        if (size > 0) {
+            size = read(frame.ensure(size), 0, size);
+        }
+        return size;
+    }
+
+    @Override
+    public int read(byte[] b) {
+        return read(b, 0, b.length);
+    }
+
+    @Override
+    public synchronized int readLength() {
+        return count > 0 ? readHeader() : -1;
+    }
+
+    /**
+     * The data is kept in memory only, so there is nothing to store.
+     *
+     * @return {@code true}
+     */
+    @Override
+    public boolean sync() {
+        return true;
+    }
+
+    @Override
+    public synchronized void remove() {
+        if (count > 0) {
+            topIndex -= readHeader() + HEADER_LENGTH;
+            count--;
+            publish();
+        }
+    }
+
+    @Override
+    public boolean isEmpty() {
+        return publishedCount == 0;
+    }
+
+    @Override
+    public long count() {
+        return publishedCount;
+    }
+
+    @Override
+    public long capacity() {
+        return capacity;
+    }
+
+    @Override
+    public long usage() {
+        return publishedUsage;
+    }
+
+    @Override
+    public long free() {
+        return capacity - publishedUsage;
+    }
+
+    @Override
+    public int getErrorCode() {
+        return ERROR_CODE_OK;
+    }
+
+    @Override
+    public Exception getException() {
+        return null;
+    }
+
+    /**
+     * Remove all the data.
+     */
+    @Override
+    public synchronized void close() {
+        topIndex = 0;
+        count = 0;
+        publish();
+    }
+}
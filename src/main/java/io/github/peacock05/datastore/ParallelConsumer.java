@@ -0,0 +1,327 @@
+package io.github.peacock05.datastore;
+
+import java.io.IOException;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * ParallelConsumer processes the records of a {@link FileDataStoreQueue} concurrently on an {@link Executor}.
+ * <p>
+ * A dispatcher thread leases the records in batches with {@link FileDataStoreQueue#lease(int, long)} and submits each
+ * record to the executor, keeping at most a given number of records in flight. A record is acknowledged when its
+ * handler returns {@code true}, and released to be delivered again after the retry delay when the handler returns
+ * {@code false} or throws. A record failing {@link #setMaxDeliveries(int) the maximum number of deliveries} is dropped.
+ * The front of the data store only moves over the records acknowledged in a row, so a record is never removed before
+ * the records written before it, whatever the order the handlers complete in. The delivery is at-least-once: a record
+ * whose handler runs longer than the lease is delivered again.
+ * <p>
+ * The errors of the data store and the dropped records are reported to the {@link ErrorHandler}, and the dispatcher
+ * waits for the retry delay before leasing again after an error.
+ */
+public class ParallelConsumer implements AutoCloseable {
+
+    private final static int ERROR_CODE_OK = 0;
+    private final static long POLL_INTERVAL = 100;
+    private final static AtomicInteger THREAD_COUNT = new AtomicInteger();
+    private final FileDataStoreQueue store;
+    private final Handler handler;
+    private final Executor executor;
+    private final int maxInFlight;
+    private final long leaseTimeout;
+    private final Semaphore permits;
+    private final Runnable writeListener;
+    private final AtomicLong processed;
+    private final AtomicLong failed;
+    private final AtomicLong dropped;
+    private final Object signal;
+    private final Thread thread;
+    private boolean isSignalled;
+    private volatile boolean isClosed;
+    private volatile ErrorHandler errorHandler;
+    private volatile long retryDelay = 1_000;
+    private volatile int maxDeliveries;
+
+    /**
+     * Processes a record.
+     */
+    public interface Handler {
+        /**
+         * Process the record.
+         *
+         * @param data the data of the record
+         * @return {@code true} to acknowledge the record, {@code false} to deliver it again.
+         * @throws Exception Upon error in processing the record, which is delivered again.
+         */
+        boolean process(byte[] data) throws Exception;
+    }
+
+    /**
+     * Receives the errors of the consumer.
+     */
+    public interface ErrorHandler {
+        /**
+         * Report an error of the data store, or a record dropped after the maximum number of deliveries.
+         *
+         * @param data      the data of the dropped record, or {@code null} for an error of the data store
+         * @param exception the error of the data store, or the exception of the last delivery of the dropped record,
+         *                  {@code null} if the handler returned {@code false}
+         */
+        void onError(byte[] data, Exception exception);
+    }
+
+    /**
+     * Create the consumer processing the records on the common fork-join pool, and start its dispatcher thread.
+     *
+     * @param store   the data store the records are consumed from
+     * @param handler the handler of the records
+     */
+    public ParallelConsumer(FileDataStoreQueue store, Handler handler) {
+        this(store, handler, ForkJoinPool.commonPool(), 4 * ForkJoinPool.getCommonPoolParallelism(), 30_000);
+    }
+
+    /**
+     * Create the consumer and start its dispatcher thread.
+     *
+     * @param store        the data store the records are consumed from
+     * @param handler      the handler of the records
+     * @param executor     the executor running the handler, for example a fork-join or a virtual thread pool
+     * @param maxInFlight  the maximum number of records leased and not yet processed
+     * @param leaseTimeout the time in milliseconds after which a record not yet processed is delivered again
+     */
+    public ParallelConsumer(FileDataStoreQueue store, Handler handler, Executor executor, int maxInFlight,
+                            long leaseTimeout) {
+        if (maxInFlight <= 0) {
+            throw new IllegalArgumentException("Maximum number of records in flight must be positive");
+        }
+        this.store = store;
+        this.handler = handler;
+        this.executor = executor;
+        this.maxInFlight = maxInFlight;
+        this.leaseTimeout = leaseTimeout;
+        permits = new Semaphore(maxInFlight);
+        processed = new AtomicLong();
+        failed = new AtomicLong();
+        dropped = new AtomicLong();
+        signal = new Object();
+        writeListener = this::signal;
+        store.addWriteListener(writeListener);
+        thread = new Thread(this::run, "datastore-consumer-" + THREAD_COUNT.incrementAndGet());
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+    /**
+     * Get the number of records acknowledged by the handler.
+     *
+     * @return Number of processed records.
+     */
+    public long processed() {
+        return processed.get();
+    }
+
+    /**
+     * Get the number of deliveries the handler rejected or failed, which are delivered again.
+     *
+     * @return Number of failed deliveries.
+     */
+    public long failed() {
+        return failed.get();
+    }
+
+    /**
+     * Get the number of records dropped after the maximum number of deliveries.
+     *
+     * @return Number of dropped records.
+     */
+    public long dropped() {
+        return dropped.get();
+    }
+
+    /**
+     * Set the handler of the errors of the data store and of the dropped records.
+     *
+     * @param errorHandler the error handler, or {@code null} to ignore the errors
+     */
+    public void setErrorHandler(ErrorHandler errorHandler) {
+        this.errorHandler = errorHandler;
+    }
+
+    /**
+     * Set the time a failed record waits before it is delivered again, and the dispatcher waits after an error of the
+     * data store. The default is one second.
+     *
+     * @param retryDelay the retry delay in milliseconds
+     */
+    public void setRetryDelay(long retryDelay) {
+        this.retryDelay = Math.max(0, retryDelay);
+    }
+
+    /**
+     * Set the number of deliveries after which a failed record is dropped and reported to the error handler. The
+     * delivery count of a record restarts when the data store is opened again.
+     *
+     * @param maxDeliveries the maximum number of deliveries, or {@code 0} to deliver failed records indefinitely
+     */
+    public void setMaxDeliveries(int maxDeliveries) {
+        this.maxDeliveries = Math.max(0, maxDeliveries);
+    }
+
+    private void signal() {
+        synchronized (signal) {
+            isSignalled = true;
+            signal.notifyAll();
+        }
+    }
+
+    /**
+     * Wait for a write, a released record or the poll interval, after which expired leases are delivered again.
+     */
+    private void await() {
+        synchronized (signal) {
+            try {
+                if (!isSignalled && !isClosed) {
+                    signal.wait(POLL_INTERVAL);
+                }
+            } catch (InterruptedException ignored) {
+
+            }
+            isSignalled = false;
+        }
+    }
+
+    /**
+     * Wait for the retry delay after an error of the data store, ignoring the writes.
+     */
+    private void pause() {
+        long deadline = System.currentTimeMillis() + retryDelay;
+        synchronized (signal) {
+            for (long now = System.currentTimeMillis(); !isClosed && now < deadline; now = System.currentTimeMillis()) {
+                try {
+                    signal.wait(deadline - now);
+                } catch (InterruptedException ignored) {
+
+                }
+            }
+        }
+    }
+
+    private void reportError(byte[] data, Exception exception) {
+        ErrorHandler errorHandler = this.errorHandler;
+        if (errorHandler != null) {
+            try {
+                errorHandler.onError(data, exception);
+            } catch (RuntimeException ignored) {
+
+            }
+        }
+    }
+
+    private void run() {
+        while (!isClosed) {
+            try {
+                permits.acquire();
+            } catch (InterruptedException e) {
+                continue;
+            }
+            // Lease a record for every free permit with a single lock of the data store
+            int max = 1 + permits.drainPermits();
+            List<FileDataStoreQueue.Lease> leases = isClosed ? Collections.emptyList()
+                    : store.lease(max, leaseTimeout);
+            int errorCode = isClosed ? ERROR_CODE_OK : store.getErrorCode();
+            Exception exception = store.getException();
+            permits.release(max - leases.size());
+            boolean isRejected = false;
+            for (FileDataStoreQueue.Lease lease : leases) {
+                if (isRejected) {
+                    store.nack(lease);
+                    permits.release();
+                    continue;
+                }
+                try {
+                    executor.execute(() -> process(lease));
+                } catch (RejectedExecutionException e) {
+                    isRejected = true;
+                    store.nack(lease);
+                    permits.release();
+                }
+            }
+            if (errorCode != ERROR_CODE_OK) {
+                reportError(null, exception != null ? exception : new IOException("Data store error " + errorCode));
+                pause();
+            } else if (leases.isEmpty() || isRejected) {
+                await();
+            }
+        }
+    }
+
+    private void process(FileDataStoreQueue.Lease lease) {
+        boolean isProcessed = false;
+        Exception exception = null;
+        try {
+            isProcessed = handler.process(lease.getData());
+        } catch (Exception e) {
+            exception = e;
+        } finally {
+            // Also release the permit and the record when the handler throws an Error, so close() does not hang
+            try {
+                complete(lease, isProcessed, exception);
+            } finally {
+                permits.release();
+                signal();
+            }
+        }
+    }
+
+    /**
+     * Acknowledge, release or drop the record. A lease superseded by a later delivery after its expiry is not counted.
+     */
+    private void complete(FileDataStoreQueue.Lease lease, boolean isProcessed, Exception exception) {
+        int maxDeliveries = this.maxDeliveries;
+        if (isProcessed) {
+            if (store.ack(lease)) {
+                processed.incrementAndGet();
+            }
+        } else if (maxDeliveries > 0 && lease.getDeliveryCount() >= maxDeliveries) {
+            if (store.ack(lease)) {
+                dropped.incrementAndGet();
+                reportError(lease.getData(), exception);
+            }
+        } else if (store.nack(lease, retryDelay)) {
+            failed.incrementAndGet();
+        }
+    }
+
+    /**
+     * Stop the dispatcher thread and wait for the records in flight to be processed. The data store is not closed.
+     */
+    @Override
+    public void close() {
+        synchronized (signal) {
+            if (isClosed) {
+                return;
+            }
+            isClosed = true;
+            signal.notifyAll();
+        }
+        thread.interrupt();
+        boolean isInterrupted = false;
+        while (thread.isAlive()) {
+            try {
+                thread.join();
+            } catch (InterruptedException e) {
+                isInterrupted = true;
+            }
+        }
+        permits.acquireUninterruptibly(maxInFlight);
+        store.removeWriteListener(writeListener);
+        if (isInterrupted) {
+            Thread.currentThread().interrupt();
+        }
+    }
+}
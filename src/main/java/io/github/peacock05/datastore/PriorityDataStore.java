@@ -0,0 +1,278 @@
+package io.github.peacock05.datastore;
+
+import java.io.IOException;
+
+/**
+ * PriorityDataStore implements a persistent priority queue that always serves the pending data of the highest
+ * priority first, and data of the same priority in FIFO order.
+ * <p>
+ * Each priority level is stored in its own {@link FileDataStoreQueue}, and a bitmap of the non-empty levels
+ * is kept in memory, so the level to serve is found in constant time. Up to 64 levels are supported, level
+ * {@code 0} being the lowest priority.
+ */
+public class PriorityDataStore implements DataStore {
+
+    /**
+     * Maximum number of priority levels.
+     */
+    public final static int MAX_LEVELS = 64;
+    private final static int ERROR_CODE_OK = 0;
+    private final FileDataStoreQueue[] queues;
+    private long levelMap;
+    private int headLevel;
+    private int errorCode;
+    private Exception exception;
+
+    /**
+     * Create the file based persistent priority queue.
+     *
+     * @param queueName Name of the queue
+     * @param directory Directory to store the files
+     * @param limit     Maximum amount of space of each priority level.
+     * @param levels    Number of priority levels, from 1 to {@link #MAX_LEVELS}.
+     * @throws IOException Upon error in creating, reading or writing to the files.
+     */
+    public PriorityDataStore(String queueName, String directory, long limit, int levels) throws IOException {
+        if (levels < 1 || levels > MAX_LEVELS) {
+            throw new IllegalArgumentException("Number of levels must be between 1 and " + MAX_LEVELS);
+        }
+        queues = new FileDataStoreQueue[levels];
+        headLevel = -1;
+        try {
+            for (int i = 0; i < levels; i++) {
+                queues[i] = new FileDataStoreQueue(queueName + ".p" + i, directory, limit);
+                if (!queues[i].isEmpty()) {
+                    levelMap |= 1L << i;
+                }
+            }
+        } catch (IOException e) {
+            close();
+            throw e;
+        }
+    }
+
+    /**
+     * Writes {@code len} bytes from the specified byte array
+     * starting at offset {@code off} to this data store with the given priority.
+     *
+     * @param      priority the priority level of the data.
+     * @param      b        the data.
+     * @param      off      the start offset in the data.
+     * @param      len      the number of bytes to write.
+     * @return     {@code false}  if an I/O error occurs.
+     * @throws     IllegalArgumentException if the priority is not between {@code 0} and the number of levels - 1.
+     */
+    public synchronized boolean write(int priority, byte[] b, int off, int len) {
+        if (priority < 0 || priority >= queues.length) {
+            throw new IllegalArgumentException("Priority must be between 0 and " + (queues.length - 1));
+        }
+        FileDataStoreQueue queue = queues[priority];
+        boolean status = queue.write(b, off, len);
+        if (status) {
+            levelMap |= 1L << priority;
+        }
+        errorCode = queue.getErrorCode();
+        exception = queue.getException();
+        return status;
+    }
+
+    /**
+     * Writes {@code b.length} bytes from the specified byte array
+     * to this data store with the given priority.
+     *
+     * @param      priority the priority level of the data.
+     * @param      b        the data.
+     * @return     {@code false}  if an I/O error occurs.
+     * @throws     IllegalArgumentException if the priority is not between {@code 0} and the number of levels - 1.
+     */
+    public boolean write(int priority, byte[] b) {
+        return write(priority, b, 0, b.length);
+    }
+
+    /**
+     * Writes the data with the lowest priority.
+     */
+    @Override
+    public boolean write(byte[] b, int off, int len) {
+        return write(0, b, off, len);
+    }
+
+    @Override
+    public boolean write(byte[] b) {
+        return write(0, b, 0, b.length);
+    }
+
+    /**
+     * Reads the data of the highest priority. The level of the data is remembered, so the following
+     * {@link #remove()} removes this data even if data of a higher priority was written in between.
+     */
+    @Override
+    public synchronized int read(byte[] b, int off, int len) {
+        int size = -1;
+        errorCode = ERROR_CODE_OK;
+        exception = null;
+        headLevel = headLevel();
+        if (headLevel >= 0) {
+            FileDataStoreQueue queue = queues[headLevel];
+            size = queue.read(b, off, len);
+            errorCode = queue.getErrorCode();
+            exception = queue.getException();
+        }
+        return size;
+    }
+
+    @Override
+    public int read(byte[] b) {
+        return read(b, 0, b.length);
+    }
+
+    /**
+     * Returns the size of the data of the highest priority. The level of the data is remembered, so the following
+     * {@link #read(byte[], int, int)} and {@link #remove()} use this data even if data of a higher priority was
+     * written in between.
+     */
+    @Override
+    public synchronized int readLength() {
+        int size = -1;
+        errorCode = ERROR_CODE_OK;
+        exception = null;
+        headLevel = headLevel();
+        if (headLevel >= 0) {
+            FileDataStoreQueue queue = queues[headLevel];
+            size = queue.readLength();
+            errorCode = queue.getErrorCode();
+            exception = queue.getException();
+        }
+        return size;
+    }
+
+    /**
+     * Get the priority level of the data at the head of this data store.
+     *
+     * @return the priority level, or {@code -1} if the data store is empty.
+     */
+    public synchronized int headPriority() {
+        return headLevel();
+    }
+
+    @Override
+    public synchronized boolean sync() {
+        boolean status = true;
+        errorCode = ERROR_CODE_OK;
+        exception = null;
+        for (FileDataStoreQueue queue : queues) {
+            if (!queue.sync()) {
+                status = false;
+                errorCode = queue.getErrorCode();
+                exception = queue.getException();
+            }
+        }
+        return status;
+    }
+
+    /**
+     * Remove the data read last, or the data of the highest priority if no data was read since the last remove.
+     */
+    @Override
+    public synchronized void remove() {
+        errorCode = ERROR_CODE_OK;
+        exception = null;
+        int level = headLevel();
+        headLevel = -1;
+        if (level >= 0) {
+            FileDataStoreQueue queue = queues[level];
+            queue.remove();
+            errorCode = queue.getErrorCode();
+            exception = queue.getException();
+            if (queue.isEmpty()) {
+                levelMap &= ~(1L << level);
+            }
+        }
+    }
+
+    @Override
+    public synchronized boolean isEmpty() {
+        errorCode = ERROR_CODE_OK;
+        exception = null;
+        return levelMap == 0;
+    }
+
+    @Override
+    public synchronized long count() {
+        long count = 0;
+        errorCode = ERROR_CODE_OK;
+        exception = null;
+        for (FileDataStoreQueue queue : queues) {
+            count += queue.count();
+        }
+        return count;
+    }
+
+    @Override
+    public synchronized long capacity() {
+        long capacity = 0;
+        errorCode = ERROR_CODE_OK;
+        exception = null;
+        for (FileDataStoreQueue queue : queues) {
+            capacity += queue.capacity();
+        }
+        return capacity;
+    }
+
+    @Override
+    public synchronized long usage() {
+        long usage = 0;
+        errorCode = ERROR_CODE_OK;
+        exception = null;
+        for (FileDataStoreQueue queue : queues) {
+            usage += queue.usage();
+        }
+        return usage;
+    }
+
+    @Override
+    public synchronized long free() {
+        long free = 0;
+        errorCode = ERROR_CODE_OK;
+        exception = null;
+        for (FileDataStoreQueue queue : queues) {
+            free += queue.free();
+        }
+        return free;
+    }
+
+    @Override
+    public int getErrorCode() {
+        return errorCode;
+    }
+
+    @Override
+    public Exception getException() {
+        return exception;
+    }
+
+    @Override
+    public synchronized void close() throws IOException {
+        IOException error = null;
+        for (FileDataStoreQueue queue : queues) {
+            if (queue != null) {
+                try {
+                    queue.close();
+                } catch (IOException e) {
+                    error = e;
+                }
+            }
+        }
+        if (error != null) {
+            throw error;
+        }
+    }
+
+    private int headLevel() {
+        return headLevel >= 0 && (levelMap & (1L << headLevel)) != 0 ? headLevel : highestLevel();
+    }
+
+    private int highestLevel() {
+        return levelMap == 0 ? -1 : 63 - Long.numberOfLeadingZeros(levelMap);
+    }
+}
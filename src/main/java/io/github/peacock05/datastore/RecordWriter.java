@@ -0,0 +1,151 @@
+package io.github.peacock05.datastore;
+
+import java.util.Arrays;
+
+/**
+ * RecordWriter appends the fields of a record into a reusable frame buffer and writes it to the data store on
+ * {@link #commit()}. The buffer keeps room for the frame header, so no temporary array is created per record.
+ * <p>
+ * A RecordWriter is not thread safe, each producer thread should use its own writer.
+ */
+public class RecordWriter {
+
+    private final DataStore store;
+    private byte[] frame;
+    private int position;
+
+    /**
+     * Create a record writer for the data store.
+     *
+     * @param store the data store to write the records to.
+     */
+    public RecordWriter(DataStore store) {
+        this.store = store;
+        frame = new byte[256];
+        position = FrameStore.HEADER_LENGTH;
+    }
+
+    /**
+     * Appends a {@code byte} to the record.
+     *
+     * @param v the value.
+     * @return this writer
+     */
+    public RecordWriter putByte(byte v) {
+        ensure(1);
+        frame[position++] = v;
+        return this;
+    }
+
+    /**
+     * Appends an {@code int} to the record in big-endian order.
+     *
+     * @param v the value.
+     * @return this writer
+     */
+    public RecordWriter putInt(int v) {
+        ensure(4);
+        DataStoreUtil.putInt(v, frame, position);
+        position += 4;
+        return this;
+    }
+
+    /**
+     * Appends a {@code long} to the record in big-endian order.
+     *
+     * @param v the value.
+     * @return this writer
+     */
+    public RecordWriter putLong(long v) {
+        ensure(8);
+        DataStoreUtil.putLong(v, frame, position);
+        position += 8;
+        return this;
+    }
+
+    /**
+     * Appends a {@code float} to the record in big-endian order.
+     *
+     * @param v the value.
+     * @return this writer
+     */
+    public RecordWriter putFloat(float v) {
+        return putInt(Float.floatToRawIntBits(v));
+    }
+
+    /**
+     * Appends a {@code double} to the record in big-endian order.
+     *
+     * @param v the value.
+     * @return this writer
+     */
+    public RecordWriter putDouble(double v) {
+        return putLong(Double.doubleToRawLongBits(v));
+    }
+
+    /**
+     * Appends {@code len} bytes from the specified byte array starting at offset {@code off} to the record.
+     *
+     * @param b   the data.
+     * @param off the start offset in the data.
+     * @param len the number of bytes to append.
+     * @return this writer
+     */
+    public RecordWriter putBytes(byte[] b, int off, int len) {
+        ensure(len);
+        System.arraycopy(b, off, frame, position, len);
+        position += len;
+        return this;
+    }
+
+    /**
+     * Appends {@code b.length} bytes from the specified byte array to the record.
+     *
+     * @param b the data.
+     * @return this writer
+     */
+    public RecordWriter putBytes(byte[] b) {
+        return putBytes(b, 0, b.length);
+    }
+
+    /**
+     * Get the number of bytes appended to the record.
+     *
+     * @return the length of the record.
+     */
+    public int length() {
+        return position - FrameStore.HEADER_LENGTH;
+    }
+
+    /**
+     * Writes the record to the data store and starts a new record. The record is discarded even if the
+     * write fails.
+     *
+     * @return {@code false}  if an I/O error occurs.
+     */
+    public boolean commit() {
+        int len = length();
+        boolean status;
+        if (store instanceof FrameStore) {
+            ensure(FrameStore.HEADER_LENGTH);
+            status = ((FrameStore) store).writeFrame(frame, len);
+        } else {
+            status = store.write(frame, FrameStore.HEADER_LENGTH, len);
+        }
+        reset();
+        return status;
+    }
+
+    /**
+     * Discards the record appended so far.
+     */
+    public void reset() {
+        position = FrameStore.HEADER_LENGTH;
+    }
+
+    private void ensure(int len) {
+        if (position + len > frame.length) {
+            frame = Arrays.copyOf(frame, Math.max(frame.length * 2, position + len));
+        }
+    }
+}
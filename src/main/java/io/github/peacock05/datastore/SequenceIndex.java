@@ -0,0 +1,240 @@
+package io.github.peacock05.datastore;
+
+import java.io.EOFException;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.util.Arrays;
+
+/**
+ * SequenceIndex keeps a sparse mapping of record sequence numbers to file positions of a {@link FileDataStoreQueue}
+ * <p>
+ * Persistent storage format
+ * ----------------------------------------------------------------------------
+ * | Magic number, Hash, Front Index, Rear Index, Count, Head Sequence
+ * | Magic number, Hash, Front Index, Rear Index, Count, Head Sequence
+ * | Sequence 0, File Index 0, Sequence K, File Index K, ..... Sequence N*K, File Index N*K
+ * <p>
+ * The two checkpoint slots are written alternately before the meta block of the queue, the slot matching the
+ * pointers of the queue meta block holds the sequence of the record at the front index. Index entries are only
+ * hints, entries outside the live sequence range are dropped on load.
+ */
+class SequenceIndex {
+
+    private final static int MAGIC_NUMBER = 0x4e2c81d7;
+    private final static int ENTRY_LENGTH = 16;
+    private final RandomAccessFile file;
+    private final byte[] slotBlock, entryBlock;
+    private final int interval;
+    private final int offset;
+    private long[] sequences;
+    private long[] indices;
+    private int head;
+    private int size;
+    private int slot;
+    private long persisted;
+    private boolean isRelocated;
+
+    /**
+     * Open the sequence index file.
+     *
+     * @param file     the index file
+     * @param interval number of records between two index entries
+     * @throws IOException Upon error in creating the file.
+     */
+    SequenceIndex(File file, int interval) throws IOException {
+        this.file = new RandomAccessFile(file, "rw");
+        this.interval = interval;
+        slotBlock = new byte[40];
+        entryBlock = new byte[ENTRY_LENGTH];
+        offset = slotBlock.length * 2;
+        sequences = new long[16];
+        indices = new long[16];
+        slot = 1;
+    }
+
+    /**
+     * Load the checkpoint slot matching the queue pointers and the index entries in the live range.
+     *
+     * @param front front index of the queue meta block
+     * @param rear  rear index of the queue meta block
+     * @param count number of records of the queue meta block
+     * @return the sequence of the record at the front index.
+     * @throws IOException Upon error in reading the file.
+     */
+    long load(long front, long rear, long count) throws IOException {
+        long headSequence = -1, fallback = 0;
+        for (int i = 0; i < 2; i++) {
+            file.seek((long) i * slotBlock.length);
+            try {
+                file.readFully(slotBlock);
+            } catch (EOFException e) {
+                break;
+            }
+            int magic = DataStoreUtil.getInt(slotBlock, 0);
+            int hash = DataStoreUtil.getInt(slotBlock, 4);
+            if (magic == MAGIC_NUMBER && hash == DataStoreUtil.getHashCode(slotBlock, 8, slotBlock.length - 8)) {
+                long sequence = DataStoreUtil.getLong(slotBlock, 32);
+                fallback = Math.max(fallback, sequence);
+                if (DataStoreUtil.getLong(slotBlock, 8) == front && DataStoreUtil.getLong(slotBlock, 16) == rear
+                        && DataStoreUtil.getLong(slotBlock, 24) == count && sequence > headSequence) {
+                    headSequence = sequence;
+                    slot = i;
+                }
+            }
+        }
+
+        if (headSequence < 0) {
+            // The index does not belong to this meta block, the entries cannot be trusted
+            headSequence = fallback;
+            file.setLength(Math.min(file.length(), offset));
+        }
+
+        // Ignore the torn entry at the end of the file
+        persisted = offset + Math.max(0, file.length() - offset) / ENTRY_LENGTH * ENTRY_LENGTH;
+        file.seek(offset);
+        for (long pos = offset; pos < persisted; pos += ENTRY_LENGTH) {
+            file.readFully(entryBlock);
+            long sequence = DataStoreUtil.getLong(entryBlock, 0);
+            if (sequence >= headSequence) {
+                append(sequence, DataStoreUtil.getLong(entryBlock, 8));
+            }
+        }
+        return headSequence;
+    }
+
+    /**
+     * Add an index entry if the sequence falls on the index interval.
+     *
+     * @param sequence the sequence of the record
+     * @param index    the file position of the record
+     * @throws IOException Upon error in writing to the file.
+     */
+    void add(long sequence, long index) throws IOException {
+        if (sequence % interval == 0) {
+            append(sequence, index);
+            DataStoreUtil.putLong(sequence, entryBlock, 0);
+            DataStoreUtil.putLong(index, entryBlock, 8);
+            file.seek(persisted);
+            file.write(entryBlock);
+            persisted += ENTRY_LENGTH;
+        }
+    }
+
+    /**
+     * Drop the entries outside the live sequence range.
+     *
+     * @param headSequence sequence of the record at the front index
+     * @param tailSequence sequence of the next record to be written
+     */
+    void retain(long headSequence, long tailSequence) {
+        while (size > 0 && sequences[head] < headSequence) {
+            head++;
+            size--;
+        }
+        while (size > 0 && sequences[head + size - 1] >= tailSequence) {
+            size--;
+        }
+        if (size == 0) {
+            head = 0;
+        }
+    }
+
+    /**
+     * Find the entry with the greatest sequence less than or equal to the given sequence.
+     *
+     * @param sequence the sequence to look up
+     * @return the slot of the entry, or {@code -1} if there is no such entry.
+     */
+    int floor(long sequence) {
+        int pos = Arrays.binarySearch(sequences, head, head + size, sequence);
+        if (pos < 0) {
+            pos = -pos - 2;
+        }
+        return pos >= head ? pos : -1;
+    }
+
+    long sequenceAt(int slot) {
+        return sequences[slot];
+    }
+
+    long indexAt(int slot) {
+        return indices[slot];
+    }
+
+    /**
+     * Store the checkpoint slot and the entries to the disk. The dead entries are compacted when
+     * they occupy most of the file.
+     *
+     * @param front        front index of the queue
+     * @param rear         rear index of the queue
+     * @param count        number of records of the queue
+     * @param headSequence sequence of the record at the front index
+     * @throws IOException Upon error in writing to the file.
+     */
+    void checkpoint(long front, long rear, long count, long headSequence) throws IOException {
+        long entries = (persisted - offset) / ENTRY_LENGTH;
+        if (isRelocated || (entries > 64 && entries > 2L * size)) {
+            isRelocated = false;
+            file.seek(offset);
+            for (int i = head; i < head + size; i++) {
+                DataStoreUtil.putLong(sequences[i], entryBlock, 0);
+                DataStoreUtil.putLong(indices[i], entryBlock, 8);
+                file.write(entryBlock);
+            }
+            persisted = offset + (long) size * ENTRY_LENGTH;
+            file.setLength(persisted);
+        }
+
+        DataStoreUtil.putInt(MAGIC_NUMBER, slotBlock, 0);
+        DataStoreUtil.putLong(front, slotBlock, 8);
+        DataStoreUtil.putLong(rear, slotBlock, 16);
+        DataStoreUtil.putLong(count, slotBlock, 24);
+        DataStoreUtil.putLong(headSequence, slotBlock, 32);
+        int hash = DataStoreUtil.getHashCode(slotBlock, 8, slotBlock.length - 8);
+        DataStoreUtil.putInt(hash, slotBlock, 4);
+        slot = (slot + 1) % 2;
+        file.seek((long) slot * slotBlock.length);
+        file.write(slotBlock);
+        file.getFD().sync();
+    }
+
+    /**
+     * Move the entries of the records stored between the given file positions, the entries are rewritten by the
+     * next checkpoint.
+     *
+     * @param from  the first file position of the moved records
+     * @param to    the file position following the moved records
+     * @param delta the distance the records moved by
+     */
+    void relocate(long from, long to, long delta) {
+        for (int i = head; i < head + size; i++) {
+            if (indices[i] >= from && indices[i] < to) {
+                indices[i] += delta;
+            }
+        }
+        isRelocated = true;
+    }
+
+    void close() throws IOException {
+        file.close();
+    }
+
+    private void append(long sequence, long index) {
+        if (size > 0 && sequences[head + size - 1] >= sequence) {
+            retain(Long.MIN_VALUE, sequence);
+        }
+        if (head + size == sequences.length) {
+            if (size * 2 > sequences.length) {
+                sequences = Arrays.copyOf(sequences, sequences.length * 2);
+                indices = Arrays.copyOf(indices, indices.length * 2);
+            }
+            System.arraycopy(sequences, head, sequences, 0, size);
+            System.arraycopy(indices, head, indices, 0, size);
+            head = 0;
+        }
+        sequences[head + size] = sequence;
+        indices[head + size] = index;
+        size++;
+    }
+}
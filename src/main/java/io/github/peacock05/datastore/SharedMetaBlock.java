@@ -0,0 +1,85 @@
+package io.github.peacock05.datastore;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileLock;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * SharedMetaBlock maps the meta block of a data store file, so several processes opening the same file see the
+ * pointers of each other without reading the file.
+ * <p>
+ * The meta block is accessed under a {@link FileLock} on its region, which serializes the processes, and under a
+ * lock shared by all the data stores of this process opening the same file, as a {@link FileLock} cannot be held
+ * twice on the same file by one process.
+ */
+class SharedMetaBlock {
+
+    private final static ConcurrentHashMap<String, ReentrantLock> LOCKS = new ConcurrentHashMap<>();
+    private final FileChannel channel;
+    private final MappedByteBuffer region;
+    private final ReentrantLock lock;
+    private final int length;
+    private FileLock fileLock;
+
+    /**
+     * Map the meta block of the file.
+     *
+     * @param path   the path of the file
+     * @param file   the opened file
+     * @param length the length of the meta block
+     * @throws IOException Upon error in mapping the file.
+     */
+    SharedMetaBlock(File path, RandomAccessFile file, int length) throws IOException {
+        this.length = length;
+        channel = file.getChannel();
+        region = channel.map(FileChannel.MapMode.READ_WRITE, 0, length);
+        lock = LOCKS.computeIfAbsent(path.getCanonicalPath(), key -> new ReentrantLock());
+    }
+
+    /**
+     * Acquire the meta block, waiting for the other data stores of this and other processes to release it.
+     */
+    void lock() throws IOException {
+        lock.lock();
+        if (lock.getHoldCount() == 1) {
+            try {
+                fileLock = channel.lock(0, length, false);
+            } catch (IOException | RuntimeException e) {
+                lock.unlock();
+                throw e;
+            }
+        }
+    }
+
+    /**
+     * Release the meta block.
+     */
+    void unlock() {
+        if (lock.getHoldCount() == 1 && fileLock != null) {
+            try {
+                fileLock.release();
+            } catch (IOException ignored) {
+
+            }
+            fileLock = null;
+        }
+        lock.unlock();
+    }
+
+    void get(int index, byte[] b) {
+        for (int i = 0; i < b.length; i++) {
+            b[i] = region.get(index + i);
+        }
+    }
+
+    void put(int index, byte[] b) {
+        for (int i = 0; i < b.length; i++) {
+            region.put(index + i, b[i]);
+        }
+    }
+}
@@ -0,0 +1,254 @@
+package io.github.peacock05.datastore;
+
+import java.util.ArrayDeque;
+
+/**
+ * TieredDataStore keeps the records in a bounded memory tier and spills them to a {@link FileDataStoreQueue} or a
+ * {@link FileDataStoreStack} only when the memory tier is full or on {@link #sync()}, so a data store that is
+ * almost always near empty serves its records without going through the file.
+ * <p>
+ * The memory tier always holds the records newer than the ones of the file, and the oldest records of the memory
+ * tier are spilled first. In FIFO order the records are read from the file until it is empty, then from the memory
+ * tier. In LIFO order the records are read from the memory tier until it is empty, then from the file. The records
+ * of the memory tier are lost if the process stops before the next {@link #sync()} or {@link #close()}.
+ */
+public class TieredDataStore implements DataStore {
+
+    private final static int ERROR_CODE_OK = 0;
+    private final DataStore disk;
+    private final boolean isLifo;
+    private final long memoryLimit;
+    private final ArrayDeque<byte[]> memory;
+    private long memoryUsage;
+    private int errorCode;
+    private Exception exception;
+
+    /**
+     * Create the data store serving the records in FIFO order.
+     *
+     * @param disk        the queue the records are spilled to
+     * @param memoryLimit Maximum amount of data kept in memory.
+     */
+    public TieredDataStore(FileDataStoreQueue disk, long memoryLimit) {
+        this(disk, memoryLimit, false);
+    }
+
+    /**
+     * Create the data store serving the records in LIFO order.
+     *
+     * @param disk        the stack the records are spilled to
+     * @param memoryLimit Maximum amount of data kept in memory.
+     */
+    public TieredDataStore(FileDataStoreStack disk, long memoryLimit) {
+        this(disk, memoryLimit, true);
+    }
+
+    private TieredDataStore(DataStore disk, long memoryLimit, boolean isLifo) {
+        this.disk = disk;
+        this.memoryLimit = memoryLimit;
+        this.isLifo = isLifo;
+        memory = new ArrayDeque<>();
+    }
+
+    /**
+     * Writes the data to the memory tier, after spilling the oldest records of the memory tier if it is full.
+     * Data larger than the memory tier is written to the file.
+     */
+    @Override
+    public synchronized boolean write(byte[] b, int off, int len) {
+        errorCode = ERROR_CODE_OK;
+        exception = null;
+        while (!memory.isEmpty() && memoryUsage + len > memoryLimit) {
+            if (!spill()) {
+                return false;
+            }
+        }
+        if (len > memoryLimit) {
+            boolean status = disk.write(b, off, len);
+            errorCode = disk.getErrorCode();
+            exception = disk.getException();
+            return status;
+        }
+        byte[] data = new byte[len];
+        System.arraycopy(b, off, data, 0, len);
+        memory.addLast(data);
+        memoryUsage += len;
+        return true;
+    }
+
+    @Override
+    public boolean write(byte[] b) {
+        return write(b, 0, b.length);
+    }
+
+    /**
+     * Moves the oldest record of the memory tier to the file.
+     */
+    private boolean spill() {
+        byte[] data = memory.peekFirst();
+        boolean status = disk.write(data);
+        errorCode = disk.getErrorCode();
+        exception = disk.getException();
+        if (status) {
+            memory.pollFirst();
+            memoryUsage -= data.length;
+        }
+        return status;
+    }
+
+    /**
+     * Get the record to serve from the memory tier.
+     *
+     * @return the record, or {@code null} if the record is served from the file.
+     */
+    private byte[] head() {
+        if (memory.isEmpty()) {
+            return null;
+        }
+        if (isLifo) {
+            return memory.peekLast();
+        }
+        return disk.isEmpty() ? memory.peekFirst() : null;
+    }
+
+    @Override
+    public synchronized int read(byte[] b, int off, int len) {
+        errorCode = ERROR_CODE_OK;
+        exception = null;
+        byte[] data = head();
+        if (data == null) {
+            int size = disk.read(b, off, len);
+            errorCode = disk.getErrorCode();
+            exception = disk.getException();
+            return size;
+        }
+        if (len < data.length) {
+            return 0;
+        }
+        System.arraycopy(data, 0, b, off, data.length);
+        return data.length;
+    }
+
+    @Override
+    public int read(byte[] b) {
+        return read(b, 0, b.length);
+    }
+
+    @Override
+    public synchronized int readLength() {
+        errorCode = ERROR_CODE_OK;
+        exception = null;
+        byte[] data = head();
+        if (data == null) {
+            int size = disk.readLength();
+            errorCode = disk.getErrorCode();
+            exception = disk.getException();
+            return size;
+        }
+        return data.length;
+    }
+
+    /**
+     * Spills all the records of the memory tier to the file, and store pointers and data to the disk.
+     * @return {@code true} if the sync is successful
+     */
+    @Override
+    public synchronized boolean sync() {
+        errorCode = ERROR_CODE_OK;
+        exception = null;
+        while (!memory.isEmpty()) {
+            if (!spill()) {
+                return false;
+            }
+        }
+        boolean status = disk.sync();
+        errorCode = disk.getErrorCode();
+        exception = disk.getException();
+        return status;
+    }
+
+    @Override
+    public synchronized void remove() {
+        errorCode = ERROR_CODE_OK;
+        exception = null;
+        byte[] data = head();
+        if (data == null) {
+            disk.remove();
+            errorCode = disk.getErrorCode();
+            exception = disk.getException();
+        } else {
+            if (isLifo) {
+                memory.pollLast();
+            } else {
+                memory.pollFirst();
+            }
+            memoryUsage -= data.length;
+        }
+    }
+
+    @Override
+    public synchronized boolean isEmpty() {
+        errorCode = ERROR_CODE_OK;
+        exception = null;
+        return memory.isEmpty() && disk.isEmpty();
+    }
+
+    @Override
+    public synchronized long count() {
+        errorCode = ERROR_CODE_OK;
+        exception = null;
+        return memory.size() + disk.count();
+    }
+
+    /**
+     * Get the capacity of the file and of the memory tier.
+     * @return capacity
+     */
+    @Override
+    public synchronized long capacity() {
+        errorCode = ERROR_CODE_OK;
+        exception = null;
+        return disk.capacity() + memoryLimit;
+    }
+
+    @Override
+    public synchronized long usage() {
+        errorCode = ERROR_CODE_OK;
+        exception = null;
+        return disk.usage() + memoryUsage;
+    }
+
+    @Override
+    public synchronized long free() {
+        errorCode = ERROR_CODE_OK;
+        exception = null;
+        return disk.free() + (memoryLimit - memoryUsage);
+    }
+
+    /**
+     * Get the data store the records are spilled to.
+     * @return the underlying data store
+     */
+    public DataStore getDataStore() {
+        return disk;
+    }
+
+    @Override
+    public int getErrorCode() {
+        return errorCode;
+    }
+
+    @Override
+    public Exception getException() {
+        return exception;
+    }
+
+    /**
+     * Spills all the records of the memory tier to the file, and closes the file.
+     */
+    @Override
+    public synchronized void close() throws Exception {
+        sync();
+        disk.close();
+    }
+}
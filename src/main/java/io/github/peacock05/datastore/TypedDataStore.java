@@ -0,0 +1,193 @@
+package io.github.peacock05.datastore;
+
+import java.io.IOException;
+import java.util.concurrent.ConcurrentLinkedQueue;
+
+/**
+ * TypedDataStore reads and writes values of type {@code T} to a {@link DataStore} using a {@link Codec}.
+ * <p>
+ * The records are encoded into and decoded from pooled buffers, which grow to the length of the records,
+ * so no array is allocated per record. Reads take the lock of the data store once per record. A record that cannot
+ * be read or removed is kept in the data store, and {@link #getErrorCode()} reports the error.
+ * <p>
+ * {@link #poll()} reads and removes the record while holding the monitor of the data store, which makes it atomic
+ * for the data stores of this library, all of them synchronizing on themselves. A data store locking otherwise must
+ * not be polled by several consumers.
+ *
+ * @param <T> the type of the values
+ */
+public class TypedDataStore<T> implements AutoCloseable {
+
+    private final static int ERROR_CODE_OK = 0;
+    private final static int ERROR_CODE_IO_ERROR = 1;
+    private final DataStore store;
+    private final Codec<T> codec;
+    private final ConcurrentLinkedQueue<FrameBuffer> buffers;
+    private final ConcurrentLinkedQueue<RecordWriter> writers;
+    private final ErrorState error;
+
+    /**
+     * Create a typed data store on top of the data store.
+     *
+     * @param store the data store holding the records
+     * @param codec the codec converting the values to records and back
+     */
+    public TypedDataStore(DataStore store, Codec<T> codec) {
+        this.store = store;
+        this.codec = codec;
+        buffers = new ConcurrentLinkedQueue<>();
+        writers = new ConcurrentLinkedQueue<>();
+        error = new ErrorState();
+    }
+
+    /**
+     * Writes the value to the data store.
+     *
+     * @param value the value.
+     * @return {@code false}  if an I/O error occurs.
+     */
+    public boolean write(T value) {
+        RecordWriter writer = writers.poll();
+        if (writer == null) {
+            writer = store.newRecordWriter();
+        }
+        try {
+            codec.encode(value, writer);
+            return writer.commit();
+        } finally {
+            writer.reset();
+            writers.offer(writer);
+        }
+    }
+
+    /**
+     * Reads the value at the head of the data store without removing it.
+     *
+     * @return the value, or {@code null} if the data store is empty or the record cannot be read, in which case
+     * {@link #getErrorCode()} is not {@code 0}.
+     */
+    public T read() {
+        return read(false);
+    }
+
+    /**
+     * Reads and removes the value at the head of the data store.
+     *
+     * @return the value, or {@code null} if the data store is empty or the record cannot be read, in which case
+     * {@link #getErrorCode()} is not {@code 0} and the record is not removed.
+     */
+    public T poll() {
+        return read(true);
+    }
+
+    private T read(boolean remove) {
+        FrameBuffer buffer = buffers.poll();
+        if (buffer == null) {
+            buffer = new FrameBuffer();
+        }
+        error.clear();
+        try {
+            int size;
+            // The data stores synchronize on themselves, so the read and the remove are atomic
+            synchronized (store) {
+                size = readFrame(buffer);
+                if (size >= 0 && remove) {
+                    store.remove();
+                    if (store.getErrorCode() != ERROR_CODE_OK) {
+                        size = -2;
+                    }
+                }
+                if (size == -2) {
+                    Exception e = store.getException();
+                    error.set(ERROR_CODE_IO_ERROR, e instanceof IOException ? e
+                            : new IOException("Unable to read the record", e));
+                    return null;
+                }
+            }
+            return size >= 0 ? codec.decode(buffer.view(size)) : null;
+        } finally {
+            buffers.offer(buffer);
+        }
+    }
+
+    /**
+     * Reads the record at the head of the data store into the buffer.
+     *
+     * @return the length of the record, {@code -1} if the data store is empty, or {@code -2} if the record cannot be
+     * read.
+     */
+    private int readFrame(FrameBuffer buffer) {
+        int size;
+        if (store instanceof FrameStore) {
+            size = ((FrameStore) store).readFrame(buffer);
+        } else {
+            // A failed read is reported as a record of length 0, which is not a record to drop
+            int length = store.readLength();
+            size = length > 0 ? store.read(buffer.ensure(length), 0, length) : length;
+            if (size != length) {
+                return -2;
+            }
+        }
+        return store.getErrorCode() != ERROR_CODE_OK ? -2 : size;
+    }
+
+    /**
+     * Remove the value at the head of the data store.
+     */
+    public void remove() {
+        store.remove();
+    }
+
+    /**
+     * Store pointers and data to the disk.
+     * @return {@code true} if the sync is successful
+     */
+    public boolean sync() {
+        return store.sync();
+    }
+
+    /**
+     * Check if the data store is empty
+     * @return {@code true}  if the data store is empty
+     */
+    public boolean isEmpty() {
+        return store.isEmpty();
+    }
+
+    /**
+     * Get the numbers of values stored into the data store.
+     * @return Number of values stored in the data store.
+     */
+    public long count() {
+        return store.count();
+    }
+
+    /**
+     * Get the error code of the last read of the calling thread.
+     * @return {@code 0} if the last read succeeded, {@code 1} if the record could not be read
+     */
+    public int getErrorCode() {
+        return error.getCode();
+    }
+
+    /**
+     * Get the exception of the last read of the calling thread.
+     * @return the exception, or {@code null} if the last read succeeded
+     */
+    public Exception getException() {
+        return error.getException();
+    }
+
+    /**
+     * Get the data store holding the records.
+     * @return the underlying data store
+     */
+    public DataStore getDataStore() {
+        return store;
+    }
+
+    @Override
+    public void close() throws Exception {
+        store.close();
+    }
+}
@@ -0,0 +1,177 @@
+package io.github.peacock05.datastore;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.Flow;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * FlowDataStorePublisher publishes the records of a {@link FileDataStoreQueue} to a {@link Flow.Subscriber}.
+ * <p>
+ * The records are read from the front of the queue as the subscriber requests them, and each record is removed
+ * from the queue only after {@link Flow.Subscriber#onNext(Object)} returns. When the queue is empty the delivery
+ * resumes on the next write, without polling. The buffer passed to {@code onNext} is reused for the next record,
+ * so it must be consumed before {@code onNext} returns. A record that cannot be read or removed ends the subscription
+ * with {@link Flow.Subscriber#onError(Throwable)} and is kept in the queue. All the signals, including the error of
+ * an invalid request, are sent from the executor.
+ * <p>
+ * The publisher must be the only consumer of the queue, and it accepts a single subscriber at a time.
+ */
+public class FlowDataStorePublisher implements Flow.Publisher<ByteBuffer> {
+
+    private final static int ERROR_CODE_OK = 0;
+    private final FileDataStoreQueue store;
+    private final Executor executor;
+    private final AtomicBoolean isSubscribed;
+
+    /**
+     * Create a publisher delivering the records on the common fork-join pool.
+     *
+     * @param store the queue to publish
+     */
+    public FlowDataStorePublisher(FileDataStoreQueue store) {
+        this(store, ForkJoinPool.commonPool());
+    }
+
+    /**
+     * Create a publisher delivering the records on the executor.
+     *
+     * @param store    the queue to publish
+     * @param executor the executor the subscriber is invoked on
+     */
+    public FlowDataStorePublisher(FileDataStoreQueue store, Executor executor) {
+        this.store = store;
+        this.executor = executor;
+        isSubscribed = new AtomicBoolean();
+    }
+
+    @Override
+    public void subscribe(Flow.Subscriber<? super ByteBuffer> subscriber) {
+        if (!isSubscribed.compareAndSet(false, true)) {
+            subscriber.onSubscribe(new Flow.Subscription() {
+                @Override
+                public void request(long n) {
+                }
+
+                @Override
+                public void cancel() {
+                }
+            });
+            subscriber.onError(new IllegalStateException("The queue has already a subscriber"));
+            return;
+        }
+        QueueSubscription subscription = new QueueSubscription(subscriber);
+        store.addWriteListener(subscription);
+        subscriber.onSubscribe(subscription);
+    }
+
+    private class QueueSubscription implements Flow.Subscription, Runnable {
+
+        private final Flow.Subscriber<? super ByteBuffer> subscriber;
+        private final FrameBuffer buffer;
+        private final AtomicLong demand;
+        private final AtomicInteger pending;
+        private volatile Throwable failure;
+        private volatile boolean isCancelled;
+
+        QueueSubscription(Flow.Subscriber<? super ByteBuffer> subscriber) {
+            this.subscriber = subscriber;
+            buffer = new FrameBuffer();
+            demand = new AtomicLong();
+            pending = new AtomicInteger();
+        }
+
+        @Override
+        public void request(long n) {
+            if (isCancelled) {
+                return;
+            }
+            if (n <= 0) {
+                // The error is signalled by the drain, never from the thread of the subscriber
+                failure = new IllegalArgumentException("Non-positive request: " + n);
+                schedule();
+                return;
+            }
+            demand.getAndUpdate(d -> d + n < 0 ? Long.MAX_VALUE : d + n);
+            schedule();
+        }
+
+        @Override
+        public void cancel() {
+            if (!isCancelled) {
+                isCancelled = true;
+                store.removeWriteListener(this);
+                isSubscribed.set(false);
+            }
+        }
+
+        /**
+         * Invoked by the queue after every write.
+         */
+        @Override
+        public void run() {
+            if (demand.get() > 0) {
+                schedule();
+            }
+        }
+
+        private void schedule() {
+            // Only the first of the concurrent requests starts a drain, the others are picked up by its loop
+            if (pending.getAndIncrement() == 0) {
+                try {
+                    executor.execute(this::drain);
+                } catch (RejectedExecutionException e) {
+                    cancel();
+                    subscriber.onError(e);
+                }
+            }
+        }
+
+        private void drain() {
+            int missed = 1;
+            do {
+                while (!isCancelled && (failure != null || demand.get() > 0)) {
+                    if (failure != null) {
+                        cancel();
+                        subscriber.onError(failure);
+                        return;
+                    }
+                    int size = store.readFrame(buffer);
+                    int errorCode = store.getErrorCode();
+                    Exception e = store.getException();
+                    if (size < 0 && errorCode == ERROR_CODE_OK) {
+                        break;
+                    }
+                    if (errorCode != ERROR_CODE_OK) {
+                        // A record failing the hash check is read as 0 bytes with an error, it is not an empty record
+                        cancel();
+                        subscriber.onError(e != null ? e : new IOException("Unable to read the record"));
+                        return;
+                    }
+                    try {
+                        subscriber.onNext(buffer.view(size));
+                    } catch (Throwable t) {
+                        cancel();
+                        subscriber.onError(t);
+                        return;
+                    }
+                    store.remove();
+                    if (store.getErrorCode() != ERROR_CODE_OK) {
+                        // The record would be delivered again by the next read
+                        e = store.getException();
+                        cancel();
+                        subscriber.onError(e != null ? e : new IOException("Unable to remove the record"));
+                        return;
+                    }
+                    demand.decrementAndGet();
+                }
+                missed = pending.addAndGet(-missed);
+            } while (missed != 0);
+        }
+    }
+}
@@ -0,0 +1,95 @@
+package io.github.peacock05.datastore;
+
+import org.junit.jupiter.api.Assertions;
+import org.junit.jupiter.api.Test;
+
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ExecutionException;
+
+public class AsyncDataStoreTest {
+
+    @Test
+    public void testAsyncDataStore() throws Exception {
+        Path tempDir = Files.createTempDirectory("datastore");
+        List<CompletableFuture<Boolean>> writes = new ArrayList<>();
+        AsyncDataStore store = new AsyncDataStore(new FileDataStoreQueue("testQueue", tempDir.toString(),
+                5_000_000));
+        for (int i = 0; i < 1000; i++) {
+            byte[] testData = new byte[100 + i];
+            Arrays.fill(testData, (byte) i);
+            writes.add(store.writeAsync(testData));
+            if (i % 10 == 0) {
+                writes.add(store.syncAsync());
+            }
+        }
+        CompletableFuture.allOf(writes.toArray(new CompletableFuture[0])).get();
+        for (CompletableFuture<Boolean> write : writes) {
+            Assertions.assertTrue(write.get(), "Write do not fail here");
+        }
+        Assertions.assertEquals(1000, store.getDataStore().count());
+
+        byte[] head = store.readAsync().get();
+        Assertions.assertEquals(100, head.length);
+        for (int i = 0; i < 1000; i++) {
+            byte[] testData = store.pollAsync().get();
+            Assertions.assertEquals(100 + i, testData.length);
+            for (byte value : testData) {
+                Assertions.assertEquals((byte) i, value);
+            }
+        }
+        Assertions.assertNull(store.pollAsync().get());
+        Assertions.assertNull(store.readAsync().get());
+        Assertions.assertTrue(store.syncAsync().get());
+        store.close();
+
+        try {
+            store.writeAsync(new byte[10]).get();
+            Assertions.fail("Write must be rejected after close");
+        } catch (ExecutionException e) {
+            Assertions.assertTrue(e.getCause() instanceof RejectedExecutionException);
+        }
+    }
+
+    @Test
+    public void testAsyncStack() throws Exception {
+        Path tempDir = Files.createTempDirectory("datastore");
+        try (AsyncDataStore store = new AsyncDataStore(new FileDataStoreStack("testQueue", tempDir.toString(),
+                5_000_000))) {
+            store.writeAsync(new byte[]{1, 2, 3});
+            store.writeAsync(new byte[]{4, 5});
+            Assertions.assertTrue(store.syncAsync().get());
+            Assertions.assertArrayEquals(new byte[]{4, 5}, store.pollAsync().get());
+            Assertions.assertArrayEquals(new byte[]{1, 2, 3}, store.pollAsync().get());
+            Assertions.assertNull(store.pollAsync().get());
+        }
+    }
+
+    @Test
+    public void testPollError() throws Exception {
+        Path tempDir = Files.createTempDirectory("datastore");
+        try (AsyncDataStore store = new AsyncDataStore(new FileDataStoreQueue("testQueue", tempDir.toString(),
+                5_000_000))) {
+            Assertions.assertTrue(store.writeAsync(new byte[]{1, 2, 3}).get());
+            try (RandomAccessFile file = new RandomAccessFile(tempDir.resolve("testQueue.fifo").toFile(), "rw")) {
+                // Corrupt the record behind the meta block and the frame header
+                file.seek(64 + 16);
+                file.write(9);
+            }
+            try {
+                store.pollAsync().get();
+                Assertions.fail("Poll must fail");
+            } catch (ExecutionException e) {
+                Assertions.assertTrue(e.getCause() instanceof IOException);
+            }
+            Assertions.assertEquals(1, store.getDataStore().count(), "A record that cannot be read is not removed");
+        }
+    }
+}
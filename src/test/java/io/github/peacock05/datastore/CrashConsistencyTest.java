@@ -0,0 +1,333 @@
+package io.github.peacock05.datastore;
+
+import org.junit.jupiter.api.Assertions;
+import org.junit.jupiter.api.Test;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.InputStreamReader;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Runs multi-producer and multi-consumer workloads against the file data stores, and kills a forked JVM writing to
+ * a data store to check that every synced record survives the crash. A second crash workload adds consumers to a
+ * small data store, so the queue wraps around the end of the file, and kills the JVM in the middle of a remove. The
+ * workloads are configured with the system properties {@code datastore.stress.producers},
+ * {@code datastore.stress.consumers}, {@code datastore.stress.records}, {@code datastore.crash.producers},
+ * {@code datastore.crash.consumers}, {@code datastore.crash.rounds}, {@code datastore.crash.acks} and
+ * {@code datastore.crash.capacity}.
+ */
+public class CrashConsistencyTest {
+
+    private static final int RECORD_LENGTH = CrashWorkload.RECORD_LENGTH;
+
+    @Test
+    public void testQueueCrash() throws Exception {
+        crash("queue");
+    }
+
+    @Test
+    public void testCheckpointLightQueueCrash() throws Exception {
+        crash("light");
+    }
+
+    @Test
+    public void testStackCrash() throws Exception {
+        crash("stack");
+    }
+
+    @Test
+    public void testQueueWrapCrash() throws Exception {
+        crashWithConsumers("queue");
+    }
+
+    @Test
+    public void testCheckpointLightQueueWrapCrash() throws Exception {
+        crashWithConsumers("light");
+    }
+
+    @Test
+    public void testStackConsumerCrash() throws Exception {
+        crashWithConsumers("stack");
+    }
+
+    @Test
+    public void testQueueStress() throws Exception {
+        try (DataStore store = CrashWorkload.open("queue", Files.createTempDirectory("datastore").toString())) {
+            stress("queue", store, true);
+        }
+    }
+
+    @Test
+    public void testStackStress() throws Exception {
+        try (DataStore store = CrashWorkload.open("stack", Files.createTempDirectory("datastore").toString())) {
+            stress("stack", store, false);
+        }
+    }
+
+    /**
+     * Kill the workload after it acknowledged a number of synced records, then reopen the data store and check the
+     * records. The next round writes to the same file with new producers.
+     */
+    private static void crash(String type) throws Exception {
+        int producers = Integer.getInteger("datastore.crash.producers", 4);
+        int rounds = Integer.getInteger("datastore.crash.rounds", 3);
+        int acks = Integer.getInteger("datastore.crash.acks", 500);
+        String directory = Files.createTempDirectory("datastore").toString();
+        String java = System.getProperty("java.home") + File.separator + "bin" + File.separator + "java";
+        for (int round = 0; round < rounds; round++) {
+            int firstProducer = round * producers;
+            long[] acked = new long[producers];
+            Arrays.fill(acked, -1);
+            Process process = new ProcessBuilder(java, "-cp", System.getProperty("java.class.path"),
+                    CrashWorkload.class.getName(), type, directory, String.valueOf(producers),
+                    String.valueOf(firstProducer))
+                    .redirectError(ProcessBuilder.Redirect.INHERIT)
+                    .start();
+            try (BufferedReader reader = new BufferedReader(
+                    new InputStreamReader(process.getInputStream(), StandardCharsets.UTF_8))) {
+                for (int i = 0; i < acks; i++) {
+                    String line = reader.readLine();
+                    Assertions.assertNotNull(line, "Workload ended before the crash");
+                    String[] fields = line.split(" ");
+                    acked[Integer.parseInt(fields[0]) - firstProducer] = Long.parseLong(fields[1]);
+                }
+                process.destroyForcibly();
+                process.waitFor();
+            }
+
+            long reopen = System.nanoTime();
+            try (DataStore store = CrashWorkload.open(type, directory)) {
+                reopen = System.nanoTime() - reopen;
+                BitSet[] seen = new BitSet[producers];
+                for (int i = 0; i < producers; i++) {
+                    seen[i] = new BitSet();
+                }
+                int corrupted = drain(store, seen, firstProducer);
+                long lost = 0, recovered = 0, total = 0;
+                for (int i = 0; i < producers; i++) {
+                    total += acked[i] + 1;
+                    recovered += seen[i].cardinality();
+                    lost += acked[i] + 1 - seen[i].get(0, (int) acked[i] + 1).cardinality();
+                }
+                System.out.printf("%s round %d: acked %d, recovered %d, lost %d, corrupted %d, reopen %.3f ms%n",
+                        type, round, total, recovered, lost, corrupted, reopen / 1e6);
+                Assertions.assertEquals(0, lost, "Synced records lost");
+                Assertions.assertEquals(0, corrupted, "Corrupted records");
+                // In checkpoint-light mode the removed records are persisted by a checkpoint only
+                Assertions.assertTrue(store instanceof FileDataStoreQueue ? ((FileDataStoreQueue) store).checkpoint()
+                        : store.sync());
+            }
+        }
+    }
+
+    /**
+     * Kill the workload with consumers right after a consumer took a record, once a number of records were synced,
+     * then reopen the data store and check that no synced record that was not taken is lost, no record whose
+     * remove was synced comes back, and no record is duplicated or corrupted.
+     */
+    private static void crashWithConsumers(String type) throws Exception {
+        int producers = Integer.getInteger("datastore.crash.producers", 4);
+        int consumers = Integer.getInteger("datastore.crash.consumers", 2);
+        int rounds = Integer.getInteger("datastore.crash.rounds", 3);
+        int acks = Integer.getInteger("datastore.crash.acks", 500) * 4;
+        long capacity = Long.getLong("datastore.crash.capacity", 20_000);
+        String directory = Files.createTempDirectory("datastore").toString();
+        String java = System.getProperty("java.home") + File.separator + "bin" + File.separator + "java";
+        for (int round = 0; round < rounds; round++) {
+            int firstProducer = round * producers;
+            long[] acked = new long[producers];
+            Arrays.fill(acked, -1);
+            BitSet[] taken = new BitSet[producers];
+            BitSet[] removed = new BitSet[producers];
+            for (int i = 0; i < producers; i++) {
+                taken[i] = new BitSet();
+                removed[i] = new BitSet();
+            }
+            Process process = new ProcessBuilder(java, "-cp", System.getProperty("java.class.path"),
+                    CrashWorkload.class.getName(), type, directory, String.valueOf(producers),
+                    String.valueOf(firstProducer), String.valueOf(consumers), String.valueOf(capacity))
+                    .redirectError(ProcessBuilder.Redirect.INHERIT)
+                    .start();
+            long written = 0;
+            try (BufferedReader reader = new BufferedReader(
+                    new InputStreamReader(process.getInputStream(), StandardCharsets.UTF_8))) {
+                for (boolean isTaken = false; written < acks || !isTaken; ) {
+                    String line = reader.readLine();
+                    Assertions.assertNotNull(line, "Workload ended before the crash");
+                    String[] fields = line.split(" ");
+                    isTaken = fields.length == 3 && fields[0].equals("-");
+                    int producer = Integer.parseInt(fields[fields.length - 2]) - firstProducer;
+                    int sequence = Integer.parseInt(fields[fields.length - 1]);
+                    if (fields.length == 2) {
+                        acked[producer] = sequence;
+                        written++;
+                    } else {
+                        (isTaken ? taken : removed)[producer].set(sequence);
+                    }
+                }
+                // A consumer is removing the record it just took
+                process.destroyForcibly();
+                process.waitFor();
+            }
+
+            try (DataStore store = CrashWorkload.open(type, directory, capacity)) {
+                BitSet[] seen = new BitSet[producers];
+                for (int i = 0; i < producers; i++) {
+                    seen[i] = new BitSet();
+                }
+                int[] duplicated = new int[1];
+                int corrupted = drain(store, seen, firstProducer, duplicated);
+                long lost = 0, resurrected = 0, recovered = 0, removes = 0;
+                for (int i = 0; i < producers; i++) {
+                    BitSet missing = new BitSet();
+                    missing.set(0, (int) acked[i] + 1);
+                    missing.andNot(seen[i]);
+                    missing.andNot(taken[i]);
+                    lost += missing.cardinality();
+                    BitSet back = (BitSet) seen[i].clone();
+                    back.and(removed[i]);
+                    resurrected += back.cardinality();
+                    recovered += seen[i].cardinality();
+                    removes += removed[i].cardinality();
+                }
+                System.out.printf("%s wrap round %d: written %d, removed %d, recovered %d, lost %d, resurrected %d,"
+                                + " duplicated %d, corrupted %d%n", type, round, written, removes, recovered, lost,
+                        resurrected, duplicated[0], corrupted);
+                Assertions.assertTrue(removes > 0, "No record removed before the crash");
+                Assertions.assertEquals(0, lost, "Synced records lost");
+                Assertions.assertEquals(0, resurrected, "Removed records restored");
+                Assertions.assertEquals(0, duplicated[0], "Duplicated records");
+                Assertions.assertEquals(0, corrupted, "Corrupted records");
+                Assertions.assertTrue(store instanceof FileDataStoreQueue ? ((FileDataStoreQueue) store).checkpoint()
+                        : store.sync());
+            }
+        }
+    }
+
+    private static int drain(DataStore store, BitSet[] seen, int firstProducer) {
+        return drain(store, seen, firstProducer, new int[1]);
+    }
+
+    /**
+     * Read and remove all the records, marking the records of each producer.
+     *
+     * @param duplicated receives the number of records read more than once.
+     * @return the number of corrupted records.
+     */
+    private static int drain(DataStore store, BitSet[] seen, int firstProducer, int[] duplicated) {
+        byte[] b = new byte[RECORD_LENGTH];
+        byte[] expected = new byte[RECORD_LENGTH];
+        int corrupted = 0;
+        for (long guard = CrashWorkload.CAPACITY / RECORD_LENGTH; !store.isEmpty() && guard > 0; guard--) {
+            if (store.read(b) == RECORD_LENGTH && check(b, expected, seen.length, firstProducer)) {
+                BitSet bits = seen[ByteBuffer.wrap(b).getInt() - firstProducer];
+                int sequence = (int) ByteBuffer.wrap(b).getLong(4);
+                if (bits.get(sequence)) {
+                    duplicated[0]++;
+                }
+                bits.set(sequence);
+            } else {
+                corrupted++;
+            }
+            store.remove();
+        }
+        return corrupted;
+    }
+
+    private static boolean check(byte[] b, byte[] expected, int producers, int firstProducer) {
+        int producer = ByteBuffer.wrap(b).getInt();
+        long sequence = ByteBuffer.wrap(b).getLong(4);
+        if (producer < firstProducer || producer >= firstProducer + producers || sequence < 0) {
+            return false;
+        }
+        CrashWorkload.fill(expected, producer, sequence);
+        return Arrays.equals(b, expected);
+    }
+
+    /**
+     * Run producers and consumers concurrently, checking that every record is consumed once and, in FIFO order,
+     * that the records of a producer are consumed in order.
+     */
+    private static void stress(String type, DataStore store, boolean isFifo) throws Exception {
+        int producers = Integer.getInteger("datastore.stress.producers", 4);
+        int consumers = Integer.getInteger("datastore.stress.consumers", 2);
+        int records = Integer.getInteger("datastore.stress.records", 2_000);
+        BitSet[] seen = new BitSet[producers];
+        AtomicInteger consumed = new AtomicInteger();
+        AtomicInteger errors = new AtomicInteger();
+        Thread[] threads = new Thread[producers + consumers];
+        for (int i = 0; i < producers; i++) {
+            int producer = i;
+            seen[i] = new BitSet();
+            threads[i] = new Thread(() -> {
+                byte[] b = new byte[RECORD_LENGTH];
+                for (long sequence = 0; sequence < records; sequence++) {
+                    CrashWorkload.fill(b, producer, sequence);
+                    while (!store.write(b)) {
+                        Thread.yield();
+                    }
+                }
+            });
+        }
+        for (int i = 0; i < consumers; i++) {
+            threads[producers + i] = new Thread(() -> {
+                byte[] b = new byte[RECORD_LENGTH];
+                byte[] expected = new byte[RECORD_LENGTH];
+                long[] last = new long[producers];
+                Arrays.fill(last, -1);
+                while (consumed.get() < producers * records) {
+                    int size;
+                    synchronized (store) {
+                        size = store.read(b);
+                        if (size == RECORD_LENGTH) {
+                            store.remove();
+                        }
+                    }
+                    if (size != RECORD_LENGTH) {
+                        Thread.yield();
+                        continue;
+                    }
+                    if (!check(b, expected, producers, 0)) {
+                        errors.incrementAndGet();
+                    } else {
+                        int producer = ByteBuffer.wrap(b).getInt();
+                        int sequence = (int) ByteBuffer.wrap(b).getLong(4);
+                        if (isFifo && sequence <= last[producer]) {
+                            errors.incrementAndGet();
+                        }
+                        last[producer] = sequence;
+                        synchronized (seen) {
+                            if (seen[producer].get(sequence)) {
+                                errors.incrementAndGet();
+                            }
+                            seen[producer].set(sequence);
+                        }
+                    }
+                    consumed.incrementAndGet();
+                }
+            });
+        }
+        long time = System.nanoTime();
+        for (Thread thread : threads) {
+            thread.start();
+        }
+        for (Thread thread : threads) {
+            thread.join(60_000);
+            Assertions.assertFalse(thread.isAlive(), "Workload did not complete");
+        }
+        time = System.nanoTime() - time;
+        System.out.printf("%s stress: %d producers, %d consumers, %d records, %.0f records/s%n",
+                type, producers, consumers, producers * records, producers * records / (time / 1e9));
+        Assertions.assertEquals(0, errors.get());
+        for (BitSet bits : seen) {
+            Assertions.assertEquals(records, bits.cardinality());
+        }
+        Assertions.assertTrue(store.isEmpty());
+    }
+}
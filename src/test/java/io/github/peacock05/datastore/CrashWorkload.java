@@ -0,0 +1,108 @@
+package io.github.peacock05.datastore;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+
+/**
+ * CrashWorkload is run in a forked JVM by {@link CrashConsistencyTest}. Every producer thread writes records
+ * holding its id and a sequence number, and prints {@code "<producer> <sequence>"} once the record is synced,
+ * until the JVM is killed or, without consumers, the data store is full. Every consumer thread reads and removes
+ * records, printing {@code "- <producer> <sequence>"} before the remove and {@code "= <producer> <sequence>"} once
+ * the remove is synced, so the JVM is killed in the middle of removes too. With consumers, the producers wait for
+ * space when the data store is full, so a small capacity makes the queue wrap around the end of the file.
+ * <p>
+ * Arguments: the type of the data store ({@code queue}, {@code light} or {@code stack}), the directory, the number
+ * of producers, the id of the first producer, and optionally the number of consumers and the capacity.
+ */
+public class CrashWorkload {
+
+    static final int RECORD_LENGTH = 64;
+    static final long CAPACITY = 5_000_000;
+
+    public static void main(String[] args) throws IOException {
+        int producers = Integer.parseInt(args[2]);
+        int firstProducer = Integer.parseInt(args[3]);
+        int consumers = args.length > 4 ? Integer.parseInt(args[4]) : 0;
+        DataStore store = open(args[0], args[1], args.length > 5 ? Long.parseLong(args[5]) : CAPACITY);
+        for (int i = 0; i < producers; i++) {
+            int producer = firstProducer + i;
+            new Thread(() -> produce(store, producer, consumers > 0), "producer-" + producer).start();
+        }
+        for (int i = 0; i < consumers; i++) {
+            new Thread(() -> consume(store), "consumer-" + i).start();
+        }
+    }
+
+    static DataStore open(String type, String directory) throws IOException {
+        return open(type, directory, CAPACITY);
+    }
+
+    static DataStore open(String type, String directory, long capacity) throws IOException {
+        switch (type) {
+            case "queue":
+                return new FileDataStoreQueue("crashQueue", directory, capacity);
+            case "light":
+                return new FileDataStoreQueue("crashQueue", directory, capacity, 64 * 1024, 0);
+            case "stack":
+                return new FileDataStoreStack("crashStack", directory, capacity);
+            default:
+                throw new IllegalArgumentException("Unknown data store " + type);
+        }
+    }
+
+    static void fill(byte[] b, int producer, long sequence) {
+        ByteBuffer buffer = ByteBuffer.wrap(b);
+        buffer.putInt(producer).putLong(sequence);
+        while (buffer.hasRemaining()) {
+            buffer.put((byte) (sequence + buffer.position()));
+        }
+    }
+
+    private static void produce(DataStore store, int producer, boolean isWaiting) {
+        byte[] b = new byte[RECORD_LENGTH];
+        for (long sequence = 0; ; sequence++) {
+            fill(b, producer, sequence);
+            while (!store.write(b)) {
+                if (!isWaiting || store.getErrorCode() != 0) {
+                    return;
+                }
+                Thread.yield();
+            }
+            if (!store.sync()) {
+                return;
+            }
+            print("", b);
+        }
+    }
+
+    private static void consume(DataStore store) {
+        byte[] b = new byte[RECORD_LENGTH];
+        for (; ; ) {
+            int size;
+            synchronized (store) {
+                size = store.read(b);
+                if (size == RECORD_LENGTH) {
+                    print("- ", b);
+                    store.remove();
+                }
+            }
+            if (size != RECORD_LENGTH) {
+                Thread.yield();
+                continue;
+            }
+            // In checkpoint-light mode the removed records are persisted by a checkpoint only
+            if (!(store instanceof FileDataStoreQueue ? ((FileDataStoreQueue) store).checkpoint() : store.sync())) {
+                return;
+            }
+            print("= ", b);
+        }
+    }
+
+    private static void print(String prefix, byte[] b) {
+        ByteBuffer buffer = ByteBuffer.wrap(b);
+        synchronized (System.out) {
+            System.out.println(prefix + buffer.getInt() + " " + buffer.getLong());
+            System.out.flush();
+        }
+    }
+}
@@ -0,0 +1,115 @@
+package io.github.peacock05.datastore;
+
+import org.junit.jupiter.api.Assertions;
+import org.junit.jupiter.api.Test;
+
+import java.nio.ByteBuffer;
+import java.nio.file.Files;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+
+public class DataStoreManagerTest {
+
+    @Test
+    public void testEviction() throws Exception {
+
+        String directory = Files.createTempDirectory("datastore").toString();
+        byte[] testData = new byte[100];
+        try (DataStoreManager manager = new DataStoreManager(directory, 5_000_000, 2)) {
+            Assertions.assertSame(manager.get("device-0"), manager.get("device-0"));
+            Assertions.assertEquals(0, manager.openStores());
+            for (int i = 0; i < 5; i++) {
+                DataStore store = manager.get("device-" + i);
+                for (int j = 0; j <= i; j++) {
+                    ByteBuffer.wrap(testData).putInt(i).putInt(j);
+                    Assertions.assertTrue(store.write(testData));
+                }
+                Assertions.assertTrue(manager.openStores() <= 2);
+            }
+
+            // The statistics of the closed data stores are kept by the handles
+            for (int i = 0; i < 5; i++) {
+                Assertions.assertEquals(i + 1, manager.get("device-" + i).count());
+                Assertions.assertFalse(manager.get("device-" + i).isEmpty());
+            }
+            Assertions.assertEquals(2, manager.openStores());
+
+            DataStore store = manager.get("device-4");
+            Assertions.assertEquals(testData.length, store.read(testData));
+            store.remove();
+            store.close();
+            Assertions.assertEquals(1, manager.openStores());
+            Assertions.assertEquals(4, store.count());
+            Assertions.assertEquals(1, manager.openStores());
+        }
+
+        // The data stores are stored to the disk when evicted and closed
+        try (DataStoreManager manager = new DataStoreManager(directory, 1,
+                (name, dir) -> new FileDataStoreQueue(name, dir, 5_000_000, 1_000_000, 0))) {
+            for (int i = 0; i < 5; i++) {
+                DataStore store = manager.get("device-" + i);
+                Assertions.assertEquals(i == 4 ? 4 : i + 1, store.count());
+                for (int j = i == 4 ? 1 : 0; j <= i; j++) {
+                    Assertions.assertEquals(testData.length, store.read(testData));
+                    Assertions.assertEquals(i, ByteBuffer.wrap(testData).getInt());
+                    Assertions.assertEquals(j, ByteBuffer.wrap(testData).getInt(4));
+                    store.remove();
+                    // Another data store is opened between the operations
+                    manager.get("device-" + ((i + 1) % 5)).readLength();
+                    Assertions.assertEquals(1, manager.openStores());
+                }
+                Assertions.assertTrue(store.isEmpty());
+            }
+        }
+
+        try (DataStoreManager manager = new DataStoreManager(directory, 5_000_000, 2)) {
+            for (int i = 0; i < 5; i++) {
+                Assertions.assertTrue(manager.get("device-" + i).isEmpty());
+            }
+        }
+    }
+
+    @Test
+    public void testConcurrentAccess() throws Exception {
+
+        String directory = Files.createTempDirectory("datastore").toString();
+        int stores = 10, records = 200, writers = 8;
+        try (DataStoreManager manager = new DataStoreManager(directory, 2,
+                (name, dir) -> new FileDataStoreStack(name, dir, 5_000_000))) {
+            manager.startSyncTask(5);
+            // The failures of the worker threads are reported by the test thread
+            Queue<Throwable> failures = new ConcurrentLinkedQueue<>();
+            Thread[] threads = new Thread[writers];
+            for (int t = 0; t < threads.length; t++) {
+                threads[t] = new Thread(() -> {
+                    byte[] testData = new byte[64];
+                    try {
+                        for (int i = 0; i < records; i++) {
+                            for (int s = 0; s < stores; s++) {
+                                DataStore store = manager.get("device-" + s);
+                                Assertions.assertTrue(store.write(testData), () -> String.valueOf(store.getException()));
+                            }
+                        }
+                    } catch (Throwable e) {
+                        failures.add(e);
+                    }
+                });
+                threads[t].start();
+            }
+            for (Thread thread : threads) {
+                thread.join();
+            }
+            Assertions.assertNull(failures.peek());
+            Assertions.assertTrue(manager.openStores() <= 2);
+            for (int s = 0; s < stores; s++) {
+                Assertions.assertEquals(threads.length * records, manager.get("device-" + s).count());
+                Assertions.assertEquals(0, manager.get("device-" + s).getErrorCode());
+            }
+        }
+
+        try (DataStoreManager manager = new DataStoreManager(directory, 3,
+                (name, dir) -> new FileDataStoreStack(name, dir, 5_000_000))) {
+            Assertions.assertEquals(writers * records, manager.get("device-9").count());
+        }
+    }
+}
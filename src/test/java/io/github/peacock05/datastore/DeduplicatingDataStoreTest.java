@@ -0,0 +1,84 @@
+package io.github.peacock05.datastore;
+
+import org.junit.jupiter.api.Assertions;
+import org.junit.jupiter.api.Test;
+
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Random;
+
+public class DeduplicatingDataStoreTest {
+
+    @Test
+    public void testDeduplication() throws Exception {
+
+        Path tempDir = Files.createTempDirectory("datastore");
+        byte[] testData = new byte[100];
+        try (DeduplicatingDataStore store = new DeduplicatingDataStore(
+                new FileDataStoreQueue("testQueue", tempDir.toString(), 5_000_000), 3)) {
+            Assertions.assertTrue(store.write(1, testData));
+            Assertions.assertTrue(store.write(1, testData));
+            Assertions.assertTrue(store.write(2, testData));
+            Assertions.assertEquals(2, store.count());
+            Assertions.assertEquals(1, store.duplicates());
+
+            // Without key the data itself is compared
+            Arrays.fill(testData, (byte) 1);
+            Assertions.assertTrue(store.write(testData));
+            Assertions.assertTrue(store.write(testData));
+            Assertions.assertEquals(3, store.count());
+            Arrays.fill(testData, (byte) 2);
+            Assertions.assertTrue(store.write(testData));
+            Assertions.assertEquals(4, store.count());
+
+            // The key 1 left the window
+            Assertions.assertTrue(store.write(1, testData));
+            Assertions.assertEquals(5, store.count());
+            Assertions.assertEquals(2, store.duplicates());
+        }
+    }
+
+    @Test
+    public void testSeparateKeys() throws Exception {
+
+        Path tempDir = Files.createTempDirectory("datastore");
+        byte[] testData = new byte[]{1, 2, 3, 4};
+        // The key a caller would pick when it happens to match the hash and the length of the data
+        long key = ((long) DataStoreUtil.getHashCode(testData, 0, testData.length) << 32) | testData.length;
+        try (DeduplicatingDataStore store = new DeduplicatingDataStore(
+                new FileDataStoreQueue("testQueue", tempDir.toString(), 5_000_000), 16)) {
+            Assertions.assertTrue(store.write(testData));
+            Assertions.assertTrue(store.write(key, new byte[]{5, 6}));
+            Assertions.assertTrue(store.write(key, new byte[]{5, 6}));
+            Assertions.assertTrue(store.write(testData));
+            Assertions.assertEquals(2, store.count());
+            Assertions.assertEquals(2, store.duplicates());
+        }
+    }
+
+    @Test
+    public void testLongHashTable() {
+
+        LongHashTable table = new LongHashTable(4);
+        Map<Long, Long> expected = new HashMap<>();
+        Random random = new Random(11);
+        for (int i = 0; i < 100_000; i++) {
+            long key = random.nextInt(2_000) * 0x100000000L;
+            if (random.nextBoolean()) {
+                long value = random.nextInt(Integer.MAX_VALUE);
+                Long previous = expected.put(key, value);
+                Assertions.assertEquals(previous == null ? -1 : previous, table.put(key, value));
+            } else {
+                Long previous = expected.remove(key);
+                Assertions.assertEquals(previous == null ? -1 : previous, table.remove(key));
+            }
+            Assertions.assertEquals(expected.size(), table.size());
+        }
+        for (Map.Entry<Long, Long> entry : expected.entrySet()) {
+            Assertions.assertEquals((long) entry.getValue(), table.get(entry.getKey()));
+        }
+    }
+}
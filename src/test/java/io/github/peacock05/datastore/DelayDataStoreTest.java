@@ -0,0 +1,106 @@
+package io.github.peacock05.datastore;
+
+import org.junit.jupiter.api.Assertions;
+import org.junit.jupiter.api.Test;
+
+import java.io.RandomAccessFile;
+import java.nio.file.Files;
+import java.nio.file.Path;
+
+public class DelayDataStoreTest {
+
+    @Test
+    public void testDelayDataStore() throws Exception {
+        Path tempDir = Files.createTempDirectory("datastore");
+        byte[] testData = new byte[16];
+        long now = System.currentTimeMillis();
+        try (DelayDataStore store = new DelayDataStore("testQueue", tempDir.toString(), 1_000_000, 50)) {
+            Assertions.assertTrue(store.isEmpty(), "Data store must be empty");
+            Assertions.assertTrue(store.write(now + 400, new byte[]{3}), "Write do not fail here");
+            Assertions.assertTrue(store.write(now + 200, new byte[]{2}), "Write do not fail here");
+            Assertions.assertTrue(store.write(new byte[]{1}), "Write do not fail here");
+            Assertions.assertEquals(3, store.count());
+
+            Assertions.assertEquals(1, store.readLength());
+            Assertions.assertEquals(1, store.read(testData));
+            Assertions.assertEquals(1, testData[0]);
+            store.remove();
+
+            // Not due yet
+            Assertions.assertEquals(now + 200, store.nextDueTime());
+            Assertions.assertEquals(-1, store.read(testData));
+            Assertions.assertEquals(-1, store.poll(testData, 0, testData.length, 0));
+
+            Assertions.assertEquals(1, store.poll(testData, 0, testData.length, 5000));
+            Assertions.assertTrue(System.currentTimeMillis() >= now + 200);
+            Assertions.assertEquals(2, testData[0]);
+            Assertions.assertEquals(1, store.count());
+            store.sync();
+        }
+
+        try (DelayDataStore store = new DelayDataStore("testQueue", tempDir.toString(), 1_000_000, 50)) {
+            Assertions.assertEquals(1, store.count());
+            Assertions.assertEquals(now + 400, store.nextDueTime());
+            Assertions.assertEquals(1, store.poll(testData, 0, testData.length, 5000));
+            Assertions.assertTrue(System.currentTimeMillis() >= now + 400);
+            Assertions.assertEquals(3, testData[0]);
+            Assertions.assertTrue(store.isEmpty(), "Data store must be empty");
+        }
+
+        // The empty buckets are deleted
+        try (java.util.stream.Stream<Path> files = Files.list(tempDir)) {
+            Assertions.assertEquals(0, files.count());
+        }
+    }
+
+    @Test
+    public void testPollWakesUpOnWrite() throws Exception {
+        Path tempDir = Files.createTempDirectory("datastore");
+        byte[] testData = new byte[16];
+        try (DelayDataStore store = new DelayDataStore("testQueue", tempDir.toString(), 1_000_000, 1000)) {
+            long now = System.currentTimeMillis();
+            Assertions.assertTrue(store.write(now + 60_000, new byte[]{2}), "Write do not fail here");
+            Thread writer = new Thread(() -> {
+                try {
+                    Thread.sleep(100);
+                } catch (InterruptedException ignored) {
+                }
+                store.write(new byte[]{1});
+            });
+            writer.start();
+            Assertions.assertEquals(1, store.poll(testData, 0, testData.length, 10_000));
+            Assertions.assertEquals(1, testData[0]);
+            Assertions.assertTrue(System.currentTimeMillis() - now < 10_000);
+            writer.join();
+        }
+    }
+
+    @Test
+    public void testReadError() throws Exception {
+        Path tempDir = Files.createTempDirectory("datastore");
+        byte[] testData = new byte[16];
+        try (DelayDataStore store = new DelayDataStore("testQueue", tempDir.toString(), 1_000_000, 50)) {
+            Assertions.assertTrue(store.write(0, new byte[]{1}), "Write do not fail here");
+            Assertions.assertTrue(store.write(10, new byte[]{2}), "Write do not fail here");
+            try (RandomAccessFile file = new RandomAccessFile(tempDir.resolve("testQueue.d0.fifo").toFile(), "rw")) {
+                // Corrupt the not-before time of the first data behind the meta block and the frame header
+                file.seek(64 + 16);
+                file.write(9);
+            }
+
+            // The data that cannot be read is reported and kept
+            Assertions.assertEquals(-1, store.nextDueTime());
+            Assertions.assertEquals(1, store.getErrorCode());
+            Assertions.assertEquals(0, store.poll(testData, 0, testData.length, 0));
+            Assertions.assertEquals(1, store.getErrorCode());
+            Assertions.assertFalse(store.isEmpty());
+            Assertions.assertEquals(2, store.count());
+
+            // Until it is skipped
+            store.remove();
+            Assertions.assertEquals(1, store.poll(testData, 0, testData.length, 0));
+            Assertions.assertEquals(2, testData[0]);
+            Assertions.assertTrue(store.isEmpty(), "Data store must be empty");
+        }
+    }
+}
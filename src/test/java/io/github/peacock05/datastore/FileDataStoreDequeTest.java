@@ -0,0 +1,90 @@
+package io.github.peacock05.datastore;
+
+import org.junit.jupiter.api.Assertions;
+import org.junit.jupiter.api.Test;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayDeque;
+import java.util.Arrays;
+import java.util.Random;
+
+public class FileDataStoreDequeTest {
+
+    @Test
+    public void testBothEnds() throws IOException {
+
+        Path tempDir = Files.createTempDirectory("datastore");
+        byte[] testData = new byte[100];
+        try (FileDataStoreDeque store = new FileDataStoreDeque("testQueue", tempDir.toString(), 5_000_000)) {
+            for (int i = 0; i < 5; i++) {
+                Arrays.fill(testData, (byte) i);
+                Assertions.assertTrue(store.pushBack(testData));
+            }
+            Arrays.fill(testData, (byte) -1);
+            Assertions.assertTrue(store.pushFront(testData));
+            Assertions.assertEquals(6, store.count());
+            Assertions.assertEquals(6 * (testData.length + 32), store.usage());
+
+            Assertions.assertEquals(testData.length, store.readBackLength());
+            Assertions.assertEquals(testData.length, store.popBack(testData));
+            Assertions.assertEquals(4, testData[0]);
+            Assertions.assertEquals(testData.length, store.popFront(testData));
+            Assertions.assertEquals(-1, testData[0]);
+            Assertions.assertEquals(0, store.popFront(new byte[10]));
+            Assertions.assertEquals(4, store.count());
+            store.sync();
+        }
+
+        try (FileDataStoreDeque store = new FileDataStoreDeque("testQueue", tempDir.toString(), 5_000_000)) {
+            Assertions.assertEquals(4, store.count());
+            Assertions.assertEquals(testData.length, store.read(testData));
+            Assertions.assertEquals(0, testData[0]);
+            Assertions.assertEquals(testData.length, store.readBack(testData, 0, testData.length));
+            Assertions.assertEquals(3, testData[0]);
+            for (int i = 0; i < 4; i++) {
+                store.remove();
+            }
+            Assertions.assertTrue(store.isEmpty());
+            Assertions.assertEquals(-1, store.popBack(testData));
+            Assertions.assertEquals(0, store.usage());
+        }
+    }
+
+    @Test
+    public void testRollOver() throws IOException {
+
+        Path tempDir = Files.createTempDirectory("datastore");
+        Random random = new Random(7);
+        ArrayDeque<byte[]> expected = new ArrayDeque<>();
+        byte[] buffer = new byte[300];
+        try (FileDataStoreDeque store = new FileDataStoreDeque("testQueue", tempDir.toString(), 4_096)) {
+            for (int i = 0; i < 20_000; i++) {
+                int op = random.nextInt(4);
+                if (op < 2) {
+                    byte[] data = new byte[random.nextInt(buffer.length)];
+                    random.nextBytes(data);
+                    boolean hasSpace = data.length + 32 <= store.free();
+                    boolean isPushed = op == 0 ? store.pushFront(data) : store.pushBack(data);
+                    Assertions.assertEquals(hasSpace, isPushed);
+                    if (isPushed) {
+                        if (op == 0) {
+                            expected.addFirst(data);
+                        } else {
+                            expected.addLast(data);
+                        }
+                    }
+                } else if (!expected.isEmpty()) {
+                    byte[] data = op == 2 ? expected.pollFirst() : expected.pollLast();
+                    int size = op == 2 ? store.popFront(buffer) : store.popBack(buffer);
+                    Assertions.assertEquals(data.length, size);
+                    Assertions.assertArrayEquals(data, Arrays.copyOf(buffer, size));
+                } else {
+                    Assertions.assertEquals(-1, store.popFront(buffer));
+                }
+                Assertions.assertEquals(expected.size(), store.count());
+            }
+        }
+    }
+}
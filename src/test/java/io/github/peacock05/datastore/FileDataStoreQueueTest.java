@@ -4,12 +4,21 @@ import org.junit.jupiter.api.Assertions;
 import org.junit.jupiter.api.Test;
 
 import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.RandomAccessFile;
+import java.io.UncheckedIOException;
 import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
 import java.nio.charset.StandardCharsets;
 import java.nio.file.Files;
 import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayDeque;
 import java.util.Arrays;
+import java.util.List;
 import java.util.Random;
+import java.util.concurrent.atomic.AtomicBoolean;
 
 public class FileDataStoreQueueTest {
 
@@ -190,4 +199,858 @@ public class FileDataStoreQueueTest {
         Assertions.assertEquals(18938,readCount);
     }
 
+    @Test
+    public void testCheckpointLightRecovery() throws IOException {
+
+        Path tempDir = Files.createTempDirectory("datastore");
+        Random random = new Random();
+        byte[] testData1 = new byte[512], readData1 = new byte[512];
+        byte[] testData2 = new byte[342], readData2 = new byte[342];
+        random.nextBytes(testData1);
+        random.nextBytes(testData2);
+
+        try(DataStore store = new FileDataStoreQueue("testQueue", tempDir.toString(),5_000_000,
+                1_000_000,60_000)){
+            Assertions.assertTrue(store.isEmpty(),"Data store must be empty");
+            Assertions.assertTrue(store.write(testData1), "Write do not fail here");
+            Assertions.assertTrue(store.write(testData2), "Write do not fail here");
+            // Only the data is forced to the disk, the meta block still points to an empty queue
+            Assertions.assertTrue(store.sync());
+        } catch (Exception e) {
+            Assertions.fail(e);
+        }
+
+        try(DataStore store = new FileDataStoreQueue("testQueue", tempDir.toString(),5_000_000,
+                1_000_000,60_000)){
+            Assertions.assertEquals(2,store.count());
+            Assertions.assertEquals(readData1.length,store.read(readData1));
+            Assertions.assertArrayEquals(testData1,readData1);
+            store.remove();
+            store.sync();
+        } catch (Exception e) {
+            Assertions.fail(e);
+        }
+
+        // The remove was not checkpointed, so the first record is delivered again
+        try(DataStore store = new FileDataStoreQueue("testQueue", tempDir.toString(),5_000_000)){
+            Assertions.assertEquals(2,store.count());
+            Assertions.assertEquals(readData1.length,store.read(readData1));
+            Assertions.assertArrayEquals(testData1,readData1);
+            store.remove();
+            Assertions.assertEquals(readData2.length,store.read(readData2));
+            Assertions.assertArrayEquals(testData2,readData2);
+            store.remove();
+            Assertions.assertTrue(store.isEmpty(),"Data store must be empty");
+            store.sync();
+        } catch (Exception e) {
+            Assertions.fail(e);
+        }
+
+    }
+
+    @Test
+    public void testCheckpointLightRollOver() throws IOException {
+
+        Path tempDir = Files.createTempDirectory("datastore");
+        byte[] testData = new byte[512];
+        int writeCount = 0;
+        int readCount = 0;
+        for (int i = 0; i < 4; i++) {
+            try(DataStore store = new FileDataStoreQueue("testQueue", tempDir.toString(),5_000_000,
+                    100_000,0)){
+
+                for(int j = 0; j < 5000; j++){
+                    Arrays.fill(testData,(byte)writeCount);
+                    if(!store.write(testData))
+                        break;
+                    writeCount++;
+                    store.sync();
+                }
+            } catch (Exception e) {
+                Assertions.fail(e);
+            }
+
+            try(DataStore store = new FileDataStoreQueue("testQueue", tempDir.toString(),5_000_000,
+                    100_000,0)){
+
+                Assertions.assertEquals(writeCount - readCount,store.count());
+                while (store.read(testData) == testData.length) {
+
+                    for (byte value : testData) {
+                        Assertions.assertEquals((byte) readCount, value);
+                    }
+                    readCount++;
+                    store.remove();
+                }
+
+                Assertions.assertTrue(store.isEmpty(),"Data store must be empty");
+                // Force a checkpoint, otherwise the consumed records are delivered again
+                ((FileDataStoreQueue) store).checkpoint();
+            } catch (Exception e) {
+                Assertions.fail(e);
+            }
+        }
+
+        Assertions.assertEquals(20000,writeCount);
+        Assertions.assertEquals(20000,readCount);
+    }
+
+    @Test
+    public void testCheckpointLightStaleLap() throws Exception {
+
+        Path tempDir = Files.createTempDirectory("datastore");
+        byte[] testData = new byte[100];
+        try(DataStore store = new FileDataStoreQueue("testQueue", tempDir.toString(),1_000,
+                1_000_000,0)){
+            // Eight frames of 116 bytes from offset 64, read and removed without a checkpoint
+            for (int i = 0; i < 8; i++) {
+                ByteBuffer.wrap(testData).putInt(i);
+                Assertions.assertTrue(store.write(testData));
+            }
+            for (int i = 0; i < 8; i++) {
+                store.remove();
+            }
+            // The frame at 992 runs past the limit and checkpoints the front, the next frames start the next lap
+            for (int i = 8; i < 12; i++) {
+                ByteBuffer.wrap(testData).putInt(i);
+                Assertions.assertTrue(store.write(testData));
+            }
+        }
+
+        // A crash before the terminator of the last frame leaves the intact frame 3 of the previous lap behind it
+        try (RandomAccessFile file = new RandomAccessFile(tempDir.resolve("testQueue.fifo").toFile(), "rw")) {
+            file.seek(64 + 3 * 116);
+            Assertions.assertEquals(0, file.readInt());
+            file.seek(64 + 3 * 116);
+            file.writeInt(0x5b77f49e);
+        }
+
+        try(DataStore store = new FileDataStoreQueue("testQueue", tempDir.toString(),1_000,
+                1_000_000,0)){
+            Assertions.assertEquals(4, store.count());
+            for (int i = 8; i < 12; i++) {
+                Assertions.assertEquals(testData.length, store.read(testData));
+                Assertions.assertEquals(i, ByteBuffer.wrap(testData).getInt());
+                store.remove();
+            }
+            Assertions.assertTrue(store.isEmpty());
+        }
+    }
+
+    @Test
+    public void testSequenceIndex() throws IOException {
+
+        Path tempDir = Files.createTempDirectory("datastore");
+        byte[] testData = new byte[512];
+        long writeCount = 0;
+        for (int i = 0; i < 3; i++) {
+            try(FileDataStoreQueue store = new FileDataStoreQueue("testQueue", tempDir.toString(),1_000_000,
+                    0,0,8)){
+
+                Assertions.assertEquals(writeCount,store.tailSequence());
+                for(int j = 0; j < 1000; j++){
+                    Arrays.fill(testData,(byte)writeCount);
+                    if(!store.write(testData))
+                        break;
+                    writeCount++;
+                }
+                Assertions.assertEquals(writeCount,store.tailSequence());
+                long head = store.headSequence();
+
+                // Random access does not move the front
+                long sequence = head + (writeCount - head) / 2;
+                Assertions.assertEquals(testData.length,store.read(sequence,testData,0,testData.length));
+                for (byte value : testData) {
+                    Assertions.assertEquals((byte) sequence, value);
+                }
+                Assertions.assertEquals(head,store.headSequence());
+                Assertions.assertEquals(-1,store.read(writeCount,testData,0,testData.length));
+                Assertions.assertEquals(-1,store.read(head - 1,testData,0,testData.length));
+
+                // Seek drops the preceding records
+                Assertions.assertTrue(store.seek(writeCount - 3));
+                Assertions.assertEquals(3,store.count());
+                Assertions.assertEquals(testData.length,store.read(testData));
+                for (byte value : testData) {
+                    Assertions.assertEquals((byte) (writeCount - 3), value);
+                }
+                Assertions.assertFalse(store.seek(writeCount + 1));
+                store.sync();
+            } catch (Exception e) {
+                Assertions.fail(e);
+            }
+
+            try(FileDataStoreQueue store = new FileDataStoreQueue("testQueue", tempDir.toString(),1_000_000,
+                    0,0,8)){
+                Assertions.assertEquals(writeCount - 3,store.headSequence());
+                store.remove();
+                Assertions.assertEquals(writeCount - 2,store.headSequence());
+                store.sync();
+            } catch (Exception e) {
+                Assertions.fail(e);
+            }
+        }
+    }
+
+
+    @Test
+    public void testTimeToLive() throws Exception {
+
+        Path tempDir = Files.createTempDirectory("datastore");
+        byte[] testData = new byte[64];
+        try(FileDataStoreQueue store = new FileDataStoreQueue("testQueue", tempDir.toString(),5_000_000)){
+            store.write(testData, 0, testData.length, 50);
+            store.write(testData, 0, testData.length, 50);
+            Arrays.fill(testData,(byte)1);
+            store.write(testData);
+            store.setTimeToLive(50);
+            Arrays.fill(testData,(byte)2);
+            store.write(testData);
+            store.write(testData, 0, testData.length, 0);
+            Assertions.assertEquals(5,store.count());
+            Assertions.assertEquals(0,store.purgeExpired());
+            store.sync();
+        }
+
+        Thread.sleep(100);
+        try(FileDataStoreQueue store = new FileDataStoreQueue("testQueue", tempDir.toString(),5_000_000)){
+            // The expired records at the front are skipped
+            Assertions.assertEquals(testData.length,store.readLength());
+            Assertions.assertEquals(3,store.count());
+            Assertions.assertEquals(testData.length,store.read(testData));
+            Assertions.assertEquals(1,testData[0]);
+            store.remove();
+
+            // The purge moves the front past the expired run only
+            Assertions.assertEquals(1,store.purgeExpired());
+            Assertions.assertEquals(1,store.count());
+            Assertions.assertEquals(testData.length,store.read(testData));
+            Assertions.assertEquals(2,testData[0]);
+            store.remove();
+            Assertions.assertTrue(store.isEmpty());
+
+            store.startPurgeTask(10);
+            store.write(testData, 0, testData.length, 1);
+            for (int i = 0; i < 100 && !store.isEmpty(); i++) {
+                Thread.sleep(10);
+            }
+            Assertions.assertTrue(store.isEmpty());
+        }
+    }
+
+    @Test
+    public void testSharedMode() throws Exception {
+
+        Path tempDir = Files.createTempDirectory("datastore");
+        int total = 20_000;
+        try(FileDataStoreQueue producer = new FileDataStoreQueue("testQueue", tempDir.toString(),100_000,true);
+            FileDataStoreQueue consumer = new FileDataStoreQueue("testQueue", tempDir.toString(),100_000,true)){
+
+            Thread thread = new Thread(() -> {
+                byte[] testData = new byte[100];
+                for (int i = 0; i < total; ) {
+                    ByteBuffer.wrap(testData).putInt(i);
+                    if (producer.write(testData)) {
+                        i++;
+                    } else {
+                        Thread.yield();
+                    }
+                }
+            });
+            thread.start();
+
+            byte[] buffer = new byte[100];
+            for (int i = 0; i < total; ) {
+                int size = consumer.read(buffer);
+                if (size < 0) {
+                    Thread.yield();
+                    continue;
+                }
+                Assertions.assertEquals(buffer.length, size);
+                Assertions.assertEquals(i, ByteBuffer.wrap(buffer).getInt());
+                consumer.remove();
+                i++;
+            }
+            thread.join();
+            Assertions.assertTrue(producer.isEmpty());
+            Assertions.assertEquals(0, producer.count());
+            Assertions.assertTrue(consumer.sync());
+        }
+    }
+
+    @Test
+    public void testTransaction() throws Exception {
+
+        Path tempDir = Files.createTempDirectory("datastore");
+        byte[] testData = new byte[100];
+        try(FileDataStoreQueue store = new FileDataStoreQueue("testQueue", tempDir.toString(),5_000_000)){
+            store.write(testData);
+
+            Assertions.assertTrue(store.beginTransaction());
+            Assertions.assertFalse(store.beginTransaction());
+            store.remove();
+            for (int i = 1; i <= 3; i++) {
+                Arrays.fill(testData, (byte) i);
+                Assertions.assertTrue(store.write(testData));
+            }
+            Assertions.assertEquals(3, store.count());
+            Assertions.assertTrue(store.rollback());
+            Assertions.assertFalse(store.rollback());
+            Assertions.assertEquals(1, store.count());
+            Assertions.assertEquals(testData.length, store.read(testData));
+            Assertions.assertEquals(0, testData[0]);
+
+            // The other threads wait for the commit, and their statistics show the committed records
+            Assertions.assertTrue(store.beginTransaction());
+            store.remove();
+            Arrays.fill(testData, (byte) 4);
+            store.write(testData);
+            long[] observed = new long[2];
+            Thread thread = new Thread(() -> {
+                observed[0] = store.count();
+                observed[1] = store.read(new byte[testData.length]);
+            });
+            thread.start();
+            thread.join(100);
+            Assertions.assertTrue(thread.isAlive());
+            Assertions.assertEquals(1, observed[0]);
+            store.write(testData);
+            Assertions.assertTrue(store.commit());
+            thread.join();
+            Assertions.assertEquals(testData.length, observed[1]);
+            Assertions.assertEquals(2, store.count());
+        }
+
+        try(FileDataStoreQueue store = new FileDataStoreQueue("testQueue", tempDir.toString(),5_000_000)){
+            Assertions.assertEquals(2, store.count());
+            Assertions.assertEquals(testData.length, store.read(testData));
+            Assertions.assertEquals(4, testData[0]);
+        }
+    }
+
+    @Test
+    public void testCheckpointLightTransaction() throws Exception {
+
+        Path tempDir = Files.createTempDirectory("datastore");
+        byte[] testData = new byte[100];
+        try(FileDataStoreQueue store = new FileDataStoreQueue("testQueue", tempDir.toString(),5_000_000,
+                1_000_000,0)){
+            store.write(testData);
+            Assertions.assertTrue(store.beginTransaction());
+            Arrays.fill(testData, (byte) 1);
+            store.write(testData);
+            store.write(testData);
+            Assertions.assertTrue(store.sync());
+            Assertions.assertEquals(3, store.count());
+            Assertions.assertEquals(testData.length, store.read(testData));
+            // Closed without commit, as after a crash
+        }
+
+        try(FileDataStoreQueue store = new FileDataStoreQueue("testQueue", tempDir.toString(),5_000_000,
+                1_000_000,0)){
+            Assertions.assertEquals(1, store.count());
+            Assertions.assertTrue(store.beginTransaction());
+            Arrays.fill(testData, (byte) 2);
+            store.write(testData);
+            store.write(testData);
+            Assertions.assertTrue(store.commit());
+        }
+
+        try(FileDataStoreQueue store = new FileDataStoreQueue("testQueue", tempDir.toString(),5_000_000,
+                1_000_000,0)){
+            Assertions.assertEquals(3, store.count());
+            store.remove();
+            Assertions.assertEquals(testData.length, store.read(testData));
+            Assertions.assertEquals(2, testData[0]);
+        }
+    }
+
+    @Test
+    public void testLease() throws Exception {
+
+        Path tempDir = Files.createTempDirectory("datastore");
+        byte[] testData = new byte[100];
+        try(FileDataStoreQueue store = new FileDataStoreQueue("testQueue", tempDir.toString(),5_000_000)){
+            for (int i = 0; i < 4; i++) {
+                Arrays.fill(testData, (byte) i);
+                store.write(testData);
+            }
+            FileDataStoreQueue.Lease first = store.lease(60_000);
+            FileDataStoreQueue.Lease second = store.lease(60_000);
+            FileDataStoreQueue.Lease third = store.lease(0);
+            Assertions.assertEquals(0, first.getData()[0]);
+            Assertions.assertEquals(1, second.getData()[0]);
+
+            // The front moves over the records acknowledged in a row only
+            Assertions.assertTrue(store.ack(second));
+            Assertions.assertFalse(store.ack(second));
+            Assertions.assertEquals(4, store.count());
+            Assertions.assertTrue(store.ack(first));
+            Assertions.assertEquals(2, store.count());
+
+            // The expired record is delivered again before the next record, with a new lease
+            FileDataStoreQueue.Lease again = store.lease(60_000);
+            Assertions.assertNotSame(third, again);
+            Assertions.assertEquals(2, again.getData()[0]);
+            Assertions.assertEquals(1, third.getDeliveryCount());
+            Assertions.assertEquals(2, again.getDeliveryCount());
+            // The late answers of the first delivery do not apply to the second one
+            Assertions.assertFalse(store.ack(third));
+            Assertions.assertFalse(store.nack(third));
+            Assertions.assertEquals(2, store.count());
+            Assertions.assertTrue(store.nack(again));
+            FileDataStoreQueue.Lease last = store.lease(60_000);
+            Assertions.assertEquals(2, last.getData()[0]);
+            Assertions.assertFalse(store.nack(again));
+            FileDataStoreQueue.Lease fourth = store.lease(60_000);
+            Assertions.assertEquals(3, fourth.getData()[0]);
+            Assertions.assertNull(store.lease(60_000));
+            Assertions.assertTrue(store.ack(fourth));
+            store.sync();
+        }
+
+        try(FileDataStoreQueue store = new FileDataStoreQueue("testQueue", tempDir.toString(),5_000_000)){
+            // The unacknowledged record is delivered again after a restart
+            Assertions.assertEquals(2, store.count());
+            FileDataStoreQueue.Lease lease = store.lease(60_000);
+            Assertions.assertEquals(2, lease.getData()[0]);
+            store.remove();
+            Assertions.assertFalse(store.ack(lease));
+        }
+    }
+
+    @Test
+    public void testLeaseBatch() throws Exception {
+
+        Path tempDir = Files.createTempDirectory("datastore");
+        byte[] testData = new byte[100];
+        try(FileDataStoreQueue store = new FileDataStoreQueue("testQueue", tempDir.toString(),5_000_000)){
+            for (int i = 0; i < 10; i++) {
+                Arrays.fill(testData, (byte) i);
+                store.write(testData);
+            }
+            List<FileDataStoreQueue.Lease> first = store.lease(4, 0);
+            Assertions.assertEquals(4, first.size());
+            for (int i = 0; i < 4; i++) {
+                Assertions.assertEquals(i, first.get(i).getData()[0]);
+            }
+
+            // The expired records are delivered again before the next records
+            List<FileDataStoreQueue.Lease> second = store.lease(100, 60_000);
+            Assertions.assertEquals(10, second.size());
+            for (int i = 0; i < 10; i++) {
+                Assertions.assertEquals(i, second.get(i).getData()[0]);
+                Assertions.assertEquals(i < 4 ? 2 : 1, second.get(i).getDeliveryCount());
+            }
+            Assertions.assertTrue(store.lease(5, 60_000).isEmpty());
+            Assertions.assertEquals(0, store.getErrorCode());
+            for (FileDataStoreQueue.Lease lease : second) {
+                Assertions.assertTrue(store.ack(lease));
+            }
+            Assertions.assertTrue(store.isEmpty());
+        }
+    }
+
+    @Test
+    public void testConcurrentLease() throws Exception {
+
+        Path tempDir = Files.createTempDirectory("datastore");
+        int total = 10_000;
+        try(FileDataStoreQueue store = new FileDataStoreQueue("testQueue", tempDir.toString(),100_000)){
+            boolean[] delivered = new boolean[total];
+            AtomicBoolean isDone = new AtomicBoolean();
+            Thread[] workers = new Thread[4];
+            for (int w = 0; w < workers.length; w++) {
+                workers[w] = new Thread(() -> {
+                    Random random = new Random();
+                    while (!isDone.get()) {
+                        FileDataStoreQueue.Lease lease = store.lease(60_000);
+                        if (lease == null) {
+                            Thread.yield();
+                            continue;
+                        }
+                        int value = ByteBuffer.wrap(lease.getData()).getInt();
+                        if (random.nextInt(10) == 0) {
+                            store.nack(lease);
+                        } else {
+                            synchronized (delivered) {
+                                delivered[value] = true;
+                            }
+                            store.ack(lease);
+                        }
+                    }
+                });
+                workers[w].start();
+            }
+            byte[] testData = new byte[100];
+            for (int i = 0; i < total; ) {
+                ByteBuffer.wrap(testData).putInt(i);
+                if (store.write(testData)) {
+                    i++;
+                } else {
+                    Thread.yield();
+                }
+            }
+            for (int i = 0; i < 1000 && !store.isEmpty(); i++) {
+                Thread.sleep(10);
+            }
+            Assertions.assertTrue(store.isEmpty());
+            isDone.set(true);
+            for (Thread worker : workers) {
+                worker.join();
+            }
+            synchronized (delivered) {
+                for (boolean value : delivered) {
+                    Assertions.assertTrue(value);
+                }
+            }
+        }
+    }
+
+    @Test
+    public void testResize() throws IOException {
+
+        // The small segment at the start of the file is moved behind the end, then the end segment is moved
+        for (int tailRecords : new int[]{2, 8}) {
+            Path tempDir = Files.createTempDirectory("datastore");
+            byte[] testData = new byte[100];
+            int next = 0, expected = 0;
+            try(FileDataStoreQueue store = new FileDataStoreQueue("testQueue", tempDir.toString(),1_200,0,0,2)){
+                while (store.write(testData)) {
+                    ByteBuffer.wrap(testData).putInt(++next);
+                }
+                for (int i = 0; i < tailRecords; i++) {
+                    store.remove();
+                    expected++;
+                }
+                while (store.write(testData)) {
+                    ByteBuffer.wrap(testData).putInt(++next);
+                }
+                Assertions.assertTrue(store.resize(4_000));
+                Assertions.assertEquals(4_000, store.capacity());
+                byte[] readData = new byte[100];
+                Assertions.assertEquals(readData.length, store.read(expected + 1, readData, 0, readData.length));
+                Assertions.assertEquals(expected + 1, ByteBuffer.wrap(readData).getInt());
+                for (int i = 0; i < 10; i++) {
+                    Assertions.assertTrue(store.write(testData));
+                    ByteBuffer.wrap(testData).putInt(++next);
+                }
+                Assertions.assertFalse(store.resize(1_000));
+                store.sync();
+            }
+
+            // The new capacity is stored, so the previous limit still opens the resized layout
+            try(FileDataStoreQueue store = new FileDataStoreQueue("testQueue", tempDir.toString(),1_200,0,0,2)){
+                Assertions.assertEquals(4_000, store.capacity());
+                while (!store.isEmpty()) {
+                    Assertions.assertEquals(testData.length, store.read(testData));
+                    Assertions.assertEquals(expected++, ByteBuffer.wrap(testData).getInt());
+                    store.remove();
+                }
+                Assertions.assertEquals(next, expected);
+            }
+        }
+    }
+
+    @Test
+    public void testResizeToTailEnd() throws IOException {
+
+        Path tempDir = Files.createTempDirectory("datastore");
+        byte[] testData = new byte[10];
+        int next = 0, expected = 0;
+        try(FileDataStoreQueue store = new FileDataStoreQueue("testQueue", tempDir.toString(),200)){
+            for (int i = 0; i < 5; i++) {
+                ByteBuffer.wrap(testData).putInt(next++);
+                Assertions.assertTrue(store.write(testData));
+            }
+            store.remove();
+            store.remove();
+            expected = 2;
+            for (int i = 0; i < 2; i++) {
+                ByteBuffer.wrap(testData).putInt(next++);
+                Assertions.assertTrue(store.write(testData));
+            }
+            // The segment at the end of the file ends at 220 and the moved tail would end exactly at the capacity
+            Assertions.assertFalse(store.resize(246));
+            Assertions.assertEquals(200, store.capacity());
+            Assertions.assertTrue(store.resize(247));
+            ByteBuffer.wrap(testData).putInt(next++);
+            Assertions.assertTrue(store.write(testData));
+            Assertions.assertEquals(next - expected, store.count());
+            store.sync();
+        }
+        try(FileDataStoreQueue store = new FileDataStoreQueue("testQueue", tempDir.toString(),200)){
+            Assertions.assertEquals(247, store.capacity());
+            while (!store.isEmpty()) {
+                Assertions.assertEquals(testData.length, store.read(testData));
+                Assertions.assertEquals(expected++, ByteBuffer.wrap(testData).getInt());
+                store.remove();
+            }
+            Assertions.assertEquals(next, expected);
+            Assertions.assertEquals(0, store.count());
+        }
+    }
+
+    @Test
+    public void testResizeWithoutCapacityFile() throws IOException {
+
+        Path tempDir = Files.createTempDirectory("datastore");
+        byte[] testData = new byte[100];
+        long count;
+        try(FileDataStoreQueue store = new FileDataStoreQueue("testQueue", tempDir.toString(),1_200)){
+            while (store.write(testData)) {
+            }
+            Assertions.assertTrue(store.resize(4_000));
+            for (int i = 0; i < 10; i++) {
+                Assertions.assertTrue(store.write(testData));
+            }
+            count = store.count();
+            store.sync();
+        }
+        Files.delete(tempDir.resolve("testQueue.cap"));
+        // The pointers beyond the limit are rejected instead of corrupting the records
+        Assertions.assertThrows(IOException.class,
+                () -> new FileDataStoreQueue("testQueue", tempDir.toString(), 1_200));
+        try(FileDataStoreQueue store = new FileDataStoreQueue("testQueue", tempDir.toString(),4_000)){
+            Assertions.assertEquals(count, store.count());
+        }
+    }
+
+    @Test
+    public void testExportImport() throws Exception {
+
+        Path tempDir = Files.createTempDirectory("datastore");
+        Path export = tempDir.resolve("export.bin");
+        byte[] testData = new byte[100];
+        int next = 0, expected = 0;
+        try(FileDataStoreQueue store = new FileDataStoreQueue("testQueue", tempDir.toString(),1_200)){
+            // Wrap the records around the end of the file
+            while (store.write(testData)) {
+                ByteBuffer.wrap(testData).putInt(++next);
+            }
+            for (int i = 0; i < 4; i++) {
+                store.remove();
+                expected++;
+            }
+            while (store.write(testData)) {
+                ByteBuffer.wrap(testData).putInt(++next);
+            }
+            try (FileChannel channel = FileChannel.open(export, StandardOpenOption.CREATE, StandardOpenOption.WRITE)) {
+                Assertions.assertTrue(store.exportTo(channel));
+            }
+            Assertions.assertEquals(next - expected, store.count());
+        }
+
+        try(FileDataStoreQueue store = new FileDataStoreQueue("importQueue", tempDir.toString(),5_000_000);
+            FileChannel channel = FileChannel.open(export, StandardOpenOption.READ)){
+            Assertions.assertTrue(store.importFrom(channel));
+            Assertions.assertEquals(next - expected, store.count());
+            while (!store.isEmpty()) {
+                Assertions.assertEquals(testData.length, store.read(testData));
+                Assertions.assertEquals(expected++, ByteBuffer.wrap(testData).getInt());
+                store.remove();
+            }
+            Assertions.assertEquals(next, expected);
+        }
+
+        // The import stops when the data store is full, keeps the imported records and reports the position of the
+        // first record not imported
+        try(FileDataStoreQueue store = new FileDataStoreQueue("smallQueue", tempDir.toString(),500);
+            FileChannel channel = FileChannel.open(export, StandardOpenOption.READ)){
+            Assertions.assertFalse(store.importFrom(channel));
+            Assertions.assertEquals(2, store.getErrorCode());
+            Assertions.assertEquals(3, store.count());
+            Assertions.assertTrue(store.getException().getMessage().contains("position " + 3 * 116 + " "));
+        }
+    }
+
+    @Test
+    public void testLockFreeStatistics() throws Exception {
+
+        try(FileDataStoreQueue store = new FileDataStoreQueue("testQueue",
+                Files.createTempDirectory("datastore").toString(),5_000_000)){
+            byte[] testData = new byte[100];
+            Assertions.assertTrue(store.write(testData));
+            long[] observed = new long[4];
+            int[] errorCode = new int[1];
+            Thread thread = new Thread(() -> {
+                observed[0] = store.count();
+                observed[1] = store.usage();
+                observed[2] = store.free();
+                observed[3] = store.isEmpty() ? 1 : 0;
+                errorCode[0] = store.getErrorCode();
+            });
+            synchronized (store) {
+                // The statistics are read while the store is locked, and the error of this thread is not seen
+                Assertions.assertTrue(store.beginTransaction());
+                Assertions.assertFalse(store.exportTo(null));
+                Assertions.assertEquals(3, store.getErrorCode());
+                thread.start();
+                thread.join(10_000);
+                Assertions.assertFalse(thread.isAlive());
+                Assertions.assertTrue(store.rollback());
+            }
+            Assertions.assertEquals(1, observed[0]);
+            Assertions.assertEquals(116, observed[1]);
+            Assertions.assertEquals(store.free(), observed[2]);
+            Assertions.assertEquals(0, observed[3]);
+            Assertions.assertEquals(0, errorCode[0]);
+        }
+    }
+
+    @Test
+    public void testAbandonedStream() throws Exception {
+
+        Path tempDir = Files.createTempDirectory("datastore");
+        try(FileDataStoreQueue store = new FileDataStoreQueue("testQueue", tempDir.toString(),5_000_000)){
+            // The stream of an ended thread is rolled back by the next operation
+            Thread writer = new Thread(() -> {
+                try {
+                    OutputStream out = store.openWriteStream(100);
+                    out.write(new byte[1_000]);
+                } catch (IOException e) {
+                    throw new UncheckedIOException(e);
+                }
+            });
+            writer.start();
+            writer.join();
+            Assertions.assertTrue(store.write(new byte[]{1}));
+            Assertions.assertEquals(1, store.count());
+
+            // The stream of a thread idle for longer than the timeout is rolled back
+            store.setTransactionTimeout(200);
+            OutputStream out = store.openWriteStream(100);
+            out.write(new byte[1_000]);
+            Thread other = new Thread(() -> store.write(new byte[]{2}));
+            other.start();
+            other.join(10_000);
+            Assertions.assertFalse(other.isAlive());
+            Assertions.assertThrows(IOException.class, () -> out.write(new byte[1_000]));
+            Assertions.assertEquals(2, store.count());
+            Assertions.assertTrue(store.write(new byte[]{3}));
+            Assertions.assertEquals(3, store.count());
+        }
+    }
+
+    @Test
+    public void testStream() throws Exception {
+
+        Path tempDir = Files.createTempDirectory("datastore");
+        byte[] record = new byte[100_000];
+        new Random(7).nextBytes(record);
+        try(FileDataStoreQueue store = new FileDataStoreQueue("testQueue", tempDir.toString(),5_000_000)){
+            Assertions.assertTrue(store.write(new byte[]{1, 2, 3}));
+            try (OutputStream out = store.openWriteStream(1_000)) {
+                out.write(record[0]);
+                out.write(record, 1, 49_999);
+                out.write(record, 50_000, 50_000);
+            }
+            // Each chunk is a separate record to count()
+            Assertions.assertEquals(101, store.count());
+            Assertions.assertTrue(store.write(new byte[]{4}));
+
+            // A stream which fails is rolled back
+            try (FileDataStoreQueue small = new FileDataStoreQueue("smallQueue", tempDir.toString(), 10_000)) {
+                OutputStream out = small.openWriteStream(1_000);
+                Assertions.assertThrows(IOException.class, () -> out.write(record));
+                Assertions.assertTrue(small.isEmpty());
+                Assertions.assertTrue(small.write(record, 0, 10));
+            }
+            store.sync();
+        }
+
+        try(FileDataStoreQueue store = new FileDataStoreQueue("testQueue", tempDir.toString(),5_000_000)){
+            // A record written by write() reads as a single chunk
+            try (InputStream in = store.openReadStream()) {
+                Assertions.assertEquals(1, in.read());
+                Assertions.assertEquals(2, in.read());
+                Assertions.assertEquals(3, in.read());
+                Assertions.assertEquals(-1, in.read());
+            }
+
+            // A stream closed before the end restores the record
+            try (InputStream in = store.openReadStream()) {
+                Assertions.assertEquals(record[0] & 0xFF, in.read());
+            }
+            Assertions.assertEquals(101, store.count());
+
+            // The reads of single records reject a record written with a stream
+            byte[] actual = new byte[record.length];
+            Assertions.assertEquals(0, store.read(actual));
+            Assertions.assertEquals(3, store.getErrorCode());
+            Assertions.assertNotNull(store.getException());
+            Assertions.assertEquals(0, store.readFrame(new FrameBuffer()));
+            Assertions.assertEquals(3, store.getErrorCode());
+            Assertions.assertEquals(0, store.readLength());
+            Assertions.assertEquals(3, store.getErrorCode());
+            Assertions.assertNull(store.lease(1_000));
+            Assertions.assertEquals(3, store.getErrorCode());
+            Assertions.assertEquals(101, store.count());
+
+            try (InputStream in = store.openReadStream()) {
+                int n = 0;
+                for (int size; (size = in.read(actual, n, Math.min(3_000, actual.length - n))) > 0; ) {
+                    n += size;
+                }
+                Assertions.assertEquals(record.length, n);
+                Assertions.assertEquals(-1, in.read());
+            }
+            Assertions.assertArrayEquals(record, actual);
+            Assertions.assertEquals(1, store.count());
+            Assertions.assertEquals(1, store.read(actual));
+            Assertions.assertEquals(4, actual[0]);
+            store.remove();
+
+            // A record of a single chunk is a plain record
+            try (OutputStream out = store.openWriteStream(1_000)) {
+                out.write(record, 0, 1_000);
+            }
+            Assertions.assertEquals(1_000, store.read(actual));
+            store.remove();
+
+            // The remove of a record written with a stream removes all its chunks
+            try (OutputStream out = store.openWriteStream(1_000)) {
+                out.write(record, 0, 5_000);
+            }
+            Assertions.assertTrue(store.write(new byte[]{5}));
+            Assertions.assertEquals(6, store.count());
+            store.remove();
+            Assertions.assertEquals(0, store.getErrorCode());
+            Assertions.assertEquals(1, store.count());
+            Assertions.assertEquals(1, store.read(actual));
+            Assertions.assertEquals(5, actual[0]);
+        }
+    }
+
+    @Test
+    public void testReadAhead() throws Exception {
+
+        // Writes interleaved with reads overwrite the space read ahead before, in both durability modes
+        for (long checkpointBytes : new long[]{0, 1_000}) {
+            Random random = new Random(11);
+            ArrayDeque<byte[]> expected = new ArrayDeque<>();
+            try (FileDataStoreQueue store = new FileDataStoreQueue("testQueue",
+                    Files.createTempDirectory("datastore").toString(), 5_000, checkpointBytes, 0)) {
+                Assertions.assertTrue(store.setReadAhead(1_000));
+                for (int i = 0; i < 5_000; i++) {
+                    if (random.nextInt(3) > 0) {
+                        byte[] testData = new byte[random.nextInt(random.nextInt(10) == 0 ? 1_500 : 200)];
+                        random.nextBytes(testData);
+                        if (store.write(testData)) {
+                            expected.addLast(testData);
+                        }
+                    } else if (!expected.isEmpty()) {
+                        byte[] testData = expected.removeFirst();
+                        byte[] readData = new byte[testData.length];
+                        Assertions.assertEquals(testData.length, store.readLength());
+                        Assertions.assertEquals(testData.length, store.read(readData));
+                        Assertions.assertArrayEquals(testData, readData);
+                        store.remove();
+                    }
+                }
+                Assertions.assertTrue(store.setReadAhead(0));
+                Assertions.assertEquals(expected.size(), store.count());
+            }
+        }
+    }
 }
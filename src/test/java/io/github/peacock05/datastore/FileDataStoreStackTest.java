@@ -5,9 +5,11 @@ import org.junit.jupiter.api.Test;
 
 import java.io.IOException;
 import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
 import java.nio.charset.StandardCharsets;
 import java.nio.file.Files;
 import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
 import java.util.Arrays;
 import java.util.Random;
 
@@ -178,6 +180,33 @@ public class FileDataStoreStackTest {
 
     }
 
+    @Test
+    public void testUnsyncedRead() throws IOException {
+
+        Path tempDir = Files.createTempDirectory("datastore");
+        byte[] testData1 = new byte[64], testData2 = new byte[48], readData = new byte[64];
+        Arrays.fill(testData1, (byte) 1);
+        Arrays.fill(testData2, (byte) 2);
+
+        try (FileDataStoreStack store = new FileDataStoreStack("testQueue", tempDir.toString(), 5_000_000)) {
+            Assertions.assertTrue(store.write(testData1));
+            Assertions.assertTrue(store.write(testData2));
+            Assertions.assertTrue(store.sync());
+            // The pop reaches the back up file but not the meta block, as a crash before the sync
+            Assertions.assertEquals(testData2.length, store.read(readData));
+        }
+
+        try (FileDataStoreStack store = new FileDataStoreStack("testQueue", tempDir.toString(), 5_000_000)) {
+            Assertions.assertEquals(testData2.length, store.read(readData));
+            Assertions.assertEquals(2, readData[0]);
+            store.remove();
+            Assertions.assertEquals(testData1.length, store.read(readData));
+            Assertions.assertEquals(1, readData[0]);
+            store.remove();
+            Assertions.assertTrue(store.isEmpty());
+        }
+    }
+
 
     @Test
     public void testRollOver() throws IOException {
@@ -229,4 +258,89 @@ public class FileDataStoreStackTest {
         Assertions.assertEquals(18938,writeCount);
         Assertions.assertEquals(18938,readCount);
     }
+
+    @Test
+    public void testResize() throws IOException {
+
+        Path tempDir = Files.createTempDirectory("datastore");
+        byte[] testData = new byte[100];
+        try (FileDataStoreStack store = new FileDataStoreStack("testQueue", tempDir.toString(), 1_000)) {
+            while (store.write(testData)) {
+                testData[0]++;
+            }
+            Assertions.assertTrue(store.resize(2_000));
+            Assertions.assertFalse(store.resize(1_500));
+            Assertions.assertTrue(store.write(testData));
+            store.sync();
+        }
+
+        // The capacity is kept when opened with the old limit
+        try (FileDataStoreStack store = new FileDataStoreStack("testQueue", tempDir.toString(), 1_000)) {
+            Assertions.assertEquals(2_000, store.capacity());
+            Assertions.assertEquals(testData.length, store.read(testData));
+            Assertions.assertEquals(8, testData[0]);
+        }
+    }
+
+    @Test
+    public void testExportImport() throws Exception {
+
+        Path tempDir = Files.createTempDirectory("datastore");
+        Path export = tempDir.resolve("export.bin");
+        Path queueExport = tempDir.resolve("queue.bin");
+        byte[] testData = new byte[100];
+        try(FileDataStoreStack store = new FileDataStoreStack("testStack", tempDir.toString(),5_000_000)){
+            for (int i = 0; i < 10; i++) {
+                Arrays.fill(testData, (byte) i);
+                Assertions.assertTrue(store.write(testData, 0, 10 + i));
+            }
+            // The element read last is exported from the backup file
+            Assertions.assertEquals(19, store.read(testData));
+            try (FileChannel channel = FileChannel.open(export, StandardOpenOption.CREATE, StandardOpenOption.WRITE)) {
+                Assertions.assertTrue(store.exportTo(channel));
+            }
+        }
+
+        // The stack imports the elements in the same order
+        try(FileDataStoreStack store = new FileDataStoreStack("importStack", tempDir.toString(),5_000_000);
+            FileChannel channel = FileChannel.open(export, StandardOpenOption.READ)){
+            Assertions.assertTrue(store.importFrom(channel));
+            Assertions.assertEquals(10, store.count());
+            for (int i = 9; i >= 0; i--) {
+                Assertions.assertEquals(10 + i, store.read(testData));
+                Assertions.assertEquals(i, testData[0]);
+                store.remove();
+            }
+            Assertions.assertTrue(store.isEmpty());
+        }
+
+        // The queue imports the elements from the bottom of the stack, and its export is imported by the stack
+        try(FileDataStoreQueue queue = new FileDataStoreQueue("importQueue", tempDir.toString(),5_000_000);
+            FileDataStoreStack store = new FileDataStoreStack("queueStack", tempDir.toString(),5_000_000);
+            FileChannel channel = FileChannel.open(export, StandardOpenOption.READ)){
+            Assertions.assertTrue(queue.importFrom(channel));
+            Assertions.assertEquals(10, queue.readLength());
+            try (FileChannel out = FileChannel.open(queueExport, StandardOpenOption.CREATE, StandardOpenOption.WRITE)) {
+                Assertions.assertTrue(queue.exportTo(out));
+            }
+            try (FileChannel in = FileChannel.open(queueExport, StandardOpenOption.READ)) {
+                Assertions.assertTrue(store.importFrom(in));
+            }
+            Assertions.assertEquals(19, store.read(testData));
+            Assertions.assertEquals(9, testData[0]);
+        }
+
+        // The import stops when the data store is full and reports the position of the first element not imported
+        try(FileDataStoreStack store = new FileDataStoreStack("smallStack", tempDir.toString(),200);
+            FileChannel channel = FileChannel.open(export, StandardOpenOption.READ)){
+            Assertions.assertFalse(store.importFrom(channel));
+            Assertions.assertEquals(2, store.getErrorCode());
+            long position = 0;
+            for (int i = 0; i < store.count(); i++) {
+                position += 26 + i;
+            }
+            Assertions.assertTrue(store.count() > 0 && store.count() < 10);
+            Assertions.assertTrue(store.getException().getMessage().contains("position " + position + " "));
+        }
+    }
 }
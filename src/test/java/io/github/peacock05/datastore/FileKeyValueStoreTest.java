@@ -0,0 +1,156 @@
+package io.github.peacock05.datastore;
+
+import org.junit.jupiter.api.Assertions;
+import org.junit.jupiter.api.Test;
+
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Arrays;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+public class FileKeyValueStoreTest {
+
+    @Test
+    public void testPutGetDelete() throws IOException {
+
+        Path tempDir = Files.createTempDirectory("datastore");
+        byte[] testData = new byte[100];
+        try (FileKeyValueStore store = new FileKeyValueStore("testStore", tempDir.toString(), 5_000_000)) {
+            for (int i = 0; i < 1000; i++) {
+                Arrays.fill(testData, (byte) i);
+                Assertions.assertTrue(store.put(i % 100, testData));
+            }
+            Assertions.assertEquals(100, store.count());
+            Assertions.assertEquals(testData.length, store.get(42, testData, 0, testData.length));
+            Assertions.assertEquals((byte) 942, testData[0]);
+            Assertions.assertEquals(0, store.get(42, testData, 0, 10));
+            Assertions.assertTrue(store.delete(42));
+            Assertions.assertTrue(store.delete(42));
+            Assertions.assertNull(store.get(42));
+            Assertions.assertEquals(-1, store.length(42));
+            Assertions.assertTrue(store.put(1000, new byte[0]));
+            Assertions.assertEquals(0, store.get(1000).length);
+            Assertions.assertTrue(store.sync());
+        }
+
+        // A frame left incomplete by a crash is dropped
+        try (RandomAccessFile file = new RandomAccessFile(tempDir.resolve("testStore.kv").toFile(), "rw")) {
+            file.seek(file.length());
+            file.write(new byte[]{0x5b, 0x77, (byte) 0xf4, (byte) 0xa0, 0, 0});
+        }
+
+        try (FileKeyValueStore store = new FileKeyValueStore("testStore", tempDir.toString(), 5_000_000)) {
+            Assertions.assertEquals(100, store.count());
+            Assertions.assertFalse(store.contains(42));
+            Assertions.assertEquals((byte) 943, store.get(43)[0]);
+            long usage = store.usage();
+            Assertions.assertTrue(store.staleBytes() > 0);
+
+            Assertions.assertTrue(store.compact());
+            Assertions.assertEquals(0, store.staleBytes());
+            Assertions.assertTrue(store.usage() < usage / 5);
+            Assertions.assertEquals((byte) 943, store.get(43)[0]);
+            Assertions.assertTrue(store.put(43, testData));
+        }
+
+        try (FileKeyValueStore store = new FileKeyValueStore("testStore", tempDir.toString(), 5_000_000)) {
+            Assertions.assertEquals(100, store.count());
+            Assertions.assertEquals((byte) 942, store.get(43)[0]);
+            Assertions.assertEquals((byte) 999, store.get(99)[0]);
+        }
+    }
+
+    @Test
+    public void testCompactionWithConcurrentPuts() throws Exception {
+
+        Path tempDir = Files.createTempDirectory("datastore");
+        ConcurrentLinkedQueue<Throwable> failures = new ConcurrentLinkedQueue<>();
+        int[] expected = new int[64];
+        try (FileKeyValueStore store = new FileKeyValueStore("testStore", tempDir.toString(), 50_000_000)) {
+            AtomicBoolean done = new AtomicBoolean();
+            Thread writer = new Thread(() -> {
+                try {
+                    byte[] data = new byte[40];
+                    for (int i = 1; i <= 20_000; i++) {
+                        int key = i % expected.length;
+                        if (i % 7 == 0) {
+                            Assertions.assertTrue(store.delete(key));
+                            expected[key] = 0;
+                        } else {
+                            DataStoreUtil.putInt(i, data, 0);
+                            Assertions.assertTrue(store.put(key, data, 0, 4 + i % 30));
+                            expected[key] = i;
+                        }
+                    }
+                } catch (Throwable t) {
+                    failures.add(t);
+                } finally {
+                    done.set(true);
+                }
+            });
+            writer.start();
+            int compactions = 0;
+            while (!done.get()) {
+                Assertions.assertTrue(store.compact());
+                compactions++;
+            }
+            writer.join();
+            Assertions.assertNull(failures.peek());
+            Assertions.assertTrue(compactions > 0);
+            Assertions.assertTrue(store.compact());
+            verify(store, expected);
+            Assertions.assertEquals(0, store.staleBytes());
+        }
+
+        try (FileKeyValueStore store = new FileKeyValueStore("testStore", tempDir.toString(), 50_000_000)) {
+            verify(store, expected);
+        }
+    }
+
+    @Test
+    public void testCompactionTask() throws Exception {
+
+        Path tempDir = Files.createTempDirectory("datastore");
+        int[] expected = new int[16];
+        try (FileKeyValueStore store = new FileKeyValueStore("testStore", tempDir.toString(), 50_000_000)) {
+            store.startCompactionTask(5, 0.5);
+            byte[] data = new byte[100];
+            for (int i = 1; i <= 20_000; i++) {
+                int key = i % expected.length;
+                DataStoreUtil.putInt(i, data, 0);
+                Assertions.assertTrue(store.put(key, data));
+                expected[key] = i;
+            }
+            // The stale frames are dropped by the compaction task
+            for (int i = 0; i < 1000 && store.staleBytes() > 0; i++) {
+                Thread.sleep(10);
+            }
+            Assertions.assertEquals(0, store.staleBytes());
+            Assertions.assertEquals(expected.length * 124L, store.usage());
+            verify(store, expected);
+        }
+
+        try (FileKeyValueStore store = new FileKeyValueStore("testStore", tempDir.toString(), 50_000_000)) {
+            verify(store, expected);
+        }
+    }
+
+    private static void verify(FileKeyValueStore store, int[] expected) {
+        long live = 0;
+        for (int key = 0; key < expected.length; key++) {
+            byte[] value = store.get(key);
+            if (expected[key] == 0) {
+                Assertions.assertNull(value);
+            } else {
+                Assertions.assertNotNull(value);
+                Assertions.assertEquals(expected[key], DataStoreUtil.getInt(value, 0));
+                Assertions.assertEquals(value.length, store.length(key));
+                live += 24 + value.length;
+            }
+        }
+        Assertions.assertEquals(live, store.usage() - store.staleBytes());
+    }
+}
@@ -0,0 +1,74 @@
+package io.github.peacock05.datastore;
+
+import org.junit.jupiter.api.Assertions;
+import org.junit.jupiter.api.Test;
+
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+
+public class OffHeapDataStoreQueueTest {
+
+    @Test
+    public void testFifo() {
+
+        DataStore store = new OffHeapDataStoreQueue(5_000_000);
+        Assertions.assertTrue(store.isEmpty());
+        Assertions.assertEquals(5_000_000, store.capacity());
+        Assertions.assertEquals(-1, store.readLength());
+        Assertions.assertEquals(-1, store.read(new byte[10]));
+
+        byte[] testData = new byte[120];
+        for (int i = 0; i < 10; i++) {
+            Arrays.fill(testData, (byte) i);
+            Assertions.assertTrue(store.write(testData, 0, 10 + i));
+        }
+        Assertions.assertTrue(store.newRecordWriter().putInt(10).putLong(11).commit());
+        Assertions.assertEquals(11, store.count());
+        Assertions.assertEquals(10 * 16 + 145 + 16 + 12, store.usage());
+        Assertions.assertEquals(store.capacity() - store.usage(), store.free());
+
+        for (int i = 0; i < 10; i++) {
+            Assertions.assertEquals(10 + i, store.readLength());
+            Assertions.assertEquals(0, store.read(testData, 0, 9 + i));
+            Assertions.assertEquals(10 + i, store.read(testData));
+            Assertions.assertEquals(i, testData[0]);
+            Assertions.assertEquals(i, testData[9 + i]);
+            store.remove();
+        }
+        Assertions.assertEquals(12, store.read(testData));
+        Assertions.assertEquals(10, ByteBuffer.wrap(testData).getInt());
+        Assertions.assertEquals(11, ByteBuffer.wrap(testData).getLong(4));
+        store.remove();
+        Assertions.assertTrue(store.isEmpty());
+        Assertions.assertEquals(0, store.usage());
+        Assertions.assertTrue(store.sync());
+    }
+
+    @Test
+    public void testRollOver() {
+
+        // The frames are split by the end of the buffer
+        OffHeapDataStoreQueue store = new OffHeapDataStoreQueue(1_000);
+        byte[] testData = new byte[100];
+        FrameBuffer frame = new FrameBuffer();
+        int next = 0, expected = 0;
+        for (int round = 0; round < 50; round++) {
+            while (store.write(testData)) {
+                ByteBuffer.wrap(testData).putInt(++next);
+            }
+            Assertions.assertTrue(store.free() < 116);
+            for (int i = 0; i < 3; i++) {
+                Assertions.assertEquals(testData.length, store.readFrame(frame));
+                Assertions.assertEquals(expected++, ByteBuffer.wrap(frame.ensure(4)).getInt());
+                store.remove();
+            }
+        }
+        while (!store.isEmpty()) {
+            Assertions.assertEquals(testData.length, store.read(testData));
+            Assertions.assertEquals(expected++, ByteBuffer.wrap(testData).getInt());
+            store.remove();
+        }
+        Assertions.assertEquals(next, expected);
+        Assertions.assertThrows(IllegalArgumentException.class, () -> new OffHeapDataStoreQueue(1L << 31));
+    }
+}
@@ -0,0 +1,59 @@
+package io.github.peacock05.datastore;
+
+import org.junit.jupiter.api.Assertions;
+import org.junit.jupiter.api.Test;
+
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+
+public class OffHeapDataStoreStackTest {
+
+    @Test
+    public void testLifo() {
+
+        DataStore store = new OffHeapDataStoreStack(5_000_000);
+        Assertions.assertTrue(store.isEmpty());
+        Assertions.assertEquals(5_000_000, store.capacity());
+        Assertions.assertEquals(-1, store.readLength());
+
+        byte[] testData = new byte[120];
+        Assertions.assertTrue(store.newRecordWriter().putInt(10).putLong(11).commit());
+        for (int i = 0; i < 10; i++) {
+            Arrays.fill(testData, (byte) i);
+            Assertions.assertTrue(store.write(testData, 0, 10 + i));
+        }
+        Assertions.assertEquals(11, store.count());
+        Assertions.assertEquals(10 * 16 + 145 + 16 + 12, store.usage());
+
+        for (int i = 9; i >= 0; i--) {
+            Assertions.assertEquals(10 + i, store.readLength());
+            Assertions.assertEquals(0, store.read(testData, 0, 9 + i));
+            Assertions.assertEquals(10 + i, store.read(testData));
+            Assertions.assertEquals(i, testData[0]);
+            Assertions.assertEquals(i, testData[9 + i]);
+            store.remove();
+        }
+        Assertions.assertEquals(12, store.read(testData));
+        Assertions.assertEquals(10, ByteBuffer.wrap(testData).getInt());
+        Assertions.assertEquals(11, ByteBuffer.wrap(testData).getLong(4));
+        store.remove();
+        Assertions.assertTrue(store.isEmpty());
+        Assertions.assertEquals(0, store.usage());
+    }
+
+    @Test
+    public void testFull() {
+
+        DataStore store = new OffHeapDataStoreStack(1_000);
+        byte[] testData = new byte[100];
+        int written = 0;
+        while (store.write(testData)) {
+            written++;
+        }
+        Assertions.assertEquals(8, written);
+        Assertions.assertEquals(1_000 - 8 * 116, store.free());
+        store.remove();
+        Assertions.assertTrue(store.write(testData));
+        Assertions.assertFalse(store.write(testData));
+    }
+}
@@ -0,0 +1,182 @@
+package io.github.peacock05.datastore;
+
+import org.junit.jupiter.api.Assertions;
+import org.junit.jupiter.api.Test;
+
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.BitSet;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+
+public class ParallelConsumerTest {
+
+    @Test
+    public void testParallelConsumer() throws Exception {
+        BitSet seen = new BitSet();
+        try (FileDataStoreQueue store = new FileDataStoreQueue("testQueue",
+                Files.createTempDirectory("datastore").toString(), 5_000_000);
+             ParallelConsumer consumer = new ParallelConsumer(store, data -> {
+                 int i = ByteBuffer.wrap(data).getInt();
+                 synchronized (seen) {
+                     // Every 7th record fails on its first delivery
+                     if (i % 7 == 0 && !seen.get(i)) {
+                         seen.set(i);
+                         throw new IllegalStateException("Retry");
+                     }
+                     seen.set(i);
+                 }
+                 return true;
+             })) {
+            for (int i = 0; i < 1000; i++) {
+                Assertions.assertTrue(store.write(ByteBuffer.allocate(100).putInt(i).array()));
+            }
+            for (long deadline = System.currentTimeMillis() + 30_000;
+                 consumer.processed() < 1000 && System.currentTimeMillis() < deadline; ) {
+                Thread.sleep(10);
+            }
+            Assertions.assertEquals(1000, consumer.processed());
+            Assertions.assertEquals(143, consumer.failed());
+            Assertions.assertEquals(1000, seen.cardinality());
+            Assertions.assertTrue(store.isEmpty());
+        }
+    }
+
+    @Test
+    public void testCommitOrder() throws Exception {
+        CountDownLatch blocked = new CountDownLatch(1);
+        ExecutorService executor = Executors.newFixedThreadPool(4);
+        try (FileDataStoreQueue store = new FileDataStoreQueue("testQueue",
+                Files.createTempDirectory("datastore").toString(), 5_000_000)) {
+            for (int i = 0; i < 100; i++) {
+                Assertions.assertTrue(store.write(ByteBuffer.allocate(100).putInt(i).array()));
+            }
+            try (ParallelConsumer consumer = new ParallelConsumer(store, data -> {
+                // The first record completes after all the others
+                if (ByteBuffer.wrap(data).getInt() == 0) {
+                    blocked.await();
+                }
+                return true;
+            }, executor, 8, 30_000)) {
+                for (long deadline = System.currentTimeMillis() + 30_000;
+                     consumer.processed() < 99 && System.currentTimeMillis() < deadline; ) {
+                    Thread.sleep(10);
+                }
+                Assertions.assertEquals(99, consumer.processed());
+                // The front does not move over the record in progress
+                Assertions.assertEquals(100, store.count());
+                blocked.countDown();
+            }
+            Assertions.assertTrue(store.isEmpty());
+        } finally {
+            executor.shutdown();
+            Assertions.assertTrue(executor.awaitTermination(10, TimeUnit.SECONDS));
+        }
+    }
+
+    @Test
+    public void testMaxDeliveries() throws Exception {
+        List<Exception> errors = new CopyOnWriteArrayList<>();
+        try (FileDataStoreQueue store = new FileDataStoreQueue("testQueue",
+                Files.createTempDirectory("datastore").toString(), 5_000_000)) {
+            try (ParallelConsumer consumer = new ParallelConsumer(store, data -> {
+                // The record 3 always fails
+                if (ByteBuffer.wrap(data).getInt() == 3) {
+                    throw new IllegalStateException("Poison");
+                }
+                return true;
+            }, Executors.newCachedThreadPool(), 4, 30_000)) {
+                consumer.setRetryDelay(10);
+                consumer.setMaxDeliveries(3);
+                consumer.setErrorHandler((data, exception) -> {
+                    Assertions.assertEquals(3, ByteBuffer.wrap(data).getInt());
+                    errors.add(exception);
+                });
+                for (int i = 0; i < 10; i++) {
+                    Assertions.assertTrue(store.write(ByteBuffer.allocate(100).putInt(i).array()));
+                }
+                for (long deadline = System.currentTimeMillis() + 30_000;
+                     consumer.processed() + consumer.dropped() < 10 && System.currentTimeMillis() < deadline; ) {
+                    Thread.sleep(10);
+                }
+                Assertions.assertTrue(store.isEmpty());
+                Assertions.assertEquals(9, consumer.processed());
+                Assertions.assertEquals(2, consumer.failed());
+                Assertions.assertEquals(1, consumer.dropped());
+                Assertions.assertEquals(1, errors.size());
+                Assertions.assertTrue(errors.get(0) instanceof IllegalStateException);
+            }
+        }
+    }
+
+    @Test
+    public void testHandlerError() throws Exception {
+        BitSet seen = new BitSet();
+        ExecutorService executor = Executors.newFixedThreadPool(2);
+        try (FileDataStoreQueue store = new FileDataStoreQueue("testQueue",
+                Files.createTempDirectory("datastore").toString(), 5_000_000)) {
+            for (int i = 0; i < 10; i++) {
+                Assertions.assertTrue(store.write(ByteBuffer.allocate(100).putInt(i).array()));
+            }
+            try (ParallelConsumer consumer = new ParallelConsumer(store, data -> {
+                int i = ByteBuffer.wrap(data).getInt();
+                synchronized (seen) {
+                    // An Error on the first delivery still releases the record and the permit
+                    if (!seen.get(i)) {
+                        seen.set(i);
+                        throw new AssertionError("Retry");
+                    }
+                }
+                return true;
+            }, executor, 2, 30_000)) {
+                consumer.setRetryDelay(10);
+                for (long deadline = System.currentTimeMillis() + 30_000;
+                     consumer.processed() < 10 && System.currentTimeMillis() < deadline; ) {
+                    Thread.sleep(10);
+                }
+                Assertions.assertEquals(10, consumer.processed());
+                Assertions.assertEquals(10, consumer.failed());
+            }
+            Assertions.assertTrue(store.isEmpty());
+        } finally {
+            executor.shutdown();
+            Assertions.assertTrue(executor.awaitTermination(10, TimeUnit.SECONDS));
+        }
+    }
+
+    @Test
+    public void testStoreError() throws Exception {
+        Path tempDir = Files.createTempDirectory("datastore");
+        List<Exception> errors = new CopyOnWriteArrayList<>();
+        CountDownLatch reported = new CountDownLatch(2);
+        try (FileDataStoreQueue store = new FileDataStoreQueue("testQueue", tempDir.toString(), 5_000_000)) {
+            Assertions.assertTrue(store.write(ByteBuffer.allocate(100).putInt(1).array()));
+            try (RandomAccessFile file = new RandomAccessFile(tempDir.resolve("testQueue.fifo").toFile(), "rw")) {
+                // Corrupt the first byte of the record behind the meta block and the frame header
+                file.seek(64 + 16);
+                int b = file.read();
+                file.seek(64 + 16);
+                file.write(b ^ 0xff);
+            }
+            try (ParallelConsumer consumer = new ParallelConsumer(store, data -> true)) {
+                consumer.setRetryDelay(10);
+                consumer.setErrorHandler((data, exception) -> {
+                    Assertions.assertNull(data);
+                    errors.add(exception);
+                    reported.countDown();
+                });
+                Assertions.assertTrue(reported.await(30, TimeUnit.SECONDS));
+                Assertions.assertTrue(errors.get(0) instanceof IOException);
+                Assertions.assertEquals(0, consumer.processed());
+            }
+            Assertions.assertEquals(1, store.count(), "A record that cannot be read is not removed");
+        }
+    }
+}
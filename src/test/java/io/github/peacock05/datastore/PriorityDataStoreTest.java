@@ -0,0 +1,75 @@
+package io.github.peacock05.datastore;
+
+import org.junit.jupiter.api.Assertions;
+import org.junit.jupiter.api.Test;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+
+public class PriorityDataStoreTest {
+
+    @Test
+    public void testPriorityDataStore() throws Exception {
+        Path tempDir = Files.createTempDirectory("datastore");
+        byte[] testData = new byte[16];
+        try (PriorityDataStore store = new PriorityDataStore("testQueue", tempDir.toString(), 1_000_000, 8)) {
+            Assertions.assertTrue(store.isEmpty(), "Data store must be empty");
+            Assertions.assertEquals(-1, store.headPriority());
+            for (int i = 0; i < 10; i++) {
+                Assertions.assertTrue(store.write(new byte[]{0, (byte) i}), "Write do not fail here");
+            }
+            Assertions.assertTrue(store.write(3, new byte[]{3, 0}), "Write do not fail here");
+            Assertions.assertTrue(store.write(7, new byte[]{7, 0}), "Write do not fail here");
+            Assertions.assertTrue(store.write(3, new byte[]{3, 1}), "Write do not fail here");
+            Assertions.assertEquals(13, store.count());
+            Assertions.assertEquals(7, store.headPriority());
+
+            Assertions.assertEquals(2, store.read(testData));
+            Assertions.assertEquals(7, testData[0]);
+            store.remove();
+            Assertions.assertEquals(2, store.read(testData));
+            Assertions.assertArrayEquals(new byte[]{3, 0}, new byte[]{testData[0], testData[1]});
+
+            // The data read is removed even if a higher priority arrives in between
+            Assertions.assertTrue(store.write(5, new byte[]{5, 0}), "Write do not fail here");
+            store.remove();
+            Assertions.assertEquals(2, store.read(testData));
+            Assertions.assertArrayEquals(new byte[]{5, 0}, new byte[]{testData[0], testData[1]});
+            store.remove();
+            Assertions.assertEquals(2, store.read(testData));
+            Assertions.assertArrayEquals(new byte[]{3, 1}, new byte[]{testData[0], testData[1]});
+            store.remove();
+            store.sync();
+        }
+
+        try (PriorityDataStore store = new PriorityDataStore("testQueue", tempDir.toString(), 1_000_000, 8)) {
+            Assertions.assertEquals(10, store.count());
+            for (int i = 0; i < 10; i++) {
+                Assertions.assertEquals(0, store.headPriority());
+                Assertions.assertEquals(2, store.readLength());
+                Assertions.assertEquals(2, store.read(testData));
+                Assertions.assertEquals(i, testData[1]);
+                store.remove();
+            }
+            Assertions.assertTrue(store.isEmpty(), "Data store must be empty");
+            Assertions.assertEquals(-1, store.read(testData));
+        }
+    }
+
+    @Test
+    public void testInvalidLevels() {
+        Assertions.assertThrows(IllegalArgumentException.class, () -> new PriorityDataStore("testQueue",
+                Files.createTempDirectory("datastore").toString(), 1_000_000, 65));
+    }
+
+    @Test
+    public void testInvalidPriority() throws Exception {
+        try (PriorityDataStore store = new PriorityDataStore("testQueue",
+                Files.createTempDirectory("datastore").toString(), 1_000_000, 4)) {
+            Assertions.assertThrows(IllegalArgumentException.class, () -> store.write(4, new byte[16]));
+            Assertions.assertThrows(IllegalArgumentException.class, () -> store.write(-1, new byte[16]));
+            Assertions.assertTrue(store.isEmpty());
+        }
+    }
+}
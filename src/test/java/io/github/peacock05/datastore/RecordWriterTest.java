@@ -0,0 +1,61 @@
+package io.github.peacock05.datastore;
+
+import org.junit.jupiter.api.Assertions;
+import org.junit.jupiter.api.Test;
+
+import java.nio.ByteBuffer;
+import java.nio.file.Files;
+
+public class RecordWriterTest {
+
+    private static void testRecordWriter(DataStore store) {
+        RecordWriter writer = store.newRecordWriter();
+        byte[] payload = new byte[1000];
+        for (int i = 0; i < payload.length; i++) {
+            payload[i] = (byte) i;
+        }
+
+        for (int i = 0; i < 3; i++) {
+            Assertions.assertTrue(writer.putFloat(23.43f).putInt(i).putLong(9841893746890L)
+                    .putDouble(78.83).putBytes(payload, 0, i * 400).commit(), "Write do not fail here");
+            Assertions.assertEquals(0, writer.length());
+        }
+        Assertions.assertEquals(3, store.count());
+
+        writer.putLong(1);
+        writer.reset();
+        Assertions.assertEquals(0, writer.length());
+
+        ByteBuffer data = ByteBuffer.allocate(1024);
+        for (int i = 0; i < 3; i++) {
+            int length = store.read(data.array());
+            data.clear();
+            Assertions.assertEquals(23.43f, data.getFloat());
+            int n = data.getInt();
+            Assertions.assertEquals(24 + n * 400, length);
+            Assertions.assertEquals(9841893746890L, data.getLong());
+            Assertions.assertEquals(78.83, data.getDouble());
+            for (int j = 0; j < n * 400; j++) {
+                Assertions.assertEquals((byte) j, data.get());
+            }
+            store.remove();
+        }
+        Assertions.assertTrue(store.isEmpty(), "Data store must be empty");
+    }
+
+    @Test
+    public void testQueueRecordWriter() throws Exception {
+        try (DataStore store = new FileDataStoreQueue("testQueue",
+                Files.createTempDirectory("datastore").toString(), 5_000_000)) {
+            testRecordWriter(store);
+        }
+    }
+
+    @Test
+    public void testStackRecordWriter() throws Exception {
+        try (DataStore store = new FileDataStoreStack("testQueue",
+                Files.createTempDirectory("datastore").toString(), 5_000_000)) {
+            testRecordWriter(store);
+        }
+    }
+}
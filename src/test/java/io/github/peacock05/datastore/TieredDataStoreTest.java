@@ -0,0 +1,78 @@
+package io.github.peacock05.datastore;
+
+import org.junit.jupiter.api.Assertions;
+import org.junit.jupiter.api.Test;
+
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Arrays;
+
+public class TieredDataStoreTest {
+
+    @Test
+    public void testFifo() throws Exception {
+
+        Path tempDir = Files.createTempDirectory("datastore");
+        byte[] testData = new byte[100];
+        try (TieredDataStore store = new TieredDataStore(
+                new FileDataStoreQueue("testQueue", tempDir.toString(), 5_000_000), 1_000)) {
+            for (int i = 0; i < 25; i++) {
+                Arrays.fill(testData, (byte) i);
+                Assertions.assertTrue(store.write(testData));
+            }
+            // The oldest records were spilled to the file
+            Assertions.assertEquals(15, store.getDataStore().count());
+            Assertions.assertEquals(25, store.count());
+            for (int i = 0; i < 20; i++) {
+                Assertions.assertEquals(testData.length, store.read(testData));
+                Assertions.assertEquals(i, testData[0]);
+                store.remove();
+            }
+            Assertions.assertTrue(store.write(new byte[2_000]));
+            Assertions.assertTrue(store.sync());
+            Assertions.assertEquals(6, store.getDataStore().count());
+        }
+
+        try (TieredDataStore store = new TieredDataStore(
+                new FileDataStoreQueue("testQueue", tempDir.toString(), 5_000_000), 1_000)) {
+            for (int i = 20; i < 25; i++) {
+                Assertions.assertEquals(testData.length, store.read(testData));
+                Assertions.assertEquals(i, testData[0]);
+                store.remove();
+            }
+            Assertions.assertEquals(2_000, store.readLength());
+            store.remove();
+            Assertions.assertTrue(store.isEmpty());
+        }
+    }
+
+    @Test
+    public void testLifo() throws Exception {
+
+        Path tempDir = Files.createTempDirectory("datastore");
+        byte[] testData = new byte[100];
+        try (TieredDataStore store = new TieredDataStore(
+                new FileDataStoreStack("testQueue", tempDir.toString(), 5_000_000), 1_000)) {
+            for (int i = 0; i < 25; i++) {
+                Arrays.fill(testData, (byte) i);
+                Assertions.assertTrue(store.write(testData));
+            }
+            Assertions.assertEquals(15, store.getDataStore().count());
+            for (int i = 24; i >= 20; i--) {
+                Assertions.assertEquals(testData.length, store.read(testData));
+                Assertions.assertEquals(i, testData[0]);
+                store.remove();
+            }
+        }
+
+        try (TieredDataStore store = new TieredDataStore(
+                new FileDataStoreStack("testQueue", tempDir.toString(), 5_000_000), 1_000)) {
+            for (int i = 19; i >= 0; i--) {
+                Assertions.assertEquals(testData.length, store.read(testData));
+                Assertions.assertEquals(i, testData[0]);
+                store.remove();
+            }
+            Assertions.assertTrue(store.isEmpty());
+        }
+    }
+}
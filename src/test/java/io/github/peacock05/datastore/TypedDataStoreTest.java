@@ -0,0 +1,103 @@
+package io.github.peacock05.datastore;
+
+import org.junit.jupiter.api.Assertions;
+import org.junit.jupiter.api.Test;
+
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+
+public class TypedDataStoreTest {
+
+    private static class Sample {
+        final long time;
+        final double value;
+        final String name;
+
+        Sample(long time, double value, String name) {
+            this.time = time;
+            this.value = value;
+            this.name = name;
+        }
+    }
+
+    private static class SampleCodec implements Codec<Sample> {
+
+        @Override
+        public void encode(Sample value, RecordWriter writer) {
+            writer.putLong(value.time).putDouble(value.value).putBytes(value.name.getBytes(StandardCharsets.UTF_8));
+        }
+
+        @Override
+        public Sample decode(ByteBuffer buffer) {
+            long time = buffer.getLong();
+            double value = buffer.getDouble();
+            String name = new String(buffer.array(), buffer.position(), buffer.remaining(), StandardCharsets.UTF_8);
+            return new Sample(time, value, name);
+        }
+    }
+
+    private static void testTypedDataStore(TypedDataStore<Sample> store, boolean lifo) {
+        StringBuilder name = new StringBuilder();
+        for (int i = 0; i < 100; i++) {
+            name.append((char) ('a' + i % 26));
+            Assertions.assertTrue(store.write(new Sample(i, i * 1.5, name.toString())), "Write do not fail here");
+        }
+        Assertions.assertEquals(100, store.count());
+
+        for (int i = 0; i < 100; i++) {
+            int n = lifo ? 99 - i : i;
+            Sample sample = store.read();
+            Assertions.assertNotNull(sample);
+            Assertions.assertEquals(n, sample.time);
+            sample = store.poll();
+            Assertions.assertNotNull(sample);
+            Assertions.assertEquals(n, sample.time);
+            Assertions.assertEquals(n * 1.5, sample.value);
+            Assertions.assertEquals(n + 1, sample.name.length());
+        }
+        Assertions.assertTrue(store.isEmpty(), "Data store must be empty");
+        Assertions.assertNull(store.read());
+        Assertions.assertNull(store.poll());
+    }
+
+    @Test
+    public void testQueueTypedDataStore() throws Exception {
+        Path tempDir = Files.createTempDirectory("datastore");
+        try (TypedDataStore<Sample> store = new TypedDataStore<>(
+                new FileDataStoreQueue("testQueue", tempDir.toString(), 5_000_000), new SampleCodec())) {
+            testTypedDataStore(store, false);
+        }
+    }
+
+    @Test
+    public void testStackTypedDataStore() throws Exception {
+        Path tempDir = Files.createTempDirectory("datastore");
+        try (TypedDataStore<Sample> store = new TypedDataStore<>(
+                new FileDataStoreStack("testQueue", tempDir.toString(), 5_000_000), new SampleCodec())) {
+            testTypedDataStore(store, true);
+        }
+    }
+
+    @Test
+    public void testReadError() throws Exception {
+        Path tempDir = Files.createTempDirectory("datastore");
+        try (TypedDataStore<Sample> store = new TypedDataStore<>(
+                new FileDataStoreQueue("testQueue", tempDir.toString(), 5_000_000), new SampleCodec())) {
+            Assertions.assertTrue(store.write(new Sample(1, 1.5, "sample")));
+            try (RandomAccessFile file = new RandomAccessFile(tempDir.resolve("testQueue.fifo").toFile(), "rw")) {
+                // Corrupt the first byte of the record behind the meta block and the frame header
+                file.seek(64 + 16);
+                int b = file.read();
+                file.seek(64 + 16);
+                file.write(b ^ 0xff);
+            }
+            Assertions.assertNull(store.poll());
+            Assertions.assertEquals(1, store.getErrorCode());
+            Assertions.assertNotNull(store.getException());
+            Assertions.assertEquals(1, store.count(), "A record that cannot be read is not removed");
+        }
+    }
+}
@@ -0,0 +1,213 @@
+package io.github.peacock05.datastore;
+
+import org.junit.jupiter.api.Assertions;
+import org.junit.jupiter.api.Test;
+
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Flow;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicReference;
+
+public class FlowDataStorePublisherTest {
+
+    @Test
+    public void testPublisher() throws Exception {
+        Path tempDir = Files.createTempDirectory("datastore");
+        try (FileDataStoreQueue store = new FileDataStoreQueue("testQueue", tempDir.toString(), 5_000_000)) {
+            for (int i = 0; i < 10; i++) {
+                Assertions.assertTrue(store.write(new byte[]{(byte) i, 1, 2, 3}), "Write do not fail here");
+            }
+
+            List<Integer> received = new CopyOnWriteArrayList<>();
+            AtomicReference<Flow.Subscription> subscription = new AtomicReference<>();
+            CountDownLatch firstBatch = new CountDownLatch(5);
+            CountDownLatch lastBatch = new CountDownLatch(20);
+            new FlowDataStorePublisher(store).subscribe(new Flow.Subscriber<ByteBuffer>() {
+                @Override
+                public void onSubscribe(Flow.Subscription s) {
+                    subscription.set(s);
+                    s.request(5);
+                }
+
+                @Override
+                public void onNext(ByteBuffer item) {
+                    Assertions.assertEquals(4, item.remaining());
+                    received.add((int) item.get());
+                    firstBatch.countDown();
+                    lastBatch.countDown();
+                }
+
+                @Override
+                public void onError(Throwable throwable) {
+                    Assertions.fail(throwable);
+                }
+
+                @Override
+                public void onComplete() {
+                }
+            });
+
+            Assertions.assertTrue(firstBatch.await(10, TimeUnit.SECONDS));
+            // Only the requested records are delivered and removed
+            for (int i = 0; i < 100 && store.count() > 5; i++) {
+                Thread.sleep(10);
+            }
+            Thread.sleep(50);
+            Assertions.assertEquals(5, received.size());
+            Assertions.assertEquals(5, store.count());
+
+            subscription.get().request(15);
+            for (int i = 10; i < 20; i++) {
+                Assertions.assertTrue(store.write(new byte[]{(byte) i, 1, 2, 3}), "Write do not fail here");
+            }
+            Assertions.assertTrue(lastBatch.await(10, TimeUnit.SECONDS));
+            for (int i = 0; i < 20; i++) {
+                Assertions.assertEquals(i, received.get(i));
+            }
+            // The last record is removed after onNext returns
+            for (int i = 0; i < 100 && !store.isEmpty(); i++) {
+                Thread.sleep(10);
+            }
+            Assertions.assertTrue(store.isEmpty(), "Data store must be empty");
+            subscription.get().cancel();
+        }
+    }
+
+    @Test
+    public void testCorruptRecord() throws Exception {
+        Path tempDir = Files.createTempDirectory("datastore");
+        try (FileDataStoreQueue store = new FileDataStoreQueue("testQueue", tempDir.toString(), 5_000_000)) {
+            Assertions.assertTrue(store.write(new byte[]{0, 1, 2, 3}), "Write do not fail here");
+            try (RandomAccessFile file = new RandomAccessFile(tempDir.resolve("testQueue.fifo").toFile(), "rw")) {
+                // Corrupt the record behind the meta block and the frame header
+                file.seek(64 + 16);
+                file.write(9);
+            }
+
+            List<ByteBuffer> received = new CopyOnWriteArrayList<>();
+            AtomicReference<Throwable> error = new AtomicReference<>();
+            CountDownLatch done = new CountDownLatch(1);
+            new FlowDataStorePublisher(store).subscribe(new Flow.Subscriber<ByteBuffer>() {
+                @Override
+                public void onSubscribe(Flow.Subscription s) {
+                    s.request(1);
+                }
+
+                @Override
+                public void onNext(ByteBuffer item) {
+                    received.add(item);
+                }
+
+                @Override
+                public void onError(Throwable throwable) {
+                    error.set(throwable);
+                    done.countDown();
+                }
+
+                @Override
+                public void onComplete() {
+                }
+            });
+
+            Assertions.assertTrue(done.await(10, TimeUnit.SECONDS));
+            Assertions.assertNotNull(error.get());
+            Assertions.assertTrue(received.isEmpty(), "A corrupted record is not delivered");
+            Assertions.assertEquals(1, store.count(), "A corrupted record is not removed");
+        }
+    }
+
+    @Test
+    public void testInvalidRequest() throws Exception {
+        Path tempDir = Files.createTempDirectory("datastore");
+        try (FileDataStoreQueue store = new FileDataStoreQueue("testQueue", tempDir.toString(), 5_000_000)) {
+            Assertions.assertTrue(store.write(new byte[]{0, 1, 2, 3}), "Write do not fail here");
+
+            AtomicReference<Throwable> error = new AtomicReference<>();
+            AtomicReference<Thread> errorThread = new AtomicReference<>();
+            CountDownLatch done = new CountDownLatch(1);
+            new FlowDataStorePublisher(store).subscribe(new Flow.Subscriber<ByteBuffer>() {
+                @Override
+                public void onSubscribe(Flow.Subscription s) {
+                    s.request(0);
+                }
+
+                @Override
+                public void onNext(ByteBuffer item) {
+                    Assertions.fail("No record is requested");
+                }
+
+                @Override
+                public void onError(Throwable throwable) {
+                    error.set(throwable);
+                    errorThread.set(Thread.currentThread());
+                    done.countDown();
+                }
+
+                @Override
+                public void onComplete() {
+                }
+            });
+
+            Assertions.assertTrue(done.await(10, TimeUnit.SECONDS));
+            Assertions.assertTrue(error.get() instanceof IllegalArgumentException);
+            // The error is not signalled from the thread calling request
+            Assertions.assertNotSame(Thread.currentThread(), errorThread.get());
+            Assertions.assertEquals(1, store.count());
+        }
+    }
+
+    @Test
+    public void testRemoveError() throws Exception {
+        Path tempDir = Files.createTempDirectory("datastore");
+        FileDataStoreQueue store = new FileDataStoreQueue("testQueue", tempDir.toString(), 5_000_000);
+        Assertions.assertTrue(store.write(new byte[]{0, 1, 2, 3}), "Write do not fail here");
+        Assertions.assertTrue(store.write(new byte[]{1, 1, 2, 3}), "Write do not fail here");
+        Assertions.assertTrue(store.sync());
+
+        List<ByteBuffer> received = new CopyOnWriteArrayList<>();
+        AtomicReference<Throwable> error = new AtomicReference<>();
+        CountDownLatch done = new CountDownLatch(1);
+        new FlowDataStorePublisher(store).subscribe(new Flow.Subscriber<ByteBuffer>() {
+            @Override
+            public void onSubscribe(Flow.Subscription s) {
+                s.request(2);
+            }
+
+            @Override
+            public void onNext(ByteBuffer item) {
+                received.add(item);
+                try {
+                    // The record cannot be removed from the closed queue
+                    store.close();
+                } catch (IOException e) {
+                    throw new UncheckedIOException(e);
+                }
+            }
+
+            @Override
+            public void onError(Throwable throwable) {
+                error.set(throwable);
+                done.countDown();
+            }
+
+            @Override
+            public void onComplete() {
+            }
+        });
+
+        Assertions.assertTrue(done.await(10, TimeUnit.SECONDS));
+        Assertions.assertTrue(error.get() instanceof IOException);
+        Assertions.assertEquals(1, received.size(), "The delivery stops at the record that cannot be removed");
+        try (FileDataStoreQueue reopened = new FileDataStoreQueue("testQueue", tempDir.toString(), 5_000_000)) {
+            Assertions.assertEquals(2, reopened.count());
+        }
+    }
+}